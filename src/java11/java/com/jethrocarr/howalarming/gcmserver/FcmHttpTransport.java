@@ -0,0 +1,252 @@
+/**
+ * Copyright 2016 Jethro Carr. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jethrocarr.howalarming.gcmserver;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * FcmHttpTransport sends downstream messages to FCM's HTTP endpoint, multiplexing many requests at once over a few
+ * HTTP/2 connections rather than holding one stanza per ack slot on each CCS connection. Each request is answered
+ * with the outcome of its message, which is reported to the listener in the same form CCS acks and nacks take.
+ *
+ * Each connection is a separate HttpClient, which keeps a single HTTP/2 connection per host. The number of requests
+ * awaiting an answer is bounded across all of them, senders blocking until one completes. Upstream messages only
+ * arrive over CCS, so this is only ever used for sending.
+ *
+ * Needs Java 11 or later, so it is built separately from the rest of the server and loaded by name.
+ */
+public class FcmHttpTransport implements GcmTransport {
+
+    private static final Logger logger = Logger.getLogger("FcmHttpTransport");
+
+    // Requests not answered in this time are treated as lost, as unacked stanzas are by FlowControlWindow.
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(10);
+
+    // Errors the HTTP endpoint reports for a message, and the codes CCS uses for the same thing.
+    private static final Map<String, String> ERRORS = new HashMap<>();
+
+    static {
+        ERRORS.put("NotRegistered", "DEVICE_UNREGISTERED");
+        ERRORS.put("InvalidRegistration", "BAD_REGISTRATION");
+        ERRORS.put("MissingRegistration", "BAD_REGISTRATION");
+        ERRORS.put("Unavailable", "SERVICE_UNAVAILABLE");
+        ERRORS.put("InternalServerError", "INTERNAL_SERVER_ERROR");
+        ERRORS.put("DeviceMessageRateExceeded", "DEVICE_MESSAGE_RATE_EXCEEDED");
+        ERRORS.put("TopicsMessageRateExceeded", "DEVICE_MESSAGE_RATE_EXCEEDED");
+    }
+
+    private final URI uri;
+    private final String authorization;
+    private final HttpClient[] clients;
+    private final AtomicInteger nextClient = new AtomicInteger();
+    // Requests that may be awaiting an answer at once, across all connections.
+    private final Semaphore streams;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final JsonParser jsonParser = new JsonParser();
+    private volatile Listener listener;
+
+    /**
+     * @param apiKey Server key to authorise requests with.
+     * @param url Endpoint to send to, eg a local stand-in when load testing.
+     * @param connections Number of HTTP/2 connections to spread requests across.
+     * @param streams Number of requests to have awaiting an answer at once on each connection.
+     */
+    public FcmHttpTransport(String apiKey, String url, int connections, int streams) {
+        this.uri = URI.create(url);
+        this.authorization = "key=" + apiKey;
+        this.streams = new Semaphore(connections * streams);
+
+        // Responses are handled on the executor rather than the clients' selector threads, as handling a nack can
+        // block on requeueing the message.
+        ExecutorService executor = Threads.newTaskExecutor("FCM HTTP");
+        clients = new HttpClient[connections];
+        for (int i = 0; i < connections; i++) {
+            clients[i] = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_2)
+                    .connectTimeout(CONNECT_TIMEOUT)
+                    .executor(executor)
+                    .build();
+        }
+    }
+
+    @Override
+    public void start(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Start sending a message as soon as fewer than the permitted number of requests are awaiting an answer,
+     * blocking until then. The outcome is reported to the listener once FCM answers.
+     */
+    @Override
+    public boolean send(final DownstreamMessage message) throws InterruptedException {
+        long wait = message.getDeadline() - System.currentTimeMillis();
+        if (wait <= 0 || !streams.tryAcquire(wait, TimeUnit.MILLISECONDS)) {
+            return false;
+        }
+
+        HttpRequest request;
+        try {
+            request = HttpRequest.newBuilder(uri)
+                    .timeout(REQUEST_TIMEOUT)
+                    .header("Authorization", authorization)
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(encode(message)))
+                    .build();
+        } catch (RuntimeException e) {
+            streams.release();
+            throw e;
+        }
+
+        final long sentAt = System.nanoTime();
+        inFlight.incrementAndGet();
+
+        HttpClient client = clients[Math.floorMod(nextClient.getAndIncrement(), clients.length)];
+        client.sendAsync(request, HttpResponse.BodyHandlers.ofString()).whenComplete(
+                new BiConsumer<HttpResponse<String>, Throwable>() {
+                    @Override
+                    public void accept(HttpResponse<String> response, Throwable error) {
+                        inFlight.decrementAndGet();
+                        streams.release();
+
+                        if (error != null) {
+                            listener.failed(message, error instanceof CompletionException && error.getCause() != null
+                                    ? error.getCause() : error);
+                        } else {
+                            answered(message, response, System.nanoTime() - sentAt);
+                        }
+                    }
+                });
+
+        return true;
+    }
+
+    /**
+     * Report the outcome of a message from FCM's answer to its request.
+     */
+    private void answered(DownstreamMessage message, HttpResponse<String> response, long roundTripNanos) {
+        int status = response.statusCode();
+
+        if (status == 200) {
+            JsonObject result;
+            try {
+                result = jsonParser.parse(response.body()).getAsJsonObject();
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Malformed response from FCM for msg " + message.getMessageId() + ": "
+                        + response.body(), e);
+                listener.nacked(message, message.getTo(), "INTERNAL_SERVER_ERROR");
+                return;
+            }
+
+            // Messages to devices are answered with a result per recipient, messages to topics at the top level.
+            if (result.has("results")) {
+                JsonArray results = result.getAsJsonArray("results");
+                if (results.size() > 0) {
+                    result = results.get(0).getAsJsonObject();
+                }
+            }
+
+            if (result.has("error")) {
+                String error = result.get("error").getAsString();
+                String code = ERRORS.get(error);
+                logger.info("FCM refused msg " + message.getMessageId() + " to " + message.getTo() + ": " + error);
+                listener.nacked(message, message.getTo(), code != null ? code : error);
+            } else {
+                if (logger.isLoggable(Level.FINE)) {
+                    logger.fine("FCM accepted msg " + message.getMessageId() + " after "
+                            + (roundTripNanos / 1000000) + "ms");
+                }
+                listener.acked(message, roundTripNanos);
+            }
+        } else if (status == 400) {
+            logger.warning("FCM rejected msg " + message.getMessageId() + " as malformed: " + response.body());
+            listener.nacked(message, message.getTo(), "INVALID_JSON");
+        } else if (status == 401) {
+            logger.severe("FCM refused the server key, check GCM_API_KEY");
+            listener.nacked(message, message.getTo(), "AUTHENTICATION_FAILED");
+        } else if (status == 429 || status >= 500) {
+            // Backed off and retried like CCS's equivalent nacks, Retry-After is not honoured.
+            listener.nacked(message, message.getTo(),
+                    status == 500 ? "INTERNAL_SERVER_ERROR" : "SERVICE_UNAVAILABLE");
+        } else {
+            logger.warning("Unexpected HTTP " + status + " from FCM for msg " + message.getMessageId());
+            listener.nacked(message, message.getTo(), "HTTP_" + status);
+        }
+    }
+
+    /**
+     * Unwrap the JSON from a message's XMPP stanza, dropping the message_id which only CCS uses. Gson escapes <, >
+     * and &, so the JSON is the same in and out of the stanza.
+     */
+    static String encode(DownstreamMessage message) {
+        String stanza = message.getPayload();
+        StringBuilder json = new StringBuilder(stanza.length());
+        json.append(stanza, stanza.indexOf('{'), stanza.lastIndexOf('}') + 1);
+
+        String field = "\"message_id\":\"" + message.getMessageId() + "\"";
+        int start = json.indexOf(field);
+        if (start >= 0) {
+            int end = start + field.length();
+            if (json.charAt(start - 1) == ',') {
+                start--;
+            } else if (json.charAt(end) == ',') {
+                end++;
+            }
+            json.delete(start, end);
+        }
+
+        return json.toString();
+    }
+
+    @Override
+    public int connections() {
+        return clients.length;
+    }
+
+    @Override
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return Number of senders waiting for a request to be answered before they can send another.
+     */
+    @Override
+    public int queued() {
+        return streams.getQueueLength();
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright 2016 Jethro Carr. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jethrocarr.howalarming.gcmserver;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The CPU side of a messageAllClients broadcast: taking a snapshot of the registry and rendering the stanza for
+ * every registered device, as the outbound senders do before anything reaches CCS.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+@State(Scope.Benchmark)
+public class FanOutBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int clients;
+
+    private Gson gson;
+    private MessageIdGenerator messageIds;
+    private ClientRegistry registry;
+    private PushMessage message;
+
+    @Setup
+    public void setup() {
+        gson = new GsonBuilder().create();
+        messageIds = new MessageIdGenerator();
+        registry = RegistryBenchmark.populate(clients);
+
+        BeanstalkEvent event = new BeanstalkEvent();
+        new BeanstalkEventDecoder().decode(PushMessageBenchmark.EVENT, event);
+
+        message = new PushMessage();
+        message.fromBeanstalk(event);
+    }
+
+    @TearDown
+    public void tearDown() {
+        registry.close();
+    }
+
+    @Benchmark
+    public void broadcast(Blackhole blackhole) {
+        PushMessageTemplate template = new PushMessageTemplate(gson, message);
+
+        for (String to : registry.snapshot()) {
+            String messageId = messageIds.next();
+            blackhole.consume(new DownstreamMessage(messageId, to, template.render(to, messageId),
+                    message.time_to_live, DownstreamMessage.Priority.HIGH, message.createdAt));
+        }
+    }
+
+    /**
+     * The snapshot alone, which is cached until the registry next changes.
+     */
+    @Benchmark
+    public void snapshot(Blackhole blackhole) {
+        for (String to : registry.snapshot()) {
+            blackhole.consume(to);
+        }
+    }
+}
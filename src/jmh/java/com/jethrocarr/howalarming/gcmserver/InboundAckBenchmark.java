@@ -0,0 +1,82 @@
+/**
+ * Copyright 2016 Jethro Carr. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jethrocarr.howalarming.gcmserver;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading the routing fields out of the acks and nacks CCS sends for every downstream message, with the stanza
+ * listener's scan compared against parsing a JSON tree.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class InboundAckBenchmark {
+
+    static final String ACK = "{\"from\":\"" + StanzaBenchmark.TOKEN + "\",\"message_id\":\"aFIJdNG31T_UVs0Bn\","
+            + "\"message_type\":\"ack\"}";
+
+    static final String NACK = "{\"message_type\":\"nack\",\"message_id\":\"aFIJdNG31T_UVs0Bo\",\"from\":\""
+            + StanzaBenchmark.TOKEN + "\",\"error\":\"DEVICE_UNREGISTERED\","
+            + "\"error_description\":\"Device not registered\"}";
+
+    private final JsonParser jsonParser = new JsonParser();
+
+    @Benchmark
+    public void scanAck(Blackhole blackhole) {
+        GcmInboundMessage message = GcmInboundMessage.scan(ACK);
+        blackhole.consume(message.getMessageType());
+        blackhole.consume(message.getMessageId());
+        blackhole.consume(message.getFrom());
+    }
+
+    @Benchmark
+    public void scanNack(Blackhole blackhole) {
+        GcmInboundMessage message = GcmInboundMessage.scan(NACK);
+        blackhole.consume(message.getMessageType());
+        blackhole.consume(message.getMessageId());
+        blackhole.consume(message.getError());
+    }
+
+    /**
+     * How acks were read before the scan, for comparison.
+     */
+    @Benchmark
+    public void treeAck(Blackhole blackhole) {
+        JsonObject message = jsonParser.parse(ACK).getAsJsonObject();
+        blackhole.consume(message.get("message_type").getAsString());
+        blackhole.consume(message.get("message_id").getAsString());
+        blackhole.consume(message.get("from").getAsString());
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright 2016 Jethro Carr. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jethrocarr.howalarming.gcmserver;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding push messages to JSON, from a beanstalk event through to the template shared by a broadcast.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PushMessageBenchmark {
+
+    static final byte[] EVENT = ("{\"type\":\"alarm\",\"raw\":\"623\",\"code\":\"623\",\"message\":\"Zone 3 alarm\","
+            + "\"timestamp\":\"1478314982\"}").getBytes(StandardCharsets.UTF_8);
+
+    private Gson gson;
+    private BeanstalkEventDecoder decoder;
+    private BeanstalkEvent event;
+    private PushMessage message;
+
+    @Setup
+    public void setup() {
+        gson = new GsonBuilder().create();
+        decoder = new BeanstalkEventDecoder();
+        event = new BeanstalkEvent();
+        decoder.decode(EVENT, event);
+
+        message = new PushMessage();
+        message.fromBeanstalk(event);
+    }
+
+    @Benchmark
+    public String fromBeanstalk() {
+        PushMessage myPushMessage = new PushMessage();
+        myPushMessage.fromBeanstalk(event);
+        return gson.toJson(myPushMessage);
+    }
+
+    @Benchmark
+    public String decodeAndEncode() {
+        decoder.decode(EVENT, event);
+
+        PushMessage myPushMessage = new PushMessage();
+        myPushMessage.fromBeanstalk(event);
+        return gson.toJson(myPushMessage);
+    }
+
+    @Benchmark
+    public String alarmStatus() {
+        PushMessage myPushMessage = new PushMessage();
+        myPushMessage.alarmStatus(HowAlarmingConfig.ALARM_STATE_ARMED);
+        return gson.toJson(myPushMessage);
+    }
+
+    @Benchmark
+    public PushMessageTemplate template() {
+        return new PushMessageTemplate(gson, message);
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright 2016 Jethro Carr. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jethrocarr.howalarming.gcmserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registry lookups made for every message from a device, where onMessage registers the sender's token whether or
+ * not it is already known.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+@State(Scope.Benchmark)
+public class RegistryBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int clients;
+
+    private ClientRegistry registry;
+    private String[] tokens;
+
+    /**
+     * @return An in-memory registry holding the given number of realistic looking tokens.
+     */
+    static ClientRegistry populate(int clients) {
+        ClientRegistry registry = new ClientRegistry(new ClientRegistryStore.Memory());
+
+        for (int i = 0; i < clients; i++) {
+            registry.register(token(i));
+        }
+
+        return registry;
+    }
+
+    static String token(int i) {
+        return String.format("d%010d:APA91b", i) + StanzaBenchmark.TOKEN.substring(18);
+    }
+
+    @Setup
+    public void setup() {
+        registry = populate(clients);
+
+        // Look up copies of the tokens rather than the registered instances, as an incoming message would.
+        tokens = new String[Math.min(clients, 1024)];
+        for (int i = 0; i < tokens.length; i++) {
+            tokens[i] = token(i * (clients / tokens.length));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        registry.close();
+    }
+
+    private String randomToken() {
+        return tokens[ThreadLocalRandom.current().nextInt(tokens.length)];
+    }
+
+    @Benchmark
+    public boolean isRegistered() {
+        return registry.isRegistered(randomToken());
+    }
+
+    /**
+     * registerNewClient on a device that is already registered, by far the most common case.
+     */
+    @Benchmark
+    public boolean registerExisting() {
+        return registry.register(randomToken());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean registerExistingContended() {
+        return registry.register(randomToken());
+    }
+}
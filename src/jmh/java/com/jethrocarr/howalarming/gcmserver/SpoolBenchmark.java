@@ -0,0 +1,111 @@
+/**
+ * Copyright 2016 Jethro Carr. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jethrocarr.howalarming.gcmserver;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pushes recorded in the spool per second, each appended and then completed as if CCS had acked it, by a burst of
+ * beanstalk lanes appending at once. Every append waits on the disk, so throughput comes from how many appends
+ * share each fsync: with no commit delay only those arriving whilst a force is in progress are batched, a delay
+ * gathers more per force at the cost of latency. Run with -prof gc, and compare howalarming_spool_commits_total
+ * against the appends to see the batch sizes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx1g"})
+@State(Scope.Benchmark)
+public class SpoolBenchmark {
+
+    @Param({"0", "200", "1000"})
+    public long commitDelayMicros;
+
+    private File directory;
+    private OutboundSpool spool;
+    private byte[] payload;
+
+    @Setup
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("spool-benchmark").toFile();
+        spool = new OutboundSpool(directory, OutboundSpool.DEFAULT_SEGMENT_SIZE, commitDelayMicros);
+
+        // A typical alarm event, as Site records it.
+        PushMessage message = new PushMessage();
+        message.data.put("raw", "5000000000000000");
+        message.data.put("code", "ALARM");
+        message.data.put("type", "alarm");
+        message.data.put("message", "Alarm triggered in zone 4, Back Door");
+        message.data.put("timestamp", "1470000000");
+
+        Gson gson = new GsonBuilder().create();
+        payload = gson.toJson(message).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        spool.close();
+
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void appendAlone() throws IOException, InterruptedException {
+        append();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void appendConcurrently() throws IOException, InterruptedException {
+        append();
+    }
+
+    private void append() throws IOException, InterruptedException {
+        OutboundSpool.Entry entry = spool.append(DownstreamMessage.Priority.HIGH,
+                System.currentTimeMillis() + 3600000, payload);
+        entry.complete();
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright 2016 Jethro Carr. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jethrocarr.howalarming.gcmserver;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the stanza for a single downstream message with GcmServer.send, compared with rendering one from a
+ * pre-encoded template as ping replies and broadcasts do.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StanzaBenchmark {
+
+    static final String TOKEN = "dXdkX1234567890abcdefghijklmnopqrstuvwxyzABCDEFGHIJ:APA91bHPRgkF3JUikC4ENAHEeMrd41Zxv3h"
+            + "VZjC9KtT8OvPVGJ-hQMRKRrZuJAEcl7B338qju59zJMjw2DELjzEvxwYv7hH5Ynpc1ODQ0aT4U4OFEeco8ohsN5PjL1iC2dNtk2BAo";
+
+    private Gson gson;
+    private MessageIdGenerator messageIds;
+    private PushMessage status;
+    private PushMessageTemplate template;
+    private String payload;
+    private Site site;
+
+    @Setup
+    public void setup() {
+        gson = new GsonBuilder().create();
+        messageIds = new MessageIdGenerator();
+
+        status = new PushMessage();
+        status.alarmStatus(HowAlarmingConfig.ALARM_STATE_ARMED);
+
+        template = new PushMessageTemplate(gson, status);
+        payload = gson.toJson(status);
+
+        site = new Site(Site.DEFAULT_ID, false, Collections.<String>emptyList(), "commands", new ClientRegistry(),
+                new PushMessageDispatch(1, 1, PushMessageDispatch.OverflowPolicy.BLOCK), null, null);
+    }
+
+    /**
+     * How ping replies were built before the status was pre-encoded, from PushMessage through a JsonObject to the
+     * stanza.
+     */
+    @Benchmark
+    public String send() {
+        JsonObject message = new JsonParser().parse(gson.toJson(status)).getAsJsonObject();
+        return GcmServer.encodeStanza(gson, TOKEN, messageIds.next(), message);
+    }
+
+    /**
+     * The ping reply path, rendering the site's current pre-encoded status.
+     */
+    @Benchmark
+    public String pingReply() {
+        return site.getAlarmState().getStatus().render(TOKEN, messageIds.next());
+    }
+
+    @Benchmark
+    public String wrapWithXML() {
+        return GcmServer.wrapWithXML(payload);
+    }
+
+    @Benchmark
+    public String templateRender() {
+        return template.render(TOKEN, messageIds.next());
+    }
+
+    @Benchmark
+    public String messageId() {
+        return messageIds.next();
+    }
+}
@@ -0,0 +1,451 @@
+/**
+ * Copyright 2016 Jethro Carr. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jethrocarr.howalarming.gcmserver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Local stand-in for beanstalkd, implementing the subset of the protocol the beanstalk client uses: producing with
+ * use/put, consuming with watch/ignore/reserve/delete/release/bury/touch. Jobs are held in memory, delays are not
+ * honoured and buried jobs are simply discarded.
+ *
+ * Jobs reserved by a connection that closes are put back on their tube, as beanstalkd does.
+ */
+public class FakeBeanstalkd {
+
+    private static final Logger logger = Logger.getLogger("FakeBeanstalkd");
+
+    private static final String DEFAULT_TUBE = "default";
+
+
+    private final ServerSocket serverSocket;
+
+    // Everything below is guarded by the lock, which is also waited on by reserves.
+    private final Object lock = new Object();
+    private final Map<String, PriorityQueue<Job>> ready = new HashMap<String, PriorityQueue<Job>>();
+    private final Map<Long, Job> reserved = new HashMap<Long, Job>();
+    private long nextJobId;
+
+    private final AtomicLong puts = new AtomicLong();
+    private final AtomicLong deletes = new AtomicLong();
+
+    /**
+     * @param port Port to listen on, or 0 for any free port.
+     */
+    public FakeBeanstalkd(int port) throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        });
+        acceptThread.setName("Fake Beanstalkd Acceptor");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Put a job directly, as if a producer had connected and put it.
+     *
+     * @return The job's ID.
+     */
+    public long put(String tube, byte[] data) {
+        return put(tube, 1024, data);
+    }
+
+    /**
+     * @return Number of jobs put, over the protocol or directly.
+     */
+    public long puts() {
+        return puts.get();
+    }
+
+    /**
+     * @return Number of jobs deleted by consumers.
+     */
+    public long deletes() {
+        return deletes.get();
+    }
+
+    /**
+     * @return Jobs waiting to be reserved on the tube.
+     */
+    public int ready(String tube) {
+        synchronized (lock) {
+            PriorityQueue<Job> jobs = ready.get(tube);
+            return jobs == null ? 0 : jobs.size();
+        }
+    }
+
+    /**
+     * Take a job from the tube without it being reserved, eg to read commands the GCM server has posted.
+     *
+     * @return The job's data, or null if the tube is empty.
+     */
+    public byte[] poll(String tube) {
+        synchronized (lock) {
+            PriorityQueue<Job> jobs = ready.get(tube);
+            Job job = jobs == null ? null : jobs.poll();
+            return job == null ? null : job.data;
+        }
+    }
+
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    private long put(String tube, long priority, byte[] data) {
+        synchronized (lock) {
+            Job job = new Job(++nextJobId, tube, priority, data);
+            queue(job);
+            puts.incrementAndGet();
+            return job.id;
+        }
+    }
+
+    private void queue(Job job) {
+        PriorityQueue<Job> jobs = ready.get(job.tube);
+        if (jobs == null) {
+            jobs = new PriorityQueue<Job>();
+            ready.put(job.tube, jobs);
+        }
+
+        jobs.add(job);
+        lock.notifyAll();
+    }
+
+    /**
+     * Reserve the most urgent job from any of the watched tubes, waiting up to timeoutMillis for one.
+     *
+     * @return The job, or null if none became ready in time.
+     */
+    private Job reserve(Set<String> watching, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+
+        synchronized (lock) {
+            while (true) {
+                PriorityQueue<Job> best = null;
+
+                for (String tube : watching) {
+                    PriorityQueue<Job> jobs = ready.get(tube);
+
+                    if (jobs != null && !jobs.isEmpty()
+                            && (best == null || jobs.peek().compareTo(best.peek()) < 0)) {
+                        best = jobs;
+                    }
+                }
+
+                if (best != null) {
+                    Job job = best.poll();
+                    reserved.put(job.id, job);
+                    return job;
+                }
+
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return null;
+                }
+
+                lock.wait(remaining);
+            }
+        }
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+
+                Thread connectionThread = new Thread(new Connection(socket));
+                connectionThread.setName("Fake Beanstalkd Connection " + socket.getPort());
+                connectionThread.setDaemon(true);
+                connectionThread.start();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    logger.log(Level.WARNING, "Error accepting connection", e);
+                }
+            }
+        }
+    }
+
+
+    private static class Job implements Comparable<Job> {
+        final long id;
+        final String tube;
+        final byte[] data;
+        long priority;
+
+        Job(long id, String tube, long priority, byte[] data) {
+            this.id = id;
+            this.tube = tube;
+            this.priority = priority;
+            this.data = data;
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            if (priority != other.priority) {
+                return priority < other.priority ? -1 : 1;
+            }
+            return Long.compare(id, other.id);
+        }
+    }
+
+
+    /**
+     * A single client connection, handling one command at a time as beanstalkd does.
+     */
+    private class Connection implements Runnable {
+
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+
+        private String using = DEFAULT_TUBE;
+        private final Set<String> watching = new LinkedHashSet<String>();
+        private final List<Long> reservedHere = new ArrayList<Long>();
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+
+            watching.add(DEFAULT_TUBE);
+        }
+
+        @Override
+        public void run() {
+            try {
+                String line;
+
+                while ((line = readLine()) != null) {
+                    if (!command(line.split(" "))) {
+                        break;
+                    }
+                    out.flush();
+                }
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Connection closed", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                releaseAll();
+
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    logger.log(Level.FINE, "Error closing connection", e);
+                }
+            }
+        }
+
+        /**
+         * @return false once the connection should be closed.
+         */
+        private boolean command(String[] args) throws IOException, InterruptedException {
+            switch (args[0]) {
+                case "use":
+                    using = args[1];
+                    reply("USING " + using);
+                    break;
+
+                case "list-tube-used":
+                    reply("USING " + using);
+                    break;
+
+                case "put":
+                    byte[] data = readData(Integer.parseInt(args[4]));
+                    reply("INSERTED " + put(using, Long.parseLong(args[1]), data));
+                    break;
+
+                case "watch":
+                    watching.add(args[1]);
+                    reply("WATCHING " + watching.size());
+                    break;
+
+                case "ignore":
+                    if (watching.size() == 1 && watching.contains(args[1])) {
+                        reply("NOT_IGNORED");
+                    } else {
+                        watching.remove(args[1]);
+                        reply("WATCHING " + watching.size());
+                    }
+                    break;
+
+                case "reserve":
+                    reserved(reserve(watching, Long.MAX_VALUE / 2));
+                    break;
+
+                case "reserve-with-timeout":
+                    reserved(reserve(watching, Long.parseLong(args[1]) * 1000L));
+                    break;
+
+                case "delete":
+                    if (take(Long.parseLong(args[1])) != null) {
+                        deletes.incrementAndGet();
+                        reply("DELETED");
+                    } else {
+                        reply("NOT_FOUND");
+                    }
+                    break;
+
+                case "release":
+                    Job released = take(Long.parseLong(args[1]));
+                    if (released != null) {
+                        synchronized (lock) {
+                            released.priority = Long.parseLong(args[2]);
+                            queue(released);
+                        }
+                        reply("RELEASED");
+                    } else {
+                        reply("NOT_FOUND");
+                    }
+                    break;
+
+                case "bury":
+                    reply(take(Long.parseLong(args[1])) != null ? "BURIED" : "NOT_FOUND");
+                    break;
+
+                case "touch":
+                    synchronized (lock) {
+                        reply(reservedHere.contains(Long.parseLong(args[1])) ? "TOUCHED" : "NOT_FOUND");
+                    }
+                    break;
+
+                case "quit":
+                    return false;
+
+                default:
+                    reply("UNKNOWN_COMMAND");
+            }
+
+            return true;
+        }
+
+        private void reserved(Job job) throws IOException {
+            if (job == null) {
+                reply("TIMED_OUT");
+                return;
+            }
+
+            synchronized (lock) {
+                reservedHere.add(job.id);
+            }
+
+            reply("RESERVED " + job.id + " " + job.data.length);
+            out.write(job.data);
+            out.write('\r');
+            out.write('\n');
+        }
+
+        /**
+         * Remove a job reserved by this connection from the reserved set.
+         */
+        private Job take(long id) {
+            synchronized (lock) {
+                if (!reservedHere.remove(Long.valueOf(id))) {
+                    return null;
+                }
+                return reserved.remove(id);
+            }
+        }
+
+        private void releaseAll() {
+            synchronized (lock) {
+                for (Iterator<Long> i = reservedHere.iterator(); i.hasNext(); ) {
+                    Job job = reserved.remove(i.next());
+                    if (job != null) {
+                        queue(job);
+                    }
+                    i.remove();
+                }
+            }
+        }
+
+        private void reply(String line) throws IOException {
+            out.write(line.getBytes(StandardCharsets.US_ASCII));
+            out.write('\r');
+            out.write('\n');
+        }
+
+        private String readLine() throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+            int c;
+
+            while ((c = in.read()) >= 0) {
+                if (c == '\n') {
+                    byte[] bytes = line.toByteArray();
+                    int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+                    return new String(bytes, 0, length, StandardCharsets.US_ASCII);
+                }
+                line.write(c);
+            }
+
+            return null;
+        }
+
+        private byte[] readData(int length) throws IOException {
+            byte[] data = new byte[length];
+            int read = 0;
+
+            while (read < length) {
+                int count = in.read(data, read, length - read);
+                if (count < 0) {
+                    throw new EOFException("Connection closed mid job");
+                }
+                read += count;
+            }
+
+            // Trailing \r\n
+            in.read();
+            in.read();
+
+            return data;
+        }
+    }
+}
@@ -0,0 +1,581 @@
+/**
+ * Copyright 2016 Jethro Carr. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jethrocarr.howalarming.gcmserver;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Local stand-in for FCM's XMPP connection server, speaking just enough of CCS for the GCM server to run against
+ * it without a network: plain text XMPP with SASL PLAIN login and resource binding, downstream messages in the
+ * gcm extension answered with acks after a configurable latency, a configurable share of NACKs, and
+ * CONNECTION_DRAINING after a set number of messages on a connection.
+ *
+ * It also sends upstream messages from simulated devices, eg to register them.
+ */
+public class FakeCcsServer {
+
+    private static final Logger logger = Logger.getLogger("FakeCcsServer");
+
+    private static final String DOMAIN = "gcm.googleapis.com";
+
+    /**
+     * Told about every downstream message received from the GCM server.
+     */
+    public interface Listener {
+        void onDownstream(JsonObject message, long receivedNanos);
+    }
+
+
+    private final ServerSocket serverSocket;
+    private final String apiKey;
+    private final ScheduledExecutorService responder;
+    private final Gson gson = new GsonBuilder().create();
+
+    private final CopyOnWriteArrayList<Connection> connections = new CopyOnWriteArrayList<Connection>();
+    private final AtomicInteger nextConnection = new AtomicInteger();
+    private final AtomicLong nextMessageId = new AtomicLong();
+
+    private volatile Listener listener;
+    private volatile long ackLatencyMillis;
+    private volatile double nackRate;
+    private volatile String nackError = "SERVICE_UNAVAILABLE";
+    private volatile int drainAfter;
+    private volatile boolean drainAbruptly;
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong acked = new AtomicLong();
+    private final AtomicLong nacked = new AtomicLong();
+    private final AtomicLong drained = new AtomicLong();
+    private final AtomicLong upstreamAcked = new AtomicLong();
+
+    /**
+     * @param port Port to listen on, or 0 for any free port.
+     * @param apiKey API key the GCM server must log in with, or null to accept any.
+     */
+    public FakeCcsServer(int port, String apiKey) throws IOException {
+        this.apiKey = apiKey;
+
+        serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+
+        responder = Executors.newSingleThreadScheduledExecutor();
+
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        });
+        acceptThread.setName("Fake CCS Acceptor");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Delay between receiving a downstream message and acking (or nacking) it.
+     */
+    public void setAckLatencyMillis(long ackLatencyMillis) {
+        this.ackLatencyMillis = ackLatencyMillis;
+    }
+
+    /**
+     * Share of downstream messages to NACK rather than ack, between 0 and 1.
+     */
+    public void setNackRate(double nackRate, String nackError) {
+        this.nackRate = nackRate;
+        this.nackError = nackError;
+    }
+
+    /**
+     * Send CONNECTION_DRAINING on a connection once this many downstream messages have been received on it, and
+     * close it once they've all been answered. 0 never drains.
+     */
+    public void setDrainAfter(int drainAfter) {
+        this.drainAfter = drainAfter;
+    }
+
+    /**
+     * Close draining connections straight after sending CONNECTION_DRAINING, leaving whatever was still in flight
+     * on them unanswered.
+     */
+    public void setDrainAbruptly(boolean drainAbruptly) {
+        this.drainAbruptly = drainAbruptly;
+    }
+
+    /**
+     * @return Number of logged in connections that haven't been drained.
+     */
+    public int authenticated() {
+        int authenticated = 0;
+
+        for (Connection connection : connections) {
+            if (connection.bound && !connection.draining) {
+                authenticated++;
+            }
+        }
+
+        return authenticated;
+    }
+
+    public long received() {
+        return received.get();
+    }
+
+    public long acked() {
+        return acked.get();
+    }
+
+    public long nacked() {
+        return nacked.get();
+    }
+
+    public long drained() {
+        return drained.get();
+    }
+
+    /**
+     * @return Number of upstream messages the GCM server has acked.
+     */
+    public long upstreamAcked() {
+        return upstreamAcked.get();
+    }
+
+    /**
+     * Send an upstream message from a device, on the next connection in rotation.
+     *
+     * @return false if there is no connection to send it on.
+     */
+    public boolean sendUpstream(String from, JsonObject data) {
+        Connection[] open = connections.toArray(new Connection[0]);
+
+        for (int i = 0; i < open.length; i++) {
+            Connection connection = open[(nextConnection.getAndIncrement() & Integer.MAX_VALUE) % open.length];
+
+            if (connection.bound && !connection.draining) {
+                JsonObject message = new JsonObject();
+                message.addProperty("from", from);
+                message.addProperty("category", "com.jethrocarr.howalarming");
+                message.addProperty("message_id", "up-" + nextMessageId.incrementAndGet());
+                message.add("data", data);
+
+                return connection.sendGcm(message);
+            }
+        }
+
+        return false;
+    }
+
+    public void close() throws IOException {
+        serverSocket.close();
+        responder.shutdownNow();
+
+        for (Connection connection : connections) {
+            connection.close();
+        }
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+
+                Connection connection = new Connection(socket);
+                connections.add(connection);
+
+                Thread readerThread = new Thread(connection);
+                readerThread.setName("Fake CCS Connection " + socket.getPort());
+                readerThread.setDaemon(true);
+                readerThread.start();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    logger.log(Level.WARNING, "Error accepting connection", e);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * A single XMPP session with the GCM server.
+     */
+    private class Connection implements Runnable {
+
+        private final Socket socket;
+        private final Writer out;
+        private final XmppStreamReader in;
+
+        private volatile boolean bound;
+        private volatile boolean draining;
+        private boolean authenticated;
+
+        private final AtomicInteger downstream = new AtomicInteger();
+        private final AtomicInteger unanswered = new AtomicInteger();
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            this.in = new XmppStreamReader(new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)));
+        }
+
+        @Override
+        public void run() {
+            try {
+                String element;
+
+                while ((element = in.next()) != null) {
+                    if (element.equals(XmppStreamReader.STREAM_OPEN)) {
+                        openStream();
+                    } else if (element.equals(XmppStreamReader.STREAM_CLOSE)) {
+                        write("</stream:stream>");
+                        break;
+                    } else if (element.startsWith("<auth")) {
+                        authenticate(element);
+                    } else if (element.startsWith("<iq")) {
+                        iq(element);
+                    } else if (element.startsWith("<message")) {
+                        message(element);
+                    }
+                }
+            } catch (IOException e) {
+                if (!socket.isClosed()) {
+                    logger.log(Level.FINE, "Connection closed", e);
+                }
+            } finally {
+                close();
+            }
+        }
+
+        private void openStream() throws IOException {
+            StringBuilder response = new StringBuilder();
+
+            response.append("<stream:stream from='").append(DOMAIN).append("' id='")
+                    .append(Long.toHexString(ThreadLocalRandom.current().nextLong()))
+                    .append("' version='1.0' xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams'>");
+
+            response.append("<stream:features>");
+            if (!authenticated) {
+                response.append("<mechanisms xmlns='urn:ietf:params:xml:ns:xmpp-sasl'>")
+                        .append("<mechanism>PLAIN</mechanism></mechanisms>");
+            } else {
+                response.append("<bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'/>");
+            }
+            response.append("</stream:features>");
+
+            write(response.toString());
+        }
+
+        private void authenticate(String element) throws IOException {
+            String credentials = new String(Base64.getDecoder().decode(text(element).trim()), StandardCharsets.UTF_8);
+
+            // PLAIN is authzid NUL authcid NUL password.
+            String[] parts = credentials.split("\u0000", -1);
+            String password = parts.length == 3 ? parts[2] : "";
+
+            if (apiKey != null && !apiKey.equals(password)) {
+                write("<failure xmlns='urn:ietf:params:xml:ns:xmpp-sasl'><not-authorized/></failure>");
+                return;
+            }
+
+            // The client restarts the stream after success, which the reader sees as a new stream opening.
+            authenticated = true;
+            write("<success xmlns='urn:ietf:params:xml:ns:xmpp-sasl'/>");
+        }
+
+        private void iq(String element) throws IOException {
+            String id = attribute(element, "id");
+
+            if (element.contains("urn:ietf:params:xml:ns:xmpp-bind")) {
+                write("<iq id='" + id + "' type='result'><bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'><jid>"
+                        + "loadtest@" + DOMAIN + "/" + Integer.toHexString(socket.getPort()) + "</jid></bind></iq>");
+                bound = true;
+            } else {
+                write("<iq id='" + id + "' type='result'/>");
+            }
+        }
+
+        private void message(String element) {
+            int start = element.indexOf("<gcm");
+            int end = element.lastIndexOf("</gcm>");
+            if (start < 0 || end < 0) {
+                return;
+            }
+
+            start = element.indexOf('>', start) + 1;
+            JsonElement parsed = new JsonParser().parse(unescape(element.substring(start, end)));
+            if (!parsed.isJsonObject()) {
+                return;
+            }
+
+            final JsonObject message = parsed.getAsJsonObject();
+
+            if (message.has("message_type")) {
+                // The GCM server acking one of our upstream messages.
+                if ("ack".equals(message.get("message_type").getAsString())) {
+                    upstreamAcked.incrementAndGet();
+                }
+                return;
+            }
+
+            received.incrementAndGet();
+            unanswered.incrementAndGet();
+
+            Listener listener = FakeCcsServer.this.listener;
+            if (listener != null) {
+                listener.onDownstream(message, System.nanoTime());
+            }
+
+            final int count = downstream.incrementAndGet();
+
+            responder.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    respond(message, count);
+                }
+            }, ackLatencyMillis, TimeUnit.MILLISECONDS);
+        }
+
+        private void respond(JsonObject message, int count) {
+            // Closed whilst draining, the message goes unanswered.
+            if (socket.isClosed()) {
+                return;
+            }
+
+            JsonObject response = new JsonObject();
+            response.add("from", message.get("to"));
+            response.add("message_id", message.get("message_id"));
+
+            if (nackRate > 0 && ThreadLocalRandom.current().nextDouble() < nackRate) {
+                response.addProperty("message_type", "nack");
+                response.addProperty("error", nackError);
+                response.addProperty("error_description", "Simulated by the load test");
+                nacked.incrementAndGet();
+            } else {
+                response.addProperty("message_type", "ack");
+                acked.incrementAndGet();
+            }
+
+            sendGcm(response);
+
+            if (drainAfter > 0 && count == drainAfter) {
+                JsonObject control = new JsonObject();
+                control.addProperty("message_type", "control");
+                control.addProperty("control_type", "CONNECTION_DRAINING");
+
+                draining = true;
+                drained.incrementAndGet();
+                sendGcm(control);
+
+                if (drainAbruptly) {
+                    close();
+                    return;
+                }
+            }
+
+            if (unanswered.decrementAndGet() == 0 && draining) {
+                // Give the GCM server a moment to stop using the connection before closing it on them.
+                responder.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (unanswered.get() == 0) {
+                            close();
+                        }
+                    }
+                }, 1, TimeUnit.SECONDS);
+            }
+        }
+
+        boolean sendGcm(JsonObject message) {
+            try {
+                write("<message id='" + nextMessageId.incrementAndGet() + "'><gcm xmlns='google:mobile:data'>"
+                        + gson.toJson(message) + "</gcm></message>");
+                return true;
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Unable to send to GCM server", e);
+                return false;
+            }
+        }
+
+        private void write(String xml) throws IOException {
+            synchronized (out) {
+                out.write(xml);
+                out.flush();
+            }
+        }
+
+        void close() {
+            connections.remove(this);
+
+            try {
+                socket.close();
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Error closing connection", e);
+            }
+        }
+    }
+
+
+    private static String text(String element) {
+        int start = element.indexOf('>') + 1;
+        int end = element.lastIndexOf("</");
+
+        return start > 0 && end >= start ? element.substring(start, end) : "";
+    }
+
+    private static String attribute(String element, String name) {
+        int tagEnd = element.indexOf('>');
+
+        for (char quote : new char[]{'\'', '"'}) {
+            String prefix = " " + name + "=" + quote;
+            int start = element.indexOf(prefix);
+
+            if (start >= 0 && start < tagEnd) {
+                start += prefix.length();
+                return element.substring(start, element.indexOf(quote, start));
+            }
+        }
+
+        return "";
+    }
+
+    private static String unescape(String xml) {
+        if (xml.indexOf('&') < 0) {
+            return xml;
+        }
+
+        return xml.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"").replace("&apos;", "'")
+                .replace("&amp;", "&");
+    }
+
+
+    /**
+     * Splits an XMPP stream into its top level elements. Only as much XML as the GCM server sends is understood:
+     * no CDATA, comments or '>' within attribute values.
+     */
+    static class XmppStreamReader {
+
+        static final String STREAM_OPEN = "<stream:stream>";
+        static final String STREAM_CLOSE = "</stream:stream>";
+
+        private final BufferedReader in;
+
+        XmppStreamReader(BufferedReader in) {
+            this.in = in;
+        }
+
+        /**
+         * @return The next top level element, STREAM_OPEN or STREAM_CLOSE, or null at the end of the stream.
+         */
+        String next() throws IOException {
+            StringBuilder element = new StringBuilder();
+            int depth = 0;
+            int c;
+
+            while ((c = in.read()) >= 0) {
+                if (c != '<') {
+                    if (depth > 0) {
+                        element.append((char) c);
+                    }
+                    continue;
+                }
+
+                String tag = tag();
+
+                if (tag.startsWith("<?")) {
+                    continue;
+                }
+                if (tag.startsWith("<stream:stream")) {
+                    return STREAM_OPEN;
+                }
+                if (tag.startsWith("</stream:stream")) {
+                    return STREAM_CLOSE;
+                }
+
+                element.append(tag);
+
+                if (tag.startsWith("</")) {
+                    depth--;
+                } else if (!tag.endsWith("/>")) {
+                    depth++;
+                }
+
+                if (depth == 0) {
+                    return element.toString();
+                }
+            }
+
+            return null;
+        }
+
+        private String tag() throws IOException {
+            StringBuilder tag = new StringBuilder("<");
+            char quote = 0;
+            int c;
+
+            while ((c = in.read()) >= 0) {
+                tag.append((char) c);
+
+                if (quote != 0) {
+                    if (c == quote) {
+                        quote = 0;
+                    }
+                } else if (c == '\'' || c == '"') {
+                    quote = (char) c;
+                } else if (c == '>') {
+                    break;
+                }
+            }
+
+            return tag.toString();
+        }
+    }
+}
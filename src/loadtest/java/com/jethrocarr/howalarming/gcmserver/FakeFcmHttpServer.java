@@ -0,0 +1,233 @@
+/**
+ * Copyright 2016 Jethro Carr. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jethrocarr.howalarming.gcmserver;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Local stand-in for FCM's HTTP endpoint, answering each downstream message with a result after a configurable
+ * latency, with a configurable share of them refused. Requests are answered from a scheduler rather than holding a
+ * thread each, so many can be outstanding at once.
+ *
+ * The JDK's HTTP server only speaks HTTP/1.1, so clients asking for HTTP/2 fall back to a connection per request in
+ * flight here rather than multiplexing them.
+ */
+public class FakeFcmHttpServer {
+
+    private static final Logger logger = Logger.getLogger("FakeFcmHttpServer");
+
+    // NACK error codes as CCS gives them, and the HTTP endpoint's names for the same thing.
+    private static final Map<String, String> ERRORS = new HashMap<String, String>();
+
+    static {
+        // Otherwise each answer waits on a delayed ACK for the request body, capping a client at one request per
+        // connection every 40ms. Only takes effect if set before the first HTTP server in the JVM is created.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+
+        ERRORS.put("DEVICE_UNREGISTERED", "NotRegistered");
+        ERRORS.put("BAD_REGISTRATION", "InvalidRegistration");
+        ERRORS.put("SERVICE_UNAVAILABLE", "Unavailable");
+        ERRORS.put("INTERNAL_SERVER_ERROR", "InternalServerError");
+        ERRORS.put("DEVICE_MESSAGE_RATE_EXCEEDED", "DeviceMessageRateExceeded");
+    }
+
+    private final HttpServer server;
+    private final String apiKey;
+    private final ScheduledExecutorService responder;
+
+    private volatile FakeCcsServer.Listener listener;
+    private volatile long ackLatencyMillis;
+    private volatile double nackRate;
+    private volatile String nackError = "Unavailable";
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong acked = new AtomicLong();
+    private final AtomicLong nacked = new AtomicLong();
+    private final AtomicLong nextMessageId = new AtomicLong();
+
+    /**
+     * @param port Port to listen on, or 0 for any free port.
+     * @param apiKey Server key requests must be authorised with, or null to accept any.
+     */
+    public FakeFcmHttpServer(int port, String apiKey) throws IOException {
+        this.apiKey = apiKey;
+
+        responder = Executors.newSingleThreadScheduledExecutor();
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+        server.createContext("/fcm/send", new SendHandler());
+        server.setExecutor(Executors.newFixedThreadPool(4));
+        server.start();
+    }
+
+    /**
+     * @return URL to configure as GCM_HTTP_URL.
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/fcm/send";
+    }
+
+    /**
+     * Told about every downstream message received, in the same form as the fake CCS reports them.
+     */
+    public void setListener(FakeCcsServer.Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Delay between receiving a downstream message and answering it.
+     */
+    public void setAckLatencyMillis(long ackLatencyMillis) {
+        this.ackLatencyMillis = ackLatencyMillis;
+    }
+
+    /**
+     * Share of downstream messages to refuse, between 0 and 1.
+     *
+     * @param nackError Error to refuse them with, as CCS would give it.
+     */
+    public void setNackRate(double nackRate, String nackError) {
+        String error = ERRORS.get(nackError);
+
+        this.nackRate = nackRate;
+        this.nackError = error != null ? error : nackError;
+    }
+
+    public long received() {
+        return received.get();
+    }
+
+    public long acked() {
+        return acked.get();
+    }
+
+    public long nacked() {
+        return nacked.get();
+    }
+
+    public void close() {
+        server.stop(0);
+        responder.shutdownNow();
+    }
+
+
+    private class SendHandler implements HttpHandler {
+
+        @Override
+        public void handle(final HttpExchange exchange) throws IOException {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, "{}");
+                return;
+            }
+
+            if (apiKey != null && !("key=" + apiKey).equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+                respond(exchange, 401, "{\"error\":\"Unauthorized\"}");
+                return;
+            }
+
+            final JsonObject message;
+            try {
+                message = new JsonParser().parse(
+                        new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)).getAsJsonObject();
+            } catch (RuntimeException e) {
+                respond(exchange, 400, "{\"error\":\"InvalidJson\"}");
+                return;
+            }
+
+            received.incrementAndGet();
+
+            FakeCcsServer.Listener listener = FakeFcmHttpServer.this.listener;
+            if (listener != null) {
+                listener.onDownstream(message, System.nanoTime());
+            }
+
+            responder.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        respond(exchange, 200, result(message).toString());
+                    } catch (IOException e) {
+                        logger.log(Level.FINE, "Unable to answer request", e);
+                    }
+                }
+            }, ackLatencyMillis, TimeUnit.MILLISECONDS);
+        }
+
+        private JsonObject result(JsonObject message) {
+            boolean refused = nackRate > 0 && ThreadLocalRandom.current().nextDouble() < nackRate;
+            String messageId = "0:" + nextMessageId.incrementAndGet();
+
+            // Topic messages are answered at the top level, messages to devices with a result for each.
+            JsonObject result = new JsonObject();
+            if (refused) {
+                result.addProperty("error", nackError);
+                nacked.incrementAndGet();
+            } else {
+                result.addProperty("message_id", messageId);
+                acked.incrementAndGet();
+            }
+
+            if (message.has("to") && message.get("to").getAsString().startsWith("/topics/")) {
+                return result;
+            }
+
+            JsonArray results = new JsonArray();
+            results.add(result);
+
+            JsonObject response = new JsonObject();
+            response.addProperty("multicast_id", nextMessageId.get());
+            response.addProperty("success", refused ? 0 : 1);
+            response.addProperty("failure", refused ? 1 : 0);
+            response.addProperty("canonical_ids", 0);
+            response.add("results", results);
+            return response;
+        }
+
+        private void respond(HttpExchange exchange, int status, String body) throws IOException {
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, bytes.length);
+
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/**
+ * Copyright 2016 Jethro Carr. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jethrocarr.howalarming.gcmserver;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stand-in for the instance ID service's batchAdd and batchRemove calls, tracking which tokens are
+ * subscribed to which topics so that a fake CCS can tell how many devices a topic message reaches.
+ */
+public class FakeInstanceIdServer {
+
+    private final HttpServer server;
+    private final String apiKey;
+
+    private final ConcurrentMap<String, Set<String>> topics = new ConcurrentHashMap<String, Set<String>>();
+    private final AtomicLong calls = new AtomicLong();
+
+    /**
+     * @param port Port to listen on, or 0 for any free port.
+     * @param apiKey Server key calls must be authorised with, or null to accept any.
+     */
+    public FakeInstanceIdServer(int port, String apiKey) throws IOException {
+        this.apiKey = apiKey;
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/iid/v1:batchAdd", new BatchHandler(true));
+        server.createContext("/iid/v1:batchRemove", new BatchHandler(false));
+        server.setExecutor(Executors.newSingleThreadExecutor());
+        server.start();
+    }
+
+    /**
+     * @return Base URL to configure as IID_URL.
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * @param topic Topic as messages are addressed to it, eg /topics/howalarming.
+     * @return Number of tokens subscribed to the topic.
+     */
+    public int subscribers(String topic) {
+        Set<String> tokens = topics.get(topic);
+        return tokens == null ? 0 : tokens.size();
+    }
+
+    /**
+     * @return Number of batch calls made.
+     */
+    public long calls() {
+        return calls.get();
+    }
+
+    public void close() {
+        server.stop(0);
+    }
+
+    private Set<String> topic(String topic) {
+        Set<String> tokens = topics.get(topic);
+
+        if (tokens == null) {
+            topics.putIfAbsent(topic, ConcurrentHashMap.<String>newKeySet());
+            tokens = topics.get(topic);
+        }
+
+        return tokens;
+    }
+
+
+    private class BatchHandler implements HttpHandler {
+
+        private final boolean add;
+
+        BatchHandler(boolean add) {
+            this.add = add;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            calls.incrementAndGet();
+
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, "{}");
+                return;
+            }
+
+            if (apiKey != null && !("key=" + apiKey).equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+                respond(exchange, 401, "{\"error\":\"Unauthorized\"}");
+                return;
+            }
+
+            JsonObject request = new JsonParser().parse(
+                    new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)).getAsJsonObject();
+
+            Set<String> tokens = topic(request.get("to").getAsString());
+            JsonArray results = new JsonArray();
+
+            for (JsonElement token : request.getAsJsonArray("registration_tokens")) {
+                JsonObject result = new JsonObject();
+
+                if (add) {
+                    tokens.add(token.getAsString());
+                } else if (!tokens.remove(token.getAsString())) {
+                    result.addProperty("error", "NOT_FOUND");
+                }
+
+                results.add(result);
+            }
+
+            JsonObject response = new JsonObject();
+            response.add("results", results);
+            respond(exchange, 200, response.toString());
+        }
+
+        private void respond(HttpExchange exchange, int status, String body) throws IOException {
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, bytes.length);
+
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+}
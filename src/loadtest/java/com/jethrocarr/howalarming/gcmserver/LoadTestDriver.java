@@ -0,0 +1,537 @@
+/**
+ * Copyright 2016 Jethro Carr. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jethrocarr.howalarming.gcmserver;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the whole server end to end against a local fake CCS and fake beanstalkd: registers a number of simulated
+ * devices, injects alarm events into beanstalk at a target rate, and measures the time from each event being put
+ * to its downstream message reaching CCS for every device.
+ *
+ * Options are given as --name=value:
+ *
+ *   --devices       Simulated devices to register (default 100)
+ *   --rate          Alarm events injected per second (default 10)
+ *   --duration      Seconds to inject events for (default 10)
+ *   --connections   CCS connections the server opens, and HTTP/2 connections with --transport=http (default 2)
+ *   --transport     Send downstream messages over xmpp, or http to a fake FCM HTTP endpoint (default xmpp)
+ *   --ack-latency   Milliseconds before the fake CCS acks a message (default 5)
+ *   --nack-rate     Share of messages the fake CCS NACKs, 0 to 1 (default 0)
+ *   --nack-error    Error code sent with NACKs (default SERVICE_UNAVAILABLE)
+ *   --drain-after   Send CONNECTION_DRAINING after this many messages on a connection, 0 never (default 0)
+ *   --drain-abruptly Close a draining connection at once, leaving messages in flight on it unanswered (default false)
+ *   --thread-mode   Run the server's blocking work on platform or virtual threads (default platform)
+ *   --broadcast     Broadcast by fanout or via a topic, against a fake instance ID service (default fanout)
+ *   --sites         Sites to spread the devices and events across, each with its own tube (default 1)
+ *   --nodes         Servers to run as a cluster in this JVM, sharing the broadcasts between them (default 1)
+ *   --spool         Spool pushes to disk until acked, in a temporary directory per server (default false)
+ *   --verbose       Keep the server's own logging (default false)
+ */
+public class LoadTestDriver {
+
+    private static final Logger logger = Logger.getLogger("LoadTestDriver");
+
+    private static final String API_KEY = "loadtest";
+    private static final String SENDER_ID = "0";
+    private static final String CLUSTER_SECRET = "loadtest-cluster";
+    private static final String EVENTS_TUBE = "alert_gcm";
+    private static final String TOPIC = "loadtest";
+
+    private static final long SETUP_TIMEOUT_MILLIS = 30000;
+
+
+    private final int devices;
+    private final int rate;
+    private final int duration;
+    private final int connections;
+    private final String transport;
+    private final String threadMode;
+    private final String broadcast;
+    private final int sites;
+    private final int nodes;
+    private final boolean spool;
+
+    private final FakeCcsServer ccs;
+    // Fake FCM HTTP endpoint downstream messages are sent to instead of the fake CCS, with --transport=http.
+    private final FakeFcmHttpServer http;
+    private final FakeBeanstalkd beanstalkd;
+    private final FakeInstanceIdServer instanceId;
+
+    private final Metrics.Histogram latency = new Metrics.Histogram();
+    private final Metrics.Histogram ackRoundTrip = Metrics.histogram("gcm_ack_round_trip_seconds",
+            "Time from a downstream message being sent to FCM acking it.");
+
+    // System.nanoTime() each event was put at, indexed by the sequence number carried in its code.
+    private final AtomicLongArray putNanos;
+
+    public LoadTestDriver(Map<String, String> options) throws Exception {
+        devices = Integer.parseInt(option(options, "devices", "100"));
+        rate = Integer.parseInt(option(options, "rate", "10"));
+        duration = Integer.parseInt(option(options, "duration", "10"));
+        connections = Integer.parseInt(option(options, "connections", "2"));
+        transport = option(options, "transport", HowAlarmingConfig.GCM_TRANSPORT_XMPP);
+        threadMode = option(options, "thread-mode", Threads.MODE_PLATFORM);
+        broadcast = option(options, "broadcast", HowAlarmingConfig.BROADCAST_MODE_FANOUT);
+        sites = Math.max(1, Integer.parseInt(option(options, "sites", "1")));
+        nodes = Math.max(1, Integer.parseInt(option(options, "nodes", "1")));
+        spool = Boolean.parseBoolean(option(options, "spool", "false"));
+
+        putNanos = new AtomicLongArray(rate * duration);
+
+        FakeCcsServer.Listener listener = new FakeCcsServer.Listener() {
+            @Override
+            public void onDownstream(JsonObject message, long receivedNanos) {
+                recordLatency(message, receivedNanos);
+            }
+        };
+        long ackLatency = Long.parseLong(option(options, "ack-latency", "5"));
+        double nackRate = Double.parseDouble(option(options, "nack-rate", "0"));
+        String nackError = option(options, "nack-error", "SERVICE_UNAVAILABLE");
+
+        ccs = new FakeCcsServer(0, API_KEY);
+        ccs.setAckLatencyMillis(ackLatency);
+        ccs.setNackRate(nackRate, nackError);
+        ccs.setDrainAfter(Integer.parseInt(option(options, "drain-after", "0")));
+        ccs.setDrainAbruptly(Boolean.parseBoolean(option(options, "drain-abruptly", "false")));
+        ccs.setListener(listener);
+
+        // Devices still register over CCS, only the downstream messages move to HTTP.
+        if (HowAlarmingConfig.GCM_TRANSPORT_HTTP.equalsIgnoreCase(transport)) {
+            http = new FakeFcmHttpServer(0, API_KEY);
+            http.setAckLatencyMillis(ackLatency);
+            http.setNackRate(nackRate, nackError);
+            http.setListener(listener);
+        } else {
+            http = null;
+        }
+
+        beanstalkd = new FakeBeanstalkd(0);
+        instanceId = isTopic() ? new FakeInstanceIdServer(0, API_KEY) : null;
+
+        if (!Boolean.parseBoolean(option(options, "verbose", "false"))) {
+            quietLogging();
+        }
+    }
+
+    private static String option(Map<String, String> options, String name, String defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : value;
+    }
+
+    /**
+     * Keep the per message logging of the server out of the way of the results.
+     */
+    private static void quietLogging() {
+        Logger root = Logger.getLogger("");
+        root.setLevel(Level.WARNING);
+        logger.setLevel(Level.INFO);
+
+        for (Handler handler : root.getHandlers()) {
+            handler.setLevel(Level.INFO);
+        }
+    }
+
+    private void recordLatency(JsonObject message, long receivedNanos) {
+        JsonElement data = message.get("data");
+        if (data == null || !data.isJsonObject() || !data.getAsJsonObject().has("code")) {
+            return;
+        }
+
+        try {
+            int sequence = Integer.parseInt(data.getAsJsonObject().get("code").getAsString());
+            if (sequence >= 0 && sequence < putNanos.length()) {
+                latency.record(receivedNanos - putNanos.get(sequence));
+            }
+        } catch (NumberFormatException e) {
+            // Not one of our events, eg a ping reply.
+        }
+    }
+
+    public void run() throws Exception {
+        // Point the server at the fakes before it reads its configuration.
+        HowAlarmingConfig.GCM_HOST = "127.0.0.1";
+        HowAlarmingConfig.GCM_PORT = Integer.toString(ccs.getPort());
+        HowAlarmingConfig.GCM_TLS = "false";
+        HowAlarmingConfig.GCM_CONNECTIONS = Integer.toString(connections);
+        HowAlarmingConfig.GCM_TRANSPORT = transport;
+        if (http != null) {
+            HowAlarmingConfig.GCM_HTTP_URL = http.getUrl();
+        }
+        HowAlarmingConfig.BEANSTALK_HOST = "127.0.0.1";
+        HowAlarmingConfig.BEANSTALK_PORT = Integer.toString(beanstalkd.getPort());
+        HowAlarmingConfig.BEANSTALK_TUBES_EVENTS = EVENTS_TUBE;
+        HowAlarmingConfig.THREAD_MODE = threadMode;
+        HowAlarmingConfig.BROADCAST_MODE = broadcast;
+
+        if (sites > 1) {
+            StringBuilder ids = new StringBuilder();
+            for (int site = 0; site < sites; site++) {
+                ids.append(site == 0 ? "" : ",").append(siteId(site));
+            }
+            HowAlarmingConfig.SITES = ids.toString();
+        }
+
+        if (instanceId != null) {
+            HowAlarmingConfig.GCM_TOPIC = TOPIC;
+            HowAlarmingConfig.IID_URL = instanceId.getUrl();
+        }
+
+        if (nodes == 1) {
+            useSpool();
+            new HowAlarmingServer(API_KEY, SENDER_ID);
+        } else {
+            startCluster();
+        }
+
+        awaitConnections();
+        registerDevices();
+
+        if (instanceId != null) {
+            awaitSubscriptions();
+        }
+
+        // With a topic each event is one message to CCS, which fans it out to the devices itself.
+        long expected = 0;
+        for (int sequence = 0; sequence < putNanos.length(); sequence++) {
+            expected += isTopic() ? 1 : devicesAt(sequence % sites);
+        }
+        logger.info("Injecting " + putNanos.length() + " events at " + rate + "/s to " + devices
+                + " devices across " + sites + " site(s), " + expected + " downstream messages");
+
+        long start = System.nanoTime();
+        injectEvents(start);
+        long injected = System.nanoTime();
+
+        // Allow the backlog to drain for as long again as the injection took, plus some slack.
+        long drainDeadline = injected + (injected - start) + TimeUnit.SECONDS.toNanos(30);
+        while (acked() < expected && System.nanoTime() < drainDeadline) {
+            Thread.sleep(50);
+        }
+        long finished = System.nanoTime();
+
+        // Completions are recorded as the last acks for each push come in, give them a moment to land.
+        long spoolDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (spool && gauge("howalarming_spool_pending") > 0 && System.nanoTime() < spoolDeadline) {
+            Thread.sleep(50);
+        }
+
+        report(expected, finished - start);
+    }
+
+    /**
+     * Start a server per node, each one a member of the cluster on its own port with all the others as its peers,
+     * and wait for them to find each other. The servers share the static metrics, which show those of the last.
+     */
+    private void startCluster() throws IOException, InterruptedException {
+        String[] addresses = new String[nodes];
+        for (int node = 0; node < nodes; node++) {
+            try (ServerSocket socket = new ServerSocket(0)) {
+                addresses[node] = "127.0.0.1:" + socket.getLocalPort();
+            }
+        }
+
+        for (int node = 0; node < nodes; node++) {
+            StringBuilder peers = new StringBuilder();
+            for (int peer = 0; peer < nodes; peer++) {
+                if (peer != node) {
+                    peers.append(peers.length() == 0 ? "" : ",").append(addresses[peer]);
+                }
+            }
+
+            HowAlarmingConfig.CLUSTER_ADDRESS = addresses[node];
+            HowAlarmingConfig.CLUSTER_PEERS = peers.toString();
+            HowAlarmingConfig.CLUSTER_SECRET = CLUSTER_SECRET;
+            useSpool();
+            new HowAlarmingServer(API_KEY, SENDER_ID);
+        }
+
+        long deadline = System.currentTimeMillis() + SETUP_TIMEOUT_MILLIS;
+        while (gauge("howalarming_cluster_members") < nodes) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Only " + gauge("howalarming_cluster_members") + " of " + nodes
+                        + " cluster members joined");
+            }
+            Thread.sleep(50);
+        }
+
+        // The last member to start sees everyone, give the others a couple of heartbeats to catch up.
+        Thread.sleep(2000);
+        logger.info("Cluster of " + nodes + " members formed");
+    }
+
+    /**
+     * Give the next server started a spool of its own, if spooling.
+     */
+    private void useSpool() throws IOException {
+        if (!spool) {
+            return;
+        }
+
+        File directory = Files.createTempDirectory("howalarming-spool").toFile();
+        directory.deleteOnExit();
+        HowAlarmingConfig.SPOOL_PATH = directory.getPath();
+    }
+
+    private void awaitConnections() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + SETUP_TIMEOUT_MILLIS;
+
+        while (ccs.authenticated() < connections * nodes) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Only " + ccs.authenticated() + " of " + connections * nodes
+                        + " CCS connections logged in");
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    /**
+     * Register every device by sending an upstream message from it, as the app does when it starts.
+     */
+    private void registerDevices() throws InterruptedException {
+        logger.info("Registering " + devices + " devices");
+
+        long sent = 0;
+        for (int i = 0; i < devices; i++) {
+            JsonObject data = new JsonObject();
+            data.addProperty("registration_token", token(i));
+            if (sites > 1) {
+                data.addProperty("site", siteId(i % sites));
+            }
+
+            if (ccs.sendUpstream(token(i), data)) {
+                sent++;
+            }
+        }
+
+        long deadline = System.currentTimeMillis() + SETUP_TIMEOUT_MILLIS;
+        while (ccs.upstreamAcked() < sent || registered() < devices) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Only " + registered() + " of " + devices + " devices registered");
+            }
+            Thread.sleep(50);
+        }
+
+        if (nodes > 1) {
+            // Registrations reach the last member through replication, allow the others to catch up too.
+            Thread.sleep(1000);
+        }
+    }
+
+    /**
+     * Wait for the fake instance ID service to have every device subscribed to the topic, and the server to have
+     * seen it confirmed, so that no events are fanned out to devices directly.
+     */
+    private void awaitSubscriptions() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + SETUP_TIMEOUT_MILLIS;
+
+        while (subscribers() < devices || gauge("gcm_topic_subscribed") < devices) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Only " + subscribers() + " of " + devices
+                        + " devices subscribed to their site's topic");
+            }
+            Thread.sleep(50);
+        }
+
+        logger.info("Subscribed " + devices + " devices to " + sites + " topic(s) in " + instanceId.calls()
+                + " instance ID calls");
+    }
+
+    /**
+     * @return Devices subscribed to any of the sites' topics at the fake instance ID service.
+     */
+    private int subscribers() {
+        if (sites == 1) {
+            return instanceId.subscribers("/topics/" + TOPIC);
+        }
+
+        int subscribers = 0;
+        for (int site = 0; site < sites; site++) {
+            subscribers += instanceId.subscribers("/topics/" + TOPIC + "-" + siteId(site));
+        }
+        return subscribers;
+    }
+
+    private static String siteId(int site) {
+        return "site" + site;
+    }
+
+    /**
+     * @return Tube the site's events are put on, as the server derives it from the events tube and site ID.
+     */
+    private String eventsTube(int site) {
+        return sites == 1 ? EVENTS_TUBE : EVENTS_TUBE + "_" + siteId(site);
+    }
+
+    /**
+     * @return Devices registered with the site, which are dealt out to the sites in turn.
+     */
+    private int devicesAt(int site) {
+        return devices / sites + (site < devices % sites ? 1 : 0);
+    }
+
+    private boolean isTopic() {
+        return HowAlarmingConfig.BROADCAST_MODE_TOPIC.equalsIgnoreCase(broadcast);
+    }
+
+    private static String token(int i) {
+        return String.format("loadtest%08d:APA91bHPRgkF3JUikC4ENAHEeMrd41Zxv3hVZjC9KtT8OvPVGJ", i);
+    }
+
+    /**
+     * @return Devices in the server's registry, read from its metrics.
+     */
+    private static long registered() {
+        return gauge("howalarming_registered_clients");
+    }
+
+    /**
+     * @return Value of one of the server's unlabelled metrics, or 0 if it isn't registered.
+     */
+    private static long gauge(String name) {
+        StringBuilder metrics = new StringBuilder();
+        Metrics.write(metrics);
+
+        String prefix = "\n" + name + " ";
+        int start = metrics.indexOf(prefix);
+        if (start < 0) {
+            return 0;
+        }
+
+        start += prefix.length();
+        return Long.parseLong(metrics.substring(start, metrics.indexOf("\n", start)));
+    }
+
+    private long received() {
+        return http != null ? http.received() : ccs.received();
+    }
+
+    private long acked() {
+        return http != null ? http.acked() : ccs.acked();
+    }
+
+    private long nacked() {
+        return http != null ? http.nacked() : ccs.nacked();
+    }
+
+    private void injectEvents(long start) throws InterruptedException {
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+
+        for (int sequence = 0; sequence < putNanos.length(); sequence++) {
+            long due = start + sequence * intervalNanos;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+
+            String event = "{\"type\":\"alarm\",\"raw\":\"LOADTEST\",\"code\":\"" + sequence + "\","
+                    + "\"message\":\"Load test event " + sequence + "\",\"timestamp\":\""
+                    + (System.currentTimeMillis() / 1000L) + "\"}";
+
+            putNanos.set(sequence, System.nanoTime());
+            beanstalkd.put(eventsTube(sequence % sites), event.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private void report(long expected, long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+
+        StringBuilder report = new StringBuilder("\n");
+        report.append(String.format("Transport:           %s%n", transport));
+        report.append(String.format("Events put:          %d (%d deleted from beanstalk)%n",
+                beanstalkd.puts(), beanstalkd.deletes()));
+        report.append(String.format("Downstream expected: %d%n", expected));
+        report.append(String.format("Downstream received: %d (%d acked, %d nacked)%n",
+                received(), acked(), nacked()));
+        report.append(String.format("Connections drained: %d%n", ccs.drained()));
+        if (spool) {
+            report.append(String.format("Spooled:             %d pushes in %d commits, %d pending%n",
+                    gauge("howalarming_spool_appends_total"), gauge("howalarming_spool_commits_total"),
+                    gauge("howalarming_spool_pending")));
+        }
+        report.append(String.format("Elapsed:             %.2fs%n", seconds));
+        report.append(String.format("Throughput:          %.0f acked messages/s%n", acked() / seconds));
+        report.append(String.format("Put to FCM latency:  %s%n", quantiles(latency)));
+        report.append(String.format("Send to ack latency: %s%n", quantiles(ackRoundTrip)));
+
+        if (received() > expected) {
+            report.append(String.format("WARNING: %d more messages were received than expected%n",
+                    received() - expected));
+        }
+
+        if (acked() < expected) {
+            report.append(String.format("WARNING: %d messages were not acked before the drain deadline%n",
+                    expected - acked()));
+        }
+
+        System.out.print(report);
+    }
+
+    private static String quantiles(Metrics.Histogram histogram) {
+        return String.format("p50 %s  p90 %s  p99 %s  p99.9 %s", millis(histogram.valueAt(0.5)),
+                millis(histogram.valueAt(0.9)), millis(histogram.valueAt(0.99)), millis(histogram.valueAt(0.999)));
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.2fms", nanos / 1e6);
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                System.err.println("Unexpected argument " + arg + ", options are given as --name=value");
+                System.exit(2);
+            }
+
+            int equals = arg.indexOf('=');
+            if (equals < 0) {
+                options.put(arg.substring(2), "true");
+            } else {
+                options.put(arg.substring(2, equals), arg.substring(equals + 1));
+            }
+        }
+
+        int status = 0;
+        try {
+            new LoadTestDriver(options).run();
+        } catch (IllegalStateException e) {
+            logger.log(Level.SEVERE, "Load test failed", e);
+            status = 1;
+        }
+
+        // The server's threads never exit by themselves.
+        System.exit(status);
+    }
+}
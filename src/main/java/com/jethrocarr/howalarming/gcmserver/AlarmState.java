@@ -0,0 +1,145 @@
+/**
+ * Copyright 2016 Jethro Carr. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jethrocarr.howalarming.gcmserver;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+/**
+ * An immutable snapshot of what we know about a site's alarm: whether it is armed, the last event seen and when.
+ * Each Site publishes a new snapshot atomically for every event, so readers always see a consistent state without
+ * locking.
+ *
+ * The status message sent in reply to pings is encoded once whenever the armed state changes, so answering a ping
+ * only needs the recipient and message ID spliced in.
+ */
+public class AlarmState {
+
+    private static final Gson gson = new GsonBuilder().create();
+
+    // Site ID carried in status messages, or null if the server only serves a single site.
+    private final String site;
+    private final String state;
+    private final String lastEventType;
+    private final String lastEventTimestamp;
+    private final long sequence;
+
+    private final PushMessageTemplate status;
+    private final Integer statusTimeToLive;
+
+    private AlarmState(String site, String state) {
+        PushMessage statusMessage = new PushMessage();
+        statusMessage.alarmStatus(state);
+        statusMessage.site(site);
+
+        this.site = site;
+        this.state = state;
+        this.lastEventType = null;
+        this.lastEventTimestamp = null;
+        this.sequence = 0;
+        this.status = new PushMessageTemplate(gson, statusMessage);
+        this.statusTimeToLive = statusMessage.time_to_live;
+    }
+
+    private AlarmState(AlarmState previous, String state, String eventType, String eventTimestamp) {
+        this.site = previous.site;
+        this.state = state;
+        this.lastEventType = eventType;
+        this.lastEventTimestamp = eventTimestamp;
+        this.sequence = previous.sequence + 1;
+
+        if (state.equals(previous.state)) {
+            this.status = previous.status;
+            this.statusTimeToLive = previous.statusTimeToLive;
+        } else {
+            PushMessage statusMessage = new PushMessage();
+            statusMessage.alarmStatus(state);
+            statusMessage.site(site);
+
+            this.status = new PushMessageTemplate(gson, statusMessage);
+            this.statusTimeToLive = statusMessage.time_to_live;
+        }
+    }
+
+    /**
+     * @param site Site ID to carry in status messages, or null if the server only serves a single site.
+     * @return The state before any events have been seen.
+     */
+    public static AlarmState initial(String site) {
+        return new AlarmState(site, HowAlarmingConfig.ALARM_STATE_UNKNOWN);
+    }
+
+    /**
+     * @param type Type of the event.
+     * @param typeName Type exactly as given in the event.
+     * @param timestamp The event's timestamp.
+     * @return The state following this one once the event is recorded.
+     */
+    public AlarmState next(BeanstalkEvent.Type type, String typeName, String timestamp) {
+        String nextState = state;
+        if (type == BeanstalkEvent.Type.ARMED) {
+            nextState = HowAlarmingConfig.ALARM_STATE_ARMED;
+        } else if (type == BeanstalkEvent.Type.DISARMED) {
+            nextState = HowAlarmingConfig.ALARM_STATE_DISARMED;
+        }
+
+        return new AlarmState(this, nextState, typeName, timestamp);
+    }
+
+    /**
+     * @return One of the HowAlarmingConfig.ALARM_STATE_* constants.
+     */
+    public String getState() {
+        return state;
+    }
+
+    /**
+     * @return Type of the last event seen, or null if there hasn't been one since startup.
+     */
+    public String getLastEventType() {
+        return lastEventType;
+    }
+
+    /**
+     * @return Timestamp of the last event seen, or null if there hasn't been one since startup.
+     */
+    public String getLastEventTimestamp() {
+        return lastEventTimestamp;
+    }
+
+    /**
+     * @return Number of events seen since startup, so that two states can be told apart even if they are equal.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return The status message for this state, pre-encoded ready to send to a device.
+     */
+    public PushMessageTemplate getStatus() {
+        return status;
+    }
+
+    /**
+     * @return time_to_live of the status message.
+     */
+    public Integer getStatusTimeToLive() {
+        return statusTimeToLive;
+    }
+}
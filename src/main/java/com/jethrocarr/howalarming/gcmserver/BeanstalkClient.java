@@ -18,9 +18,14 @@
 package com.jethrocarr.howalarming.gcmserver;
 
 import com.dinstone.beanstalkc.*;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
 
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -31,10 +36,32 @@ public class BeanstalkClient extends HowAlarmingConfig {
 
     private static final Logger logger = Logger.getLogger("BeanstalkClient");
 
+    private static final int RESERVE_TIMEOUT_SECONDS = 1;
+    private static final long INITIAL_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 30000;
+    private static final int LANE_QUEUE_SIZE = 64;
+
+    private static final Metrics.Counter reconnects = Metrics.counter("beanstalk_reconnects_total",
+            "Reconnections made to beanstalk after a connection was lost.");
+    private static final Metrics.Counter invalidEvents = Metrics.counter("beanstalk_invalid_events_total",
+            "Jobs read from the events tubes that could not be decoded.");
+    private static final Metrics.Counter unknownSiteEvents = Metrics.counter("beanstalk_unknown_site_events_total",
+            "Events read from beanstalk for a site that isn't configured.");
+
     private Configuration beanstalkConfig;
     private BeanstalkClientFactory beanstalkFactory;
+    private EventLane[] lanes;
+
+    // Sites by ID, and the producer posting each site's commands.
+    private final Map<String, Site> sites;
+    private final Map<String, BeanstalkCommandProducer> commandProducers;
+
+    /**
+     * @param sites Sites to read events for and post commands from, by ID.
+     */
+    public BeanstalkClient(Map<String, Site> sites) {
+        this.sites = sites;
 
-    public BeanstalkClient() {
         // Connect to beanstalk queue
         logger.info("Listening to beanstalk queue on "+ BEANSTALK_HOST +":"+ BEANSTALK_PORT);
 
@@ -44,131 +71,289 @@ public class BeanstalkClient extends HowAlarmingConfig {
 
         beanstalkFactory = new BeanstalkClientFactory(beanstalkConfig);
 
-        // Launch the tube listener in a dedicated thread.
-        BeanstalkClientListener beanstalkIncoming = new BeanstalkClientListener();
+        commandProducers = new HashMap<String, BeanstalkCommandProducer>();
+        for (Site site : sites.values()) {
+            commandProducers.put(site.getId(), new BeanstalkCommandProducer(beanstalkFactory, site.getCommandsTube(),
+                    Integer.parseInt(BEANSTALK_PRODUCERS)));
+        }
 
+        // Launch the lanes that events are processed on.
+        lanes = new EventLane[Math.max(1, Integer.parseInt(BEANSTALK_CONSUMERS))];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new EventLane();
 
-        Thread beanstalkClientThread = new Thread(beanstalkIncoming);
-        beanstalkClientThread.setName("Beanstalk Queue Reader");
-        beanstalkClientThread.start();
+            Threads.newThread("Beanstalk Event Worker " + i, lanes[i]).start();
+        }
+    }
 
+    /**
+     * Start reading events, once everything they are to be broadcast through is ready.
+     */
+    public void start() {
+        // A tube shared by several sites is only read once, its events need to say which site they're for.
+        Map<String, Site> tubes = new LinkedHashMap<String, Site>();
+        for (Site site : sites.values()) {
+            for (String tube : site.getEventTubes()) {
+                if (!tubes.containsKey(tube)) {
+                    tubes.put(tube, site);
+                }
+            }
+        }
 
+        // Launch a listener for each events tube in a dedicated thread. beanstalkc holds a monitor whilst it waits on
+        // the socket, so these are always platform threads.
+        for (Map.Entry<String, Site> tube : tubes.entrySet()) {
+            BeanstalkClientListener beanstalkIncoming = new BeanstalkClientListener(tube.getKey(), tube.getValue());
+            Threads.newPlatformThread("Beanstalk Queue Reader " + tube.getKey(), beanstalkIncoming).start();
+        }
     }
 
     /**
      * The beanstalkPost method is called via the GCM server when a new (valid) command is received from a mobile
-     * device via GCM. It takes the message and pops it onto the queue(s) for the alarm to action.
+     * device via GCM. It takes the message and queues it to be popped onto the site's queue for its alarm to
+     * action, without waiting on beanstalk.
      */
-    public void beanstalkPost(String message) {
-        logger.info("Posting message to beanstalk: " + message);
-
-        boolean success = false;
-        while (!success) {
-
-            try {
-                // TODO: hard coded for testing, agwghgi
-                logger.info("Pushing message to tube: "+ BEANSTALK_TUBES_COMMANDS);
-                JobProducer producer = beanstalkFactory.createJobProducer(BEANSTALK_TUBES_COMMANDS);
-                producer.putJob(0, 0, 300, message.getBytes());
+    public void beanstalkPost(Site site, String message) {
+        logger.info("Posting message to beanstalk for site " + site + ": " + message);
+        commandProducers.get(site.getId()).post(message);
+    }
 
-                // Sad that Java doesn't have a proper re-try catch and that we have to resort to this :-(
-                success = true;
-            } catch (ConnectionException e) {
-                logger.log(Level.SEVERE, "Unable to establish a connection to Beanstalk, retrying in 30 seconds", e);
+    /**
+     * @return Number of commands waiting to be posted to beanstalk, across all sites.
+     */
+    public int commandQueueDepth() {
+        int depth = 0;
 
-                // 30 second sleep between retries to avoid cpu going crazy ;-)
-                try {
-                    Thread.sleep(30000);
-                } catch (InterruptedException ex) {
-                    Thread.currentThread().interrupt();
-                }
-            }
+        for (BeanstalkCommandProducer commandProducer : commandProducers.values()) {
+            depth += commandProducer.queueDepth();
         }
 
+        return depth;
     }
 
 
     /**
-     * The listener runs long polls (60 seconds) in a loop waiting for any messages from the queue. Upon receiving a
-     * message, it broadcasts it to all registered clients via the GCM network.
+     * The listener reserves messages from a single events tube in a loop. Upon receiving a message, it hands it to
+     * the lane for its site and type to be broadcast to the site's registered clients via the GCM network. Jobs are
+     * deleted from the listener's own connection once their lane has finished with them.
      */
     public class BeanstalkClientListener implements Runnable {
 
+        private final String tube;
+
+        // Site that events which don't name one belong to.
+        private final Site tubeSite;
+
+        // Reused for every job this listener reads.
+        private final BeanstalkEventDecoder decoder;
+        private final BeanstalkEvent event;
+
+        // Jobs that lanes have finished processing, to be deleted from beanstalk by this listener.
+        private final ConcurrentLinkedQueue<Long> completed;
+
+        public BeanstalkClientListener(String tube, Site tubeSite) {
+            this.tube = tube;
+            this.tubeSite = tubeSite;
+            this.completed = new ConcurrentLinkedQueue<Long>();
+            this.decoder = new BeanstalkEventDecoder();
+            this.event = new BeanstalkEvent();
+        }
+
         public void run() {
 
-            // TODO: hardcoded
-            logger.info("Running Beanstalk listener against alert_gcm");
-            JobConsumer consumer = beanstalkFactory.createJobConsumer("alert_gcm");
+            logger.info("Running Beanstalk listener against " + tube);
+            JobConsumer consumer = null;
+            long backoff = INITIAL_BACKOFF_MILLIS;
+            boolean lost = false;
 
-            while (true) {
+            while (!Thread.currentThread().isInterrupted()) {
 
                 // Poll for new messages to process
                 try {
-                    Job job = consumer.reserveJob(60);
+                    if (consumer == null) {
+                        consumer = beanstalkFactory.createJobConsumer(tube);
 
-                    if (job != null) {
-                        // Obtain the message and push to all clients
-
-                        // TODO: This could almost certainly be re-worked into less mess
-                        String message = new String(job.getData());
-                        JsonObject messageJson;
-
-                        try {
-                            messageJson = new JsonParser().parse(message).getAsJsonObject();
-                            String messageType = messageJson.get("type").getAsString();
-
-                            // Is this a message type we actually want to send?
-                            // TODO: This should be loaded from config.
-                            switch (messageType) {
-                                case "alarm":
-                                case "recovery":
-                                case "fault":
-                                case "armed":
-                                case "disarmed":
-                                    // Valid message type for alerting, send.
-                                    PushMessage myPushMessage = new PushMessage();
-                                    myPushMessage.fromBeanstalk(messageJson);
-
-                                    // We need to get our PushMesaage through to the GCM server in another
-                                    // thread, so we use an observer to trigger an update on an event.
-                                    messageAllClients.send(myPushMessage);
-
-                                    // Update the in-memory state
-                                    if (messageType.equals("armed")) {
-                                        stateArmed = ALARM_STATE_ARMED;
-                                    }
-                                    if (messageType.equals("disarmed")) {
-                                        stateArmed = ALARM_STATE_DISARMED;
-                                    }
-
-                                    break;
-
-                                default:
-                                    logger.log(Level.INFO, "Not transmitting event of type: " + messageJson.get("type"));
-                                    break;
-
-                            }
-
-                        } catch (java.lang.IllegalStateException e) {
-                            logger.log(Level.WARNING, "Received invalid JSON message, deleting and skipping " + message, e);
+                        if (lost) {
+                            logger.info("Reconnected to Beanstalk tube " + tube);
+                            reconnects.increment();
+                            lost = false;
                         }
+                    }
+
+                    deleteCompleted(consumer);
 
-                        // Delete old message
-                        consumer.deleteJob(job.getId());
+                    // Keep the poll short so that completed jobs are deleted promptly.
+                    Job job = consumer.reserveJob(RESERVE_TIMEOUT_SECONDS);
+
+                    if (job != null) {
+                        dispatch(consumer, job);
                     }
+
+                    backoff = INITIAL_BACKOFF_MILLIS;
                 } catch (ConnectionException e) {
-                    logger.log(Level.SEVERE, "Unable to establish a connection to Beanstalk, retrying in 30 seconds", e);
+                    logger.log(Level.SEVERE, "Unable to establish a connection to Beanstalk, retrying in "
+                            + backoff + "ms", e);
+
+                    // Any jobs reserved on the old connection are released by beanstalk and will be delivered
+                    // again, so there is nothing left for us to delete.
+                    completed.clear();
+
+                    close(consumer);
+                    consumer = null;
+                    lost = true;
 
-                    // 30 second sleep between retries to avoid cpu going crazy ;-)
                     try {
-                        Thread.sleep(30000);
+                        Thread.sleep(backoff);
                     } catch (InterruptedException ex) {
                         Thread.currentThread().interrupt();
                     }
+                    backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            close(consumer);
+        }
+
+        /**
+         * Delete the jobs lanes have finished with, before beanstalk's time-to-run releases them to be read again.
+         */
+        private void deleteCompleted(JobConsumer consumer) {
+            Long completedId;
+            while ((completedId = completed.poll()) != null) {
+                consumer.deleteJob(completedId);
+            }
+        }
+
+        private void close(JobConsumer consumer) {
+            if (consumer == null) {
+                return;
+            }
+
+            try {
+                consumer.close();
+            } catch (RuntimeException e) {
+                logger.log(Level.FINE, "Error closing beanstalk consumer", e);
+            }
+        }
+
+        private void dispatch(JobConsumer consumer, final Job job) throws InterruptedException {
+            // Obtain the message and push to all clients
+            if (!decoder.decode(job.getData(), event)) {
+                invalidEvents.increment();
+                logger.log(Level.WARNING, "Received invalid event (" + event.getError() + "), deleting and skipping "
+                        + new String(job.getData(), StandardCharsets.UTF_8));
+                completed.add(job.getId());
+                return;
+            }
+
+            final Site site = event.getSite() == null ? tubeSite : sites.get(event.getSite());
+            if (site == null) {
+                unknownSiteEvents.increment();
+                logger.log(Level.WARNING, "Received event for unknown site " + event.getSite() + " on tube " + tube
+                        + ", deleting and skipping");
+                completed.add(job.getId());
+                return;
+            }
+
+            final BeanstalkEvent.Type messageType = event.getType();
+
+            // Is this a message type we actually want to send?
+            // TODO: This should be loaded from config.
+            if (!messageType.isTransmitted()) {
+                logger.log(Level.INFO, "Not transmitting event of type: " + event.getTypeName());
+                completed.add(job.getId());
+                return;
+            }
+
+            // The event is reused for the next job, so package it up before handing over to the lane.
+            final PushMessage myPushMessage = new PushMessage();
+            myPushMessage.fromBeanstalk(event);
+            site.tag(myPushMessage);
+
+            Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    // A job whose event didn't make it onto the dispatch is left for beanstalk to release again.
+                    if (processEvent(site, messageType, myPushMessage)) {
+                        completed.add(job.getId());
+                    }
                 }
+            };
+
+            // Whilst the lane is full, carry on deleting the jobs it finishes so they don't outlive their
+            // time-to-run and get broadcast again.
+            EventLane lane = laneFor(site, messageType);
+            while (!lane.offer(task, RESERVE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                deleteCompleted(consumer);
             }
+        }
+    }
+
 
-            // No need to close consumer, we listen until the app is terminated.
+    /**
+     * Events for the same site and type go through the same lane so they are processed in order, whilst
+     * unrelated events can be processed in parallel on other lanes. Arming and disarming both change the alarm
+     * state, so they always share a lane.
+     */
+    private EventLane laneFor(Site site, BeanstalkEvent.Type messageType) {
+        String orderingKey = messageType.isStateChange() ? "state" : messageType.toString();
+
+        int hash = (site.getId() + ":" + orderingKey).hashCode();
+        return lanes[(hash & Integer.MAX_VALUE) % lanes.length];
+    }
+
+
+    /**
+     * Broadcast a valid event to the site's clients and track its alarm state.
+     *
+     * @return false if the event couldn't be queued for broadcast, and so its job mustn't be deleted.
+     */
+    private boolean processEvent(Site site, BeanstalkEvent.Type messageType, PushMessage myPushMessage) {
+        // We need to get our PushMesaage through to the GCM server in another
+        // thread, so we queue it on the site's dispatch. If a spool is configured the message is recorded
+        // there first, as the job is deleted as soon as we return.
+        try {
+            site.dispatch(myPushMessage);
+        } catch (InterruptedException e) {
+            logger.warning("Interrupted whilst queuing event of type: " + messageType);
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        // Update the in-memory state
+        site.record(messageType, myPushMessage.data.get("type"), myPushMessage.data.get("timestamp"));
+        return true;
+    }
+
+
+    /**
+     * A single worker thread processing events strictly in the order they were queued. The queue is bounded, so a
+     * lane that falls behind holds up the listeners feeding it rather than buffering without limit.
+     */
+    private static class EventLane implements Runnable {
+
+        private final ArrayBlockingQueue<Runnable> events = new ArrayBlockingQueue<Runnable>(LANE_QUEUE_SIZE);
+
+        /**
+         * @return false if the lane was still full once the timeout passed.
+         */
+        public boolean offer(Runnable event, long timeout, TimeUnit unit) throws InterruptedException {
+            return events.offer(event, timeout, unit);
+        }
+
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    events.take().run();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (RuntimeException e) {
+                    logger.log(Level.SEVERE, "Unexpected error processing beanstalk event", e);
+                }
+            }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,185 @@
+/**
+ * Copyright 2016 Jethro Carr. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jethrocarr.howalarming.gcmserver;
+
+import com.dinstone.beanstalkc.BeanstalkClientFactory;
+import com.dinstone.beanstalkc.ConnectionException;
+import com.dinstone.beanstalkc.JobProducer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Posts commands from the mobile apps onto the beanstalk commands tube without blocking the caller.
+ *
+ * Commands are handed off to a bounded queue which a small pool of workers drain, each holding a long lived
+ * producer connection to beanstalk that is reused between commands. A worker takes everything queued at once and
+ * puts it back-to-back on its connection. If beanstalk is unavailable the workers keep retrying in the
+ * background; once the queue is full new commands are rejected rather than blocking the XMPP side.
+ */
+public class BeanstalkCommandProducer {
+
+    private static final Logger logger = Logger.getLogger("BeanstalkCommandProducer");
+
+    private static final int QUEUE_SIZE = 256;
+    private static final int MAX_BATCH = 32;
+
+    private static final long INITIAL_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 30000;
+
+    // Job settings, as previously used for commands: default priority, no delay and 5 minutes to run.
+    private static final int JOB_PRIORITY = 0;
+    private static final int JOB_DELAY = 0;
+    private static final int JOB_TTR = 300;
+
+    private static final Metrics.Counter reconnects = Metrics.counter("beanstalk_reconnects_total",
+            "Reconnections made to beanstalk after a connection was lost.");
+
+    private final BeanstalkClientFactory beanstalkFactory;
+    private final String tube;
+    private final ArrayBlockingQueue<String> commands;
+    private final AtomicLong rejected;
+
+    public BeanstalkCommandProducer(BeanstalkClientFactory beanstalkFactory, String tube, int workers) {
+        this.beanstalkFactory = beanstalkFactory;
+        this.tube = tube;
+
+        commands = new ArrayBlockingQueue<String>(QUEUE_SIZE);
+        rejected = new AtomicLong();
+
+        // beanstalkc holds a monitor whilst it waits on the socket, so these are always platform threads.
+        for (int i = 0; i < Math.max(1, workers); i++) {
+            Thread worker = Threads.newPlatformThread("Beanstalk Command Producer " + tube + " " + i, new Worker());
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    /**
+     * Queue a command to be posted to beanstalk.
+     *
+     * @return false if the queue is full and the command was rejected.
+     */
+    public boolean post(String command) {
+        if (commands.offer(command)) {
+            return true;
+        }
+
+        rejected.incrementAndGet();
+        logger.severe("Beanstalk command queue is full, rejecting command: " + command);
+        return false;
+    }
+
+    /**
+     * @return Number of commands waiting to be posted.
+     */
+    public int queueDepth() {
+        return commands.size();
+    }
+
+    /**
+     * @return Number of commands rejected because the queue was full.
+     */
+    public long rejected() {
+        return rejected.get();
+    }
+
+
+    private class Worker implements Runnable {
+
+        private JobProducer producer;
+
+        // Whether the connection was lost, so the next one made counts as a reconnect.
+        private boolean lost;
+
+        @Override
+        public void run() {
+            List<String> batch = new ArrayList<String>(MAX_BATCH);
+
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    batch.add(commands.take());
+                    commands.drainTo(batch, MAX_BATCH - 1);
+
+                    putAll(batch);
+                    batch.clear();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            close();
+        }
+
+        /**
+         * Put every command in the batch, reconnecting and retrying with backoff until beanstalk accepts them.
+         */
+        private void putAll(List<String> batch) throws InterruptedException {
+            long backoff = INITIAL_BACKOFF_MILLIS;
+            int posted = 0;
+
+            while (posted < batch.size()) {
+                try {
+                    if (producer == null) {
+                        producer = beanstalkFactory.createJobProducer(tube);
+
+                        if (lost) {
+                            logger.info("Reconnected to Beanstalk tube " + tube);
+                            reconnects.increment();
+                            lost = false;
+                        }
+                    }
+
+                    String command = batch.get(posted);
+                    producer.putJob(JOB_PRIORITY, JOB_DELAY, JOB_TTR, command.getBytes(StandardCharsets.UTF_8));
+                    logger.info("Posted command to tube " + tube + ": " + command);
+
+                    posted++;
+                    backoff = INITIAL_BACKOFF_MILLIS;
+                } catch (ConnectionException e) {
+                    logger.log(Level.SEVERE, "Unable to establish a connection to Beanstalk, retrying in "
+                            + backoff + "ms", e);
+
+                    close();
+                    lost = true;
+                    Thread.sleep(backoff);
+                    backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+                }
+            }
+        }
+
+        private void close() {
+            if (producer == null) {
+                return;
+            }
+
+            try {
+                producer.close();
+            } catch (RuntimeException e) {
+                logger.log(Level.FINE, "Error closing beanstalk producer", e);
+            }
+
+            producer = null;
+        }
+    }
+}
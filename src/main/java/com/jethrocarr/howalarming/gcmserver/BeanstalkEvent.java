@@ -0,0 +1,140 @@
+/**
+ * Copyright 2016 Jethro Carr. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jethrocarr.howalarming.gcmserver;
+
+/**
+ * An alarm event read from the beanstalk events tube, in the documented HowAlarming queue format. Instances are
+ * reused between jobs by BeanstalkEventDecoder, so anything kept beyond processing the job must be copied out.
+ */
+public class BeanstalkEvent {
+
+    public enum Type {
+        ALARM("alarm", true),
+        RECOVERY("recovery", true),
+        FAULT("fault", true),
+        ARMED("armed", true),
+        DISARMED("disarmed", true),
+        // Any other event type, which we don't send to devices.
+        OTHER(null, false);
+
+        private final String name;
+        private final boolean transmitted;
+
+        Type(String name, boolean transmitted) {
+            this.name = name;
+            this.transmitted = transmitted;
+        }
+
+        /**
+         * @return true if events of this type should be pushed to devices.
+         */
+        public boolean isTransmitted() {
+            return transmitted;
+        }
+
+        /**
+         * @return true if events of this type change whether the alarm is armed.
+         */
+        public boolean isStateChange() {
+            return this == ARMED || this == DISARMED;
+        }
+
+        public static Type fromString(String name) {
+            switch (name) {
+                case "alarm":
+                    return ALARM;
+                case "recovery":
+                    return RECOVERY;
+                case "fault":
+                    return FAULT;
+                case "armed":
+                    return ARMED;
+                case "disarmed":
+                    return DISARMED;
+                default:
+                    return OTHER;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name != null ? name : "other";
+        }
+    }
+
+    Type type;
+    String typeName;
+    String raw;
+    String code;
+    String message;
+    String timestamp;
+    String site;
+    String error;
+
+    void reset() {
+        type = null;
+        typeName = null;
+        raw = null;
+        code = null;
+        message = null;
+        timestamp = null;
+        site = null;
+        error = null;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return The type exactly as given in the event, including types we don't recognise.
+     */
+    public String getTypeName() {
+        return typeName;
+    }
+
+    public String getRaw() {
+        return raw;
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public String getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return ID of the site the event is for, or null if it didn't say and belongs to the site of its tube.
+     */
+    public String getSite() {
+        return site;
+    }
+
+    /**
+     * @return Description of why the event could not be decoded, or null if it was decoded successfully.
+     */
+    public String getError() {
+        return error;
+    }
+}
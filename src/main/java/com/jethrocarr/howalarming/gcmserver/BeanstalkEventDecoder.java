@@ -0,0 +1,114 @@
+/**
+ * Copyright 2016 Jethro Carr. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jethrocarr.howalarming.gcmserver;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+
+/**
+ * Decodes beanstalk jobs into BeanstalkEvents by streaming over the UTF-8 job data, picking out only the fields
+ * we use rather than building a JSON tree of the whole job.
+ *
+ * A decoder reuses its UTF-8 reader between jobs and so must only be used by a single thread. Gson's JsonReader
+ * can't be reset, so a new one is made for each job.
+ */
+public class BeanstalkEventDecoder {
+
+    private final Utf8Reader reader = new Utf8Reader();
+
+    /**
+     * Decode the job data into the supplied event, replacing its previous contents.
+     *
+     * @return true if the event is valid, otherwise false with the reason available from event.getError().
+     */
+    public boolean decode(byte[] data, BeanstalkEvent event) {
+        event.reset();
+        reader.reset(data);
+
+        JsonReader json = new JsonReader(reader);
+
+        try {
+            if (json.peek() != JsonToken.BEGIN_OBJECT) {
+                event.error = "event is not a JSON object";
+                return false;
+            }
+
+            json.beginObject();
+            while (json.hasNext()) {
+                String name = json.nextName();
+
+                if (json.peek() == JsonToken.NULL || json.peek() == JsonToken.BEGIN_OBJECT
+                        || json.peek() == JsonToken.BEGIN_ARRAY) {
+                    json.skipValue();
+                    continue;
+                }
+
+                switch (name) {
+                    case "type":
+                        event.typeName = json.nextString();
+                        break;
+                    case "raw":
+                        event.raw = json.nextString();
+                        break;
+                    case "code":
+                        event.code = json.nextString();
+                        break;
+                    case "message":
+                        event.message = json.nextString();
+                        break;
+                    case "timestamp":
+                        event.timestamp = json.nextString();
+                        break;
+                    case "site":
+                        event.site = json.nextString();
+                        break;
+                    default:
+                        json.skipValue();
+                }
+            }
+            json.endObject();
+        } catch (IOException | IllegalStateException e) {
+            event.error = "malformed JSON: " + e.getMessage();
+            return false;
+        }
+
+        if (event.typeName == null) {
+            event.error = "missing field: type";
+            return false;
+        }
+
+        event.type = BeanstalkEvent.Type.fromString(event.typeName);
+
+        // Only events we send on need the remaining fields.
+        if (event.type.isTransmitted()) {
+            if (event.raw == null) {
+                event.error = "missing field: raw";
+            } else if (event.code == null) {
+                event.error = "missing field: code";
+            } else if (event.message == null) {
+                event.error = "missing field: message";
+            } else if (event.timestamp == null) {
+                event.error = "missing field: timestamp";
+            }
+        }
+
+        return event.error == null;
+    }
+}
@@ -0,0 +1,336 @@
+/**
+ * Copyright 2016 Jethro Carr. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jethrocarr.howalarming.gcmserver;
+
+import org.jivesoftware.smack.SmackException;
+import org.jivesoftware.smack.StanzaListener;
+import org.jivesoftware.smack.filter.StanzaFilter;
+import org.jivesoftware.smack.packet.Stanza;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * CcsConnectionPool maintains several authenticated connections to CCS and spreads outbound messages across them,
+ * each connection having its own flow control window.
+ *
+ * When CCS tells us a connection is draining, it is swapped out of the pool for a freshly opened connection but
+ * kept open so that any acks still due on it are processed, being closed once nothing is left in flight.
+ */
+public class CcsConnectionPool {
+
+    private static final Logger logger = Logger.getLogger("CcsConnectionPool");
+
+    // CCS permits up to 1000 concurrent connections per sender ID.
+    public static final int CCS_MAX_CONNECTIONS = 1000;
+
+    // Platform threads handling received stanzas, enough to carry on with acks whilst some handlers are blocked
+    // requeueing nacked messages.
+    private static final int INBOUND_THREADS = 16;
+
+    /**
+     * Handles stanzas received on any connection in the pool.
+     */
+    public interface Listener {
+        void processStanza(SmackCcsClient client, Stanza stanza) throws SmackException.NotConnectedException;
+    }
+
+    private final String apiKey;
+    private final String username;
+    private final String serviceName;
+    private final String host;
+    private final int port;
+    private final boolean tls;
+
+    // Connections new messages can be sent on.
+    private final CopyOnWriteArrayList<SmackCcsClient> active;
+    // Connections CCS is about to close, still listened to for acks.
+    private final CopyOnWriteArrayList<SmackCcsClient> draining;
+
+    private final AtomicInteger next;
+
+    // Guards the listener and is waited on for a connection to become active. A lock rather than a monitor so
+    // that senders waiting on it don't pin a carrier thread in virtual thread mode.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition connectionAdded = lock.newCondition();
+
+    // Received stanzas are handled here rather than on Smack's own listener threads.
+    private final ExecutorService inbound;
+
+    private Listener listener;
+    private StanzaFilter stanzaFilter;
+
+    public CcsConnectionPool(String apiKey, String username, String serviceName, String host, int port, int size) {
+        this(apiKey, username, serviceName, host, port, true, size);
+    }
+
+    /**
+     * @param tls Whether to connect over TLS, which only a local stand-in for CCS should go without.
+     */
+    public CcsConnectionPool(String apiKey, String username, String serviceName, String host, int port, boolean tls,
+                             int size) {
+        this.apiKey = apiKey;
+        this.username = username;
+        this.serviceName = serviceName;
+        this.host = host;
+        this.port = port;
+        this.tls = tls;
+
+        active = new CopyOnWriteArrayList<SmackCcsClient>();
+        draining = new CopyOnWriteArrayList<SmackCcsClient>();
+        next = new AtomicInteger();
+        inbound = Threads.newTaskExecutor("CCS Inbound Handler", INBOUND_THREADS);
+
+        size = Math.max(1, Math.min(size, CCS_MAX_CONNECTIONS));
+        logger.info("Opening " + size + " connections to CCS");
+
+        for (int i = 0; i < size; i++) {
+            active.add(new SmackCcsClient(apiKey, username, serviceName, host, port, tls));
+        }
+    }
+
+    /**
+     * Begin listening for incoming messages on all connections, including any opened later.
+     *
+     * @param listener Listener that handles accepted messages.
+     * @param stanzaFilter Filter that determines what messages are handled by the listener.
+     */
+    public void listen(Listener listener, StanzaFilter stanzaFilter) {
+        lock.lock();
+        try {
+            this.listener = listener;
+            this.stanzaFilter = stanzaFilter;
+
+            for (SmackCcsClient client : active) {
+                listen(client);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void listen(final SmackCcsClient client) {
+        final Listener listener = this.listener;
+
+        client.listen(new StanzaListener() {
+            @Override
+            public void processPacket(final Stanza packet) {
+                inbound.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            listener.processStanza(client, packet);
+                        } catch (SmackException.NotConnectedException e) {
+                            logger.log(Level.WARNING, "Connection to CCS lost whilst handling stanza", e);
+                        } catch (RuntimeException e) {
+                            logger.log(Level.SEVERE, "Unexpected error handling stanza from CCS", e);
+                        }
+                    }
+                });
+            }
+        }, stanzaFilter);
+    }
+
+    /**
+     * Select a connection to send a message on and reserve a place for it in that connection's flow control
+     * window, blocking if every connection's window is full.
+     *
+     * @return The connection to send the message on.
+     */
+    public SmackCcsClient acquire(DownstreamMessage message) throws InterruptedException {
+        while (true) {
+            SmackCcsClient[] clients = active.toArray(new SmackCcsClient[0]);
+            int size = clients.length;
+
+            if (size == 0) {
+                awaitConnection();
+                continue;
+            }
+
+            int start = (next.getAndIncrement() & Integer.MAX_VALUE) % size;
+
+            // Prefer whichever connection has space right now, starting from the next in rotation.
+            for (int i = 0; i < size; i++) {
+                SmackCcsClient client = clients[(start + i) % size];
+
+                if (client.getFlowControl().tryAcquire(message) != null) {
+                    if (!client.isDraining()) {
+                        return client;
+                    }
+                    client.getFlowControl().abandon(message.getMessageId());
+                }
+            }
+
+            // Everything is full, wait on the next connection in rotation.
+            SmackCcsClient client = clients[start];
+            client.getFlowControl().acquire(message);
+
+            if (!client.isDraining()) {
+                return client;
+            }
+
+            // The connection started draining whilst we waited on it, try again with the replacement.
+            client.getFlowControl().abandon(message.getMessageId());
+        }
+    }
+
+    private void awaitConnection() throws InterruptedException {
+        lock.lock();
+        try {
+            while (active.isEmpty()) {
+                connectionAdded.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Handle CCS notifying us that a connection is going to be closed. New traffic moves to a newly opened
+     * connection whilst the draining connection continues to be listened to for acks.
+     */
+    public void drain(final SmackCcsClient client) {
+        if (client.isDraining()) {
+            return;
+        }
+
+        // CCS may close the connection before answering everything sent on it. Retired off Smack's thread, as
+        // closing the connection from its own listener isn't safe.
+        client.drain(new Runnable() {
+            @Override
+            public void run() {
+                inbound.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        retireClosed(client);
+                    }
+                });
+            }
+        });
+        draining.add(client);
+        active.remove(client);
+
+        logger.info("CCS connection draining with " + client.getFlowControl().inFlight()
+                + " messages in flight, opening replacement");
+
+        // Always a platform thread, Smack connects and logs in whilst holding the connection's monitor, which would
+        // pin a virtual thread's carrier for the whole handshake.
+        Thread replacementThread = Threads.newPlatformThread("CCS Connection Replacement", new Runnable() {
+            @Override
+            public void run() {
+                SmackCcsClient replacement = new SmackCcsClient(apiKey, username, serviceName, host, port, tls);
+
+                lock.lock();
+                try {
+                    if (listener != null) {
+                        listen(replacement);
+                    }
+                    active.add(replacement);
+                    connectionAdded.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+
+                logger.info("Replacement CCS connection opened");
+            }
+        });
+        replacementThread.start();
+
+        retireIfIdle(client);
+    }
+
+    /**
+     * Close a draining connection once CCS has responded to everything sent on it.
+     */
+    public void retireIfIdle(SmackCcsClient client) {
+        if (!client.isDraining()) {
+            return;
+        }
+
+        // CCS may close the connection before answering everything, don't wait on those forever.
+        client.getFlowControl().expire();
+
+        if (client.getFlowControl().inFlight() > 0 || !draining.remove(client)) {
+            return;
+        }
+
+        logger.info("Closing drained CCS connection");
+
+        try {
+            client.close();
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Error occurred whilst closing drained CCS connection", e);
+        }
+    }
+
+    /**
+     * Retire a draining connection that has been closed, handing whatever was still awaiting an ack on it back to
+     * be sent again on another connection, as for acks that never arrive.
+     */
+    private void retireClosed(SmackCcsClient client) {
+        int lost = client.getFlowControl().failAll();
+        if (lost > 0) {
+            logger.warning("Draining CCS connection closed with " + lost + " messages still awaiting an ack");
+        }
+
+        retireIfIdle(client);
+    }
+
+    /**
+     * @return Number of downstream messages awaiting an ack/nack across all connections.
+     */
+    public int inFlight() {
+        int inFlight = 0;
+
+        List<SmackCcsClient> clients = new ArrayList<SmackCcsClient>(active);
+        clients.addAll(draining);
+
+        for (SmackCcsClient client : clients) {
+            inFlight += client.getFlowControl().inFlight();
+        }
+
+        return inFlight;
+    }
+
+    /**
+     * @return Number of stanzas waiting to be written across all connections.
+     */
+    public int queued() {
+        int queued = 0;
+
+        List<SmackCcsClient> clients = new ArrayList<SmackCcsClient>(active);
+        clients.addAll(draining);
+
+        for (SmackCcsClient client : clients) {
+            queued += client.queued();
+        }
+
+        return queued;
+    }
+
+    public int size() {
+        return active.size();
+    }
+}
@@ -0,0 +1,294 @@
+/**
+ * Copyright 2016 Jethro Carr. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jethrocarr.howalarming.gcmserver;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.jivesoftware.smack.SmackException;
+import org.jivesoftware.smack.filter.StanzaFilter;
+import org.jivesoftware.smack.packet.ExtensionElement;
+import org.jivesoftware.smack.packet.Stanza;
+import org.jivesoftware.smack.provider.ExtensionElementProvider;
+import org.jivesoftware.smack.provider.ProviderManager;
+import org.jivesoftware.smack.util.StringUtils;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * CcsTransport talks XMPP to FCM's Cloud Connection Server over a pool of connections, sending downstream messages
+ * as stanzas and receiving the acks, nacks and control messages for them along with upstream messages from devices.
+ */
+public class CcsTransport implements GcmTransport {
+
+    private static final Logger logger = Logger.getLogger("CcsTransport");
+
+    /**
+     * Extension of Packet to allow production and consumption of packets, to and from GCM.
+     */
+    public static class GcmPacketExtension implements ExtensionElement {
+
+        private String json;
+
+        public GcmPacketExtension(String json) {
+            this.json = json;
+        }
+
+        public String getJson() {
+            return json;
+        }
+
+        @Override
+        public String getNamespace() {
+            return GcmServer.GCM_NAMESPACE;
+        }
+
+        @Override
+        public String getElementName() {
+            return GcmServer.GCM_ELEMENT_NAME;
+        }
+
+        @Override
+        public CharSequence toXML() {
+            return String.format("<%s xmlns=\"%s\">%s</%s>", getElementName(), getNamespace(), json,
+                    getElementName());
+        }
+    }
+
+    // Connections to CCS, each tracking the downstream messages sent on it until CCS acks/nacks them.
+    private final CcsConnectionPool connectionPool;
+    private final JsonParser jsonParser = new JsonParser();
+    private volatile Listener listener;
+
+    /**
+     * @param connections Number of connections to keep open to CCS. Each connection can have up to 100 messages
+     *                    awaiting an ack, so more connections allow for faster broadcasts.
+     * @param host Host to connect to CCS on, eg a local stand-in when load testing.
+     * @param port Port to connect to CCS on.
+     * @param tls Whether to connect over TLS, as CCS requires.
+     */
+    public CcsTransport(String apiKey, String senderId, String serviceName, int connections, String host, int port,
+                        boolean tls) {
+        String username = senderId + "@gcm.googleapis.com";
+        connectionPool = new CcsConnectionPool(apiKey, username, serviceName, host, port, tls, connections);
+
+        // Add the GcmPacketExtension as an extension provider.
+        ProviderManager.addExtensionProvider(GcmServer.GCM_ELEMENT_NAME, GcmServer.GCM_NAMESPACE,
+                new ExtensionElementProvider<GcmPacketExtension>() {
+                    @Override
+                    public GcmPacketExtension parse(XmlPullParser parser, int initialDepth)
+                            throws XmlPullParserException, IOException, SmackException {
+                        String json = parser.nextText();
+                        return new GcmPacketExtension(json);
+                    }
+                });
+    }
+
+    @Override
+    public void start(final Listener listener) {
+        this.listener = listener;
+
+        // Filter to determine what messages get handled here, passed to external handler or ignored.
+        StanzaFilter stanzaFilter = new StanzaFilter() {
+            @Override
+            public boolean accept(Stanza stanza) {
+                // Accept messages from GCM CCS, reject anything else.
+                return stanza.hasExtension(GcmServer.GCM_ELEMENT_NAME, GcmServer.GCM_NAMESPACE);
+            }
+        };
+
+        // Handle normal, ack, nack and control type, incoming GCM messages. Normal messages are passed on to the
+        // listener as upstream messages, acks and nacks for the downstream message they answer.
+        CcsConnectionPool.Listener stanzaListener = new CcsConnectionPool.Listener() {
+            @Override
+            public void processStanza(SmackCcsClient client, Stanza packet)
+                    throws SmackException.NotConnectedException {
+                // Extract the GCM message from the packet.
+                GcmPacketExtension packetExtension =
+                        (GcmPacketExtension) packet.getExtension(GcmServer.GCM_NAMESPACE);
+
+                // Scan out just the routing fields, acks and nacks need nothing more.
+                GcmInboundMessage gcmMessage = GcmInboundMessage.scan(packetExtension.getJson());
+                if (gcmMessage == null) {
+                    logger.log(Level.SEVERE, "Malformed message received from CCS: " + packetExtension.getJson());
+                    return;
+                }
+
+                String from = gcmMessage.getFrom();
+
+                // If there is no message_type normal GCM message is assumed.
+                if (gcmMessage.getMessageType() == null) {
+                    if (StringUtils.isNotEmpty(from)) {
+                        // Only upstream messages from devices have a payload worth parsing in full.
+                        if (gcmMessage.hasData()) {
+                            JsonObject jGcmMessage = jsonParser.parse(packetExtension.getJson()).getAsJsonObject();
+                            JsonObject jData = jGcmMessage.get("data").getAsJsonObject();
+                            listener.upstream(from, jData);
+                        }
+
+                        // Send Ack to CCS to confirm receipt of upstream message.
+                        String messageId = gcmMessage.getMessageId();
+                        if (StringUtils.isNotEmpty(messageId)) {
+                            sendAck(client, from, messageId);
+                        } else {
+                            logger.log(Level.SEVERE, "Message ID is null or empty.");
+                        }
+                    } else {
+                        logger.log(Level.SEVERE, "From is null or empty.");
+                    }
+                } else {
+                    // Handle message_type here.
+                    String messageType = gcmMessage.getMessageType();
+                    if (messageType.equals("ack")) {
+                        // Handle ACK, releasing the message's place in the flow control window.
+                        String messageId = gcmMessage.getMessageId();
+                        FlowControlWindow.PendingMessage message = client.getFlowControl().acknowledged(messageId);
+                        if (message != null) {
+                            if (logger.isLoggable(Level.FINE)) {
+                                logger.fine("ACK received for message " + messageId + " from " + from + " after "
+                                        + (message.getRoundTripNanos() / 1000000) + "ms");
+                            }
+                            listener.acked(message.getMessage(), message.getRoundTripNanos());
+                        } else {
+                            logger.info("ACK received for unknown message " + messageId + " from " + from);
+                        }
+                    } else if (messageType.equals("nack")) {
+                        // Handle NACK, either retrying the message or dropping the device it was sent to.
+                        String messageId = gcmMessage.getMessageId();
+                        String error = gcmMessage.getError();
+                        logger.info("NACK received for message " + messageId + " from " + from + ": " + error);
+
+                        FlowControlWindow.PendingMessage message = client.getFlowControl().rejected(messageId);
+                        listener.nacked(message != null ? message.getMessage() : null, from, error);
+                    } else if (messageType.equals("control")) {
+                        logger.info("Control message received.");
+                        String controlType = gcmMessage.getControlType();
+                        if ("CONNECTION_DRAINING".equals(controlType)) {
+                            // Handle connection draining. New outgoing messages move to a newly created connection
+                            // whilst we continue to handle incoming messages and acks on the draining connection.
+                            logger.info("Current connection will be closed soon.");
+                            connectionPool.drain(client);
+                        } else {
+                            // Currently the only control_type is CONNECTION_DRAINING, if new control messages
+                            // are added they should be handled here.
+                            logger.info("New control message has been received.");
+                        }
+                    }
+
+                    // Close a draining connection once the last ack/nack it was waiting on has arrived.
+                    if (client.isDraining()) {
+                        connectionPool.retireIfIdle(client);
+                    }
+                }
+            }
+        };
+
+        connectionPool.listen(stanzaListener, stanzaFilter);
+    }
+
+    /**
+     * Send a downstream stanza on whichever connection has space in its flow control window, blocking until one
+     * does. Its ID is used to match up the ack/nack from CCS.
+     */
+    @Override
+    public boolean send(final DownstreamMessage message) throws InterruptedException {
+        final SmackCcsClient client = connectionPool.acquire(message);
+
+        if (System.currentTimeMillis() >= message.getDeadline()) {
+            client.getFlowControl().abandon(message.getMessageId());
+            return false;
+        }
+
+        Stanza stanza = new Stanza() {
+            @Override
+            public CharSequence toXML() {
+                return message.getPayload();
+            }
+        };
+
+        client.sendStanza(stanza, message.getDeadline()).whenComplete(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void result, Throwable error) {
+                if (error == null) {
+                    // The ack is timed from here, not from when the message was queued for the writer.
+                    client.getFlowControl().written(message.getMessageId());
+                } else {
+                    // The message never made it to CCS, so there is no ack coming to free its place in the flow
+                    // control window.
+                    client.getFlowControl().abandon(message.getMessageId());
+
+                    if (error instanceof TimeoutException) {
+                        listener.expired(message);
+                    } else {
+                        listener.failed(message, error);
+                    }
+                }
+            }
+        });
+
+        return true;
+    }
+
+    @Override
+    public int connections() {
+        return connectionPool.size();
+    }
+
+    @Override
+    public int inFlight() {
+        return connectionPool.inFlight();
+    }
+
+    @Override
+    public int queued() {
+        return connectionPool.queued();
+    }
+
+    /**
+     * Send Ack message back to CCS to acknowledged the receipt of the message with ID msg_id.
+     *
+     * @param client Connection the message being acknowledged was received on.
+     * @param to Registration token of the sender of the message being acknowledged.
+     * @param msg_id ID of message being acknowledged.
+     */
+    private void sendAck(SmackCcsClient client, String to, String msg_id) {
+        JsonObject jPayload = new JsonObject();
+        jPayload.addProperty("to", to);
+        jPayload.addProperty("message_id", msg_id);
+        jPayload.addProperty("message_type", "ack");
+
+        Gson gson = new GsonBuilder().setPrettyPrinting().create();
+        final String payload = gson.toJson(jPayload);
+        Stanza stanza = new Stanza() {
+            @Override
+            public CharSequence toXML() {
+                return GcmServer.wrapWithXML(payload);
+            }
+        };
+
+        logger.info("sending ack: " + stanza);
+        client.sendStanza(stanza);
+    }
+}
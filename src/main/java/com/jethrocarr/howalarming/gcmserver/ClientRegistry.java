@@ -0,0 +1,226 @@
+/**
+ * Copyright 2016 Jethro Carr. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jethrocarr.howalarming.gcmserver;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * ClientRegistry tracks the registration tokens of all the devices we broadcast to.
+ *
+ * Registrations and pings arrive on the Smack listener threads whilst broadcasts iterate the clients from the
+ * Beanstalk thread, so lookups are hash based and broadcasts work on an immutable snapshot which is only rebuilt
+ * after the set of clients has actually changed.
+ *
+ * Changes are passed through to a ClientRegistryStore so that the registrations can survive a restart of the
+ * server, rather than waiting for every device to ping us again.
+ */
+public class ClientRegistry {
+
+    private static final Logger logger = Logger.getLogger("ClientRegistry");
+
+    private final Set<String> clients;
+    private final ClientRegistryStore store;
+
+    // Serialises each change to the clients with persisting it, so the store's log holds the changes in the order
+    // they were made and anything persisted before a compaction is already in the snapshot it takes.
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // Guards against more than one compaction of the store running at a time.
+    private final AtomicBoolean compacting;
+
+    // Bumped after every change to the client set, used to tell if the cached snapshot is still current.
+    private final AtomicLong version;
+
+    private volatile Snapshot snapshot;
+
+    /**
+     * Create a registry that only holds registrations in memory.
+     */
+    public ClientRegistry() {
+        this(new ClientRegistryStore.Memory());
+    }
+
+    /**
+     * Create a registry backed by the supplied store, loading any previously persisted registrations.
+     */
+    public ClientRegistry(ClientRegistryStore store) {
+        this.store = store;
+
+        // Size the set for everything we are about to replay plus some room to grow, resizing a large table
+        // during startup is the bulk of the replay cost.
+        int expected = store.expectedClients();
+        clients = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>(Math.max(16, expected + expected / 8)));
+        version = new AtomicLong();
+        compacting = new AtomicBoolean();
+
+        try {
+            store.replay(clients);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Unable to load persisted client registrations, starting with those recovered", e);
+        }
+
+        version.incrementAndGet();
+    }
+
+    /**
+     * Add a new client to the registry.
+     *
+     * @param registrationToken String with GCM token ID of client.
+     * @return true if the client was not previously registered.
+     */
+    public boolean register(String registrationToken) {
+        // Most registrations are repeats from devices pinging us, which don't need the lock.
+        if (clients.contains(registrationToken)) {
+            return false;
+        }
+
+        lock.lock();
+        try {
+            if (!clients.add(registrationToken)) {
+                return false;
+            }
+
+            version.incrementAndGet();
+
+            try {
+                store.registered(registrationToken);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Unable to persist registration of client " + registrationToken, e);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        logger.info("Registered new client "+ registrationToken);
+
+        maybeCompact();
+        return true;
+    }
+
+    /**
+     * Remove a client from the registry, eg once GCM reports the token as no longer valid.
+     *
+     * @param registrationToken String with GCM token ID of client.
+     * @return true if the client was registered.
+     */
+    public boolean unregister(String registrationToken) {
+        lock.lock();
+        try {
+            if (!clients.remove(registrationToken)) {
+                return false;
+            }
+
+            version.incrementAndGet();
+
+            try {
+                store.unregistered(registrationToken);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Unable to persist unregistration of client " + registrationToken, e);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        logger.info("Unregistered client "+ registrationToken);
+
+        maybeCompact();
+        return true;
+    }
+
+    public boolean isRegistered(String registrationToken) {
+        return clients.contains(registrationToken);
+    }
+
+    public int size() {
+        return clients.size();
+    }
+
+    /**
+     * Return an immutable view of all registered clients that is safe to iterate whilst registrations continue
+     * to arrive. Repeated calls without any intervening changes return the same snapshot.
+     */
+    public Collection<String> snapshot() {
+        // Read the version before copying, any change made during the copy will bump it past what we cache.
+        long currentVersion = version.get();
+        Snapshot current = snapshot;
+
+        if (current != null && current.version == currentVersion) {
+            return current.clients;
+        }
+
+        List<String> copy = Collections.unmodifiableList(new ArrayList<String>(clients));
+        snapshot = new Snapshot(currentVersion, copy);
+
+        return copy;
+    }
+
+    /**
+     * Compact the store in the background once it has built up enough history, so the log never grows unbounded
+     * and restarts only need to replay a snapshot plus a short tail.
+     */
+    private void maybeCompact() {
+        if (!store.needsCompaction(clients.size()) || !compacting.compareAndSet(false, true)) {
+            return;
+        }
+
+        Thread compactionThread = Threads.newThread("Client Registry Compaction", new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    store.compact(ClientRegistry.this);
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, "Unable to compact client registry store", e);
+                } finally {
+                    compacting.set(false);
+                }
+            }
+        });
+        compactionThread.setDaemon(true);
+        compactionThread.start();
+    }
+
+    public void close() {
+        try {
+            store.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Error occurred whilst closing client registry store", e);
+        }
+    }
+
+
+    private static class Snapshot {
+        final long version;
+        final List<String> clients;
+
+        Snapshot(long version, List<String> clients) {
+            this.version = version;
+            this.clients = clients;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright 2016 Jethro Carr. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jethrocarr.howalarming.gcmserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Backend used by ClientRegistry to persist registrations between restarts of the server.
+ */
+public interface ClientRegistryStore extends Closeable {
+
+    /**
+     * @return Rough number of clients that replay will load, used to size the registry up front.
+     */
+    int expectedClients();
+
+    /**
+     * Load all persisted registrations into the supplied collection, called once before the registry is used.
+     */
+    void replay(Collection<String> clients) throws IOException;
+
+    void registered(String registrationToken) throws IOException;
+
+    void unregistered(String registrationToken) throws IOException;
+
+    /**
+     * @param liveClients Number of clients currently registered.
+     * @return true if the store has accumulated enough history that it should be compacted.
+     */
+    boolean needsCompaction(int liveClients);
+
+    /**
+     * Fold the history of the store into a snapshot of the clients currently held by the registry.
+     */
+    void compact(ClientRegistry registry) throws IOException;
+
+
+    /**
+     * Store that keeps nothing, registrations only live for the duration of the process. Used when no registry
+     * path is configured and for testing.
+     */
+    class Memory implements ClientRegistryStore {
+
+        @Override
+        public int expectedClients() {
+            return 0;
+        }
+
+        @Override
+        public void replay(Collection<String> clients) {
+        }
+
+        @Override
+        public void registered(String registrationToken) {
+        }
+
+        @Override
+        public void unregistered(String registrationToken) {
+        }
+
+        @Override
+        public boolean needsCompaction(int liveClients) {
+            return false;
+        }
+
+        @Override
+        public void compact(ClientRegistry registry) {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
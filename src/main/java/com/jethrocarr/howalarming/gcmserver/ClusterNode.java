@@ -0,0 +1,872 @@
+/**
+ * Copyright 2016 Jethro Carr. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jethrocarr.howalarming.gcmserver;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One member of a cluster of servers sharing the work of broadcasting to devices.
+ *
+ * Every member holds every registration, and the registration tokens are partitioned between the members by a
+ * ConsistentHashRing so that each only sends its own slice of a broadcast. Beanstalk hands each event to just one
+ * member, which forwards it to the others along with the members of the ring it was partitioned with, so that all
+ * of them slice it the same way whatever their own view of the cluster. Any member it can't forward to is taken out
+ * of the ring and its slice sent by the forwarding member itself.
+ *
+ * Members talk over a simple HTTP protocol, authorised with a secret they all share:
+ *
+ *   /cluster/heartbeat      Sent to every known peer each second, carrying the peers each side knows of so that
+ *                           a cluster can be found from any one seed. A peer not heard from for a few seconds
+ *                           leaves the ring.
+ *   /cluster/registrations  Registrations and unregistrations, replicated in batches as they happen, plus all of
+ *                           the registrations and recent unregistrations whenever a peer joins so that it catches
+ *                           up on what it missed.
+ *   /cluster/events         Events forwarded for broadcast.
+ */
+public class ClusterNode {
+
+    private static final Logger logger = Logger.getLogger("ClusterNode");
+
+    private static final long HEARTBEAT_INTERVAL_MILLIS = 1000;
+    // Peers not heard from for this long leave the ring.
+    private static final long FAILURE_TIMEOUT_MILLIS = 5000;
+    // Peers learnt from others, rather than configured, are forgotten once gone for this long.
+    private static final long FORGET_AFTER_MILLIS = 600000;
+
+    private static final int TIMEOUT_MILLIS = 1000;
+    private static final long FORWARD_TIMEOUT_MILLIS = 2000;
+
+    private static final int MAX_BATCH = 1000;
+    private static final long INITIAL_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 5000;
+
+    // Unregistrations are remembered for as long as a peer can be out of the ring and still rejoin it, up to a
+    // limit, so that a rejoining peer hears of them too. Past that, a device's NACK evicts it instead.
+    private static final long UNREGISTRATION_RETENTION_MILLIS = FORGET_AFTER_MILLIS;
+    private static final int MAX_UNREGISTRATIONS = 100000;
+
+    // Rings built for forwarded events, by their members. Only a handful of memberships are ever in use at once.
+    private static final int MAX_CACHED_RINGS = 16;
+
+    private static final Metrics.Counter forwardFailures = Metrics.counter("howalarming_cluster_forward_failures_total",
+            "Events that couldn't be forwarded to a peer, whose slice was sent by the forwarding member instead.");
+    private static final Metrics.Counter membershipChanges = Metrics.counter("howalarming_cluster_membership_changes_total",
+            "Times a peer joined or left the ring.");
+
+    /**
+     * Receives what peers send us.
+     */
+    public interface Listener {
+
+        /**
+         * A peer registered or unregistered a device.
+         */
+        void onRegistration(String site, String registrationToken, boolean registered);
+
+        /**
+         * A peer read an event for broadcast, of which we are to send the part given by message.slice.
+         */
+        void onEvent(String site, PushMessage message);
+
+        /**
+         * @return Every registration held, by site, to bring a peer that joined up to date.
+         */
+        Map<String, Collection<String>> registrations();
+    }
+
+
+    private final String address;
+    private final String authorization;
+    private final Listener listener;
+    private final Gson gson;
+
+    private final HttpServer server;
+    private final ExecutorService requests;
+    private final ExecutorService events;
+    private final ExecutorService forwarder;
+
+    // Peers by the address they advertise.
+    private final ConcurrentHashMap<String, Peer> peers;
+    private final ConcurrentHashMap<String, ConsistentHashRing> rings;
+
+    // Recent unregistrations, by site and registration token.
+    private final ConcurrentHashMap<String, Unregistration> unregistrations;
+
+    // Guards changes to the membership.
+    private final ReentrantLock membershipLock = new ReentrantLock();
+    private volatile ConsistentHashRing ring;
+
+    /**
+     * @param address Host and port this member is reached at, which is also its identity in the ring.
+     * @param seeds Addresses of other members to find the cluster through.
+     * @param secret Shared secret that requests between members are authorised with.
+     * @param listener Receives registrations and events from peers.
+     */
+    public ClusterNode(String address, Collection<String> seeds, String secret, Listener listener) throws IOException {
+        this.address = address;
+        this.authorization = "key=" + secret;
+        this.listener = listener;
+        this.gson = new GsonBuilder().create();
+
+        peers = new ConcurrentHashMap<String, Peer>();
+        rings = new ConcurrentHashMap<String, ConsistentHashRing>();
+        unregistrations = new ConcurrentHashMap<String, Unregistration>();
+        ring = new ConsistentHashRing(Collections.singleton(address));
+
+        for (String seed : seeds) {
+            learn(seed.trim(), true);
+        }
+
+        int port = Integer.parseInt(address.substring(address.lastIndexOf(':') + 1));
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/cluster/heartbeat", new Handler() {
+            @Override
+            JsonObject handle(JsonObject request) {
+                return onHeartbeat(request);
+            }
+        });
+        server.createContext("/cluster/registrations", new Handler() {
+            @Override
+            JsonObject handle(JsonObject request) {
+                return onRegistrations(request);
+            }
+        });
+        // Events are handled on a single thread of their own, so that those from a peer are broadcast in the order
+        // it forwarded them, and so that one held up being spooled or queued doesn't hold up heartbeats too.
+        events = Threads.newSerialExecutor("Cluster Event Worker");
+        server.createContext("/cluster/events", new Handler(events) {
+            @Override
+            JsonObject handle(JsonObject request) {
+                return onEvent(request);
+            }
+        });
+
+        requests = Threads.newTaskExecutor("Cluster Server");
+        server.setExecutor(requests);
+        server.start();
+
+        forwarder = Threads.newTaskExecutor("Cluster Forwarder");
+
+        Thread heartbeat = Threads.newThread("Cluster Heartbeat", new Runnable() {
+            @Override
+            public void run() {
+                heartbeatLoop();
+            }
+        });
+        heartbeat.setDaemon(true);
+        heartbeat.start();
+
+        logger.info("Cluster member " + address + " started, seeds " + seeds);
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * @return The ring as this member currently sees it.
+     */
+    public ConsistentHashRing ring() {
+        return ring;
+    }
+
+    /**
+     * Replicate a change to the registrations to every peer in the ring. Peers out of the ring catch up when they
+     * rejoin.
+     */
+    public void replicate(String site, String registrationToken, boolean registered) {
+        remember(site, registrationToken, registered);
+
+        for (Peer peer : peers.values()) {
+            if (peer.alive) {
+                peer.changes.offer(change(site, registrationToken, registered));
+            }
+        }
+    }
+
+    /**
+     * @return This member's own slice of a broadcast forwarded to a ring of the given members, as when the event
+     *         was forwarded to us.
+     */
+    public Slice slice(List<String> members) {
+        return new Slice(ringFor(members), Collections.singleton(address), false);
+    }
+
+    /**
+     * Forward an event read from beanstalk to the rest of the ring, waiting until each peer has taken it or
+     * failed to.
+     *
+     * @return The slice of the broadcast this member is to send: its own, plus that of every peer the event
+     *         couldn't be forwarded to.
+     */
+    public Slice forward(String site, PushMessage message) {
+        ConsistentHashRing current = ring;
+
+        Set<String> covering = new HashSet<String>();
+        covering.add(address);
+
+        if (current.getMembers().size() == 1) {
+            return new Slice(current, covering, true);
+        }
+
+        JsonObject event = new JsonObject();
+        event.addProperty("site", site);
+        event.add("members", gson.toJsonTree(current.getMembers()));
+        event.addProperty("created_at", message.createdAt);
+        event.add("message", gson.toJsonTree(message));
+        final String body = gson.toJson(event);
+
+        List<Peer> targets = new ArrayList<Peer>();
+        List<Future<?>> forwards = new ArrayList<Future<?>>();
+
+        for (String member : current.getMembers()) {
+            final Peer peer = peers.get(member);
+            if (peer == null) {
+                continue;
+            }
+
+            targets.add(peer);
+            forwards.add(forwarder.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        post(peer.events, body);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }));
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FORWARD_TIMEOUT_MILLIS);
+
+        for (int i = 0; i < targets.size(); i++) {
+            Peer peer = targets.get(i);
+
+            try {
+                forwards.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                continue;
+            } catch (InterruptedException e) {
+                // We're shutting down rather than the peer being at fault, cover it without taking it out of the ring.
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | TimeoutException e) {
+                Throwable cause = e instanceof ExecutionException && e.getCause().getCause() != null
+                        ? e.getCause().getCause() : e;
+                logger.warning("Unable to forward event to " + peer.address + " (" + cause + "), sending its slice");
+                forwardFailures.increment();
+                down(peer);
+            }
+
+            // Better the peer's devices are sent it twice, should it have got the event after all, than not at all.
+            forwards.get(i).cancel(true);
+            covering.add(peer.address);
+        }
+
+        return new Slice(current, covering, true);
+    }
+
+    /**
+     * @return Number of members in the ring, including this one.
+     */
+    public int members() {
+        return ring.getMembers().size();
+    }
+
+    public void stop() {
+        server.stop(0);
+        requests.shutdownNow();
+        events.shutdownNow();
+        forwarder.shutdownNow();
+    }
+
+
+    // MARK: Membership
+
+    private Peer learn(String peerAddress, boolean seed) {
+        if (peerAddress.isEmpty() || peerAddress.equals(address)) {
+            return null;
+        }
+
+        Peer peer = peers.get(peerAddress);
+        if (peer != null) {
+            return peer;
+        }
+
+        try {
+            Peer created = new Peer(peerAddress, seed);
+            peer = peers.putIfAbsent(peerAddress, created);
+
+            if (peer == null) {
+                peer = created;
+                logger.info("Learnt of cluster peer " + peerAddress);
+
+                Thread replicator = Threads.newThread("Cluster Replicator " + peerAddress, created);
+                replicator.setDaemon(true);
+                replicator.start();
+            }
+        } catch (IOException e) {
+            logger.warning("Ignoring cluster peer with invalid address " + peerAddress);
+        }
+
+        return peer;
+    }
+
+    /**
+     * Record that we've heard from a peer, bringing it into the ring and up to date if it wasn't already.
+     */
+    private void seen(Peer peer) {
+        peer.lastSeen = System.currentTimeMillis();
+
+        if (peer.alive) {
+            return;
+        }
+
+        membershipLock.lock();
+        try {
+            if (peer.alive) {
+                return;
+            }
+
+            // Live before everything it missed is queued, so changes made meanwhile aren't missed too. Changes are
+            // idempotent, so it doesn't matter if some arrive twice.
+            peer.changes.clear();
+            peer.alive = true;
+
+            for (Map.Entry<String, Collection<String>> site : listener.registrations().entrySet()) {
+                for (String registrationToken : site.getValue()) {
+                    peer.changes.offer(change(site.getKey(), registrationToken, true, true));
+                }
+            }
+            int registered = peer.changes.size();
+
+            // The peer may still hold devices unregistered whilst it was away.
+            for (Unregistration unregistration : unregistrations.values()) {
+                peer.changes.offer(change(unregistration.site, unregistration.registrationToken, false, true));
+            }
+
+            logger.info("Cluster peer " + peer.address + " joined, syncing " + registered + " registrations and "
+                    + (peer.changes.size() - registered) + " unregistrations");
+            rebuild();
+        } finally {
+            membershipLock.unlock();
+        }
+    }
+
+    private void down(Peer peer) {
+        membershipLock.lock();
+        try {
+            if (!peer.alive) {
+                return;
+            }
+
+            peer.alive = false;
+            peer.changes.clear();
+            logger.warning("Cluster peer " + peer.address + " left");
+            rebuild();
+        } finally {
+            membershipLock.unlock();
+        }
+    }
+
+    /**
+     * Keep track of unregistrations to catch rejoining peers up on, forgetting them if the device registers again.
+     */
+    private void remember(String site, String registrationToken, boolean registered) {
+        String key = site + " " + registrationToken;
+
+        if (registered) {
+            unregistrations.remove(key);
+        } else if (unregistrations.size() < MAX_UNREGISTRATIONS) {
+            unregistrations.put(key, new Unregistration(site, registrationToken, System.currentTimeMillis()));
+        }
+    }
+
+    private void rebuild() {
+        List<String> members = new ArrayList<String>();
+        members.add(address);
+
+        for (Peer peer : peers.values()) {
+            if (peer.alive) {
+                members.add(peer.address);
+            }
+        }
+
+        ring = new ConsistentHashRing(members);
+        membershipChanges.increment();
+        logger.info("Cluster ring is now " + ring);
+    }
+
+    /**
+     * @return A ring of the members given, the current one if they're the same.
+     */
+    private ConsistentHashRing ringFor(List<String> members) {
+        ConsistentHashRing current = ring;
+        List<String> sorted = new ArrayList<String>(new TreeSet<String>(members));
+
+        if (current.getMembers().equals(sorted)) {
+            return current;
+        }
+
+        String key = sorted.toString();
+        ConsistentHashRing cached = rings.get(key);
+
+        if (cached == null) {
+            if (rings.size() >= MAX_CACHED_RINGS) {
+                rings.clear();
+            }
+
+            cached = new ConsistentHashRing(members);
+            rings.put(key, cached);
+        }
+
+        return cached;
+    }
+
+    private void heartbeatLoop() {
+        while (!Thread.currentThread().isInterrupted()) {
+            JsonObject request = heartbeat();
+
+            for (Peer peer : peers.values()) {
+                try {
+                    JsonObject response = post(peer.heartbeat, gson.toJson(request));
+
+                    String peerAddress = response.get("address").getAsString();
+                    if (!peerAddress.equals(peer.address)) {
+                        // Configured by another name than it goes by, eg localhost rather than 127.0.0.1.
+                        logger.info("Cluster peer " + peer.address + " is " + peerAddress);
+                        forget(peer);
+                        learn(peerAddress, peer.seed);
+                        continue;
+                    }
+
+                    seen(peer);
+                    learnAll(response);
+                } catch (IOException | RuntimeException e) {
+                    logger.log(Level.FINE, "No heartbeat from cluster peer " + peer.address, e);
+                }
+            }
+
+            long now = System.currentTimeMillis();
+
+            for (Iterator<Unregistration> i = unregistrations.values().iterator(); i.hasNext(); ) {
+                if (now - i.next().at > UNREGISTRATION_RETENTION_MILLIS) {
+                    i.remove();
+                }
+            }
+
+            for (Peer peer : peers.values()) {
+                if (peer.alive && now - peer.lastSeen > FAILURE_TIMEOUT_MILLIS) {
+                    down(peer);
+                } else if (!peer.alive && !peer.seed && now - peer.lastSeen > FORGET_AFTER_MILLIS) {
+                    forget(peer);
+                }
+            }
+
+            try {
+                Thread.sleep(HEARTBEAT_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void forget(Peer peer) {
+        down(peer);
+        peers.remove(peer.address, peer);
+        peer.forgotten = true;
+    }
+
+    private JsonObject heartbeat() {
+        JsonObject heartbeat = new JsonObject();
+        heartbeat.addProperty("address", address);
+        heartbeat.add("peers", gson.toJsonTree(new ArrayList<String>(peers.keySet())));
+        return heartbeat;
+    }
+
+    private void learnAll(JsonObject heartbeat) {
+        JsonArray known = heartbeat.getAsJsonArray("peers");
+        if (known == null) {
+            return;
+        }
+
+        for (JsonElement peerAddress : known) {
+            learn(peerAddress.getAsString(), false);
+        }
+    }
+
+
+    // MARK: Requests from peers
+
+    private JsonObject onHeartbeat(JsonObject request) {
+        Peer peer = learn(request.get("address").getAsString(), false);
+        if (peer != null) {
+            seen(peer);
+        }
+
+        learnAll(request);
+        return heartbeat();
+    }
+
+    private JsonObject onRegistrations(JsonObject request) {
+        for (JsonElement element : request.getAsJsonArray("changes")) {
+            JsonObject change = element.getAsJsonObject();
+            String site = change.get("site").getAsString();
+            String registrationToken = change.get("token").getAsString();
+            boolean registered = change.get("registered").getAsBoolean();
+
+            // A peer catching us up may have been away when the device was unregistered, which is the newer news.
+            if (registered && change.has("sync") && unregistrations.containsKey(site + " " + registrationToken)) {
+                continue;
+            }
+
+            // Remembered here too, in case the peer that made the change is away when another rejoins.
+            remember(site, registrationToken, registered);
+            listener.onRegistration(site, registrationToken, registered);
+        }
+
+        return new JsonObject();
+    }
+
+    private JsonObject onEvent(JsonObject request) {
+        List<String> members = new ArrayList<String>();
+        for (JsonElement member : request.getAsJsonArray("members")) {
+            members.add(member.getAsString());
+        }
+
+        PushMessage message = gson.fromJson(request.get("message"), PushMessage.class);
+        message.createdAt = request.get("created_at").getAsLong();
+        message.slice = slice(members);
+
+        listener.onEvent(request.get("site").getAsString(), message);
+        return new JsonObject();
+    }
+
+    private static JsonObject change(String site, String registrationToken, boolean registered) {
+        return change(site, registrationToken, registered, false);
+    }
+
+    /**
+     * @param sync Whether the change is part of catching up a peer that joined, rather than just made.
+     */
+    private static JsonObject change(String site, String registrationToken, boolean registered, boolean sync) {
+        JsonObject change = new JsonObject();
+        change.addProperty("site", site);
+        change.addProperty("token", registrationToken);
+        change.addProperty("registered", registered);
+        if (sync) {
+            change.addProperty("sync", true);
+        }
+        return change;
+    }
+
+    private JsonObject post(URL url, String body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout((int) FORWARD_TIMEOUT_MILLIS);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Authorization", authorization);
+        connection.setRequestProperty("Content-Type", "application/json");
+
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        connection.setFixedLengthStreamingMode(bytes.length);
+
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(bytes);
+        }
+
+        int status = connection.getResponseCode();
+        if (status != HttpURLConnection.HTTP_OK) {
+            InputStream error = connection.getErrorStream();
+            if (error != null) {
+                error.close();
+            }
+            throw new IOException("Cluster peer " + url.getAuthority() + " responded with HTTP " + status);
+        }
+
+        try (Reader in = new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8)) {
+            return new JsonParser().parse(in).getAsJsonObject();
+        }
+    }
+
+
+    /**
+     * The part of a broadcast a member sends: the devices whose tokens belong to any of the covered members of
+     * the ring the broadcast was partitioned with.
+     */
+    public static class Slice {
+
+        private final ConsistentHashRing ring;
+        private final Set<String> covering;
+        private final boolean origin;
+
+        Slice(ConsistentHashRing ring, Set<String> covering, boolean origin) {
+            this.ring = ring;
+            this.covering = covering;
+            this.origin = origin;
+        }
+
+        /**
+         * @return Whether this member read the event from beanstalk, and so sends anything sent only once, such as
+         *         the message to a topic.
+         */
+        public boolean isOrigin() {
+            return origin;
+        }
+
+        /**
+         * @return Members of the ring the broadcast was sliced with.
+         */
+        public List<String> getMembers() {
+            return ring.getMembers();
+        }
+
+        public boolean covers(String registrationToken) {
+            return covering.contains(ring.owner(registrationToken));
+        }
+
+        /**
+         * @return The tokens this slice covers.
+         */
+        public List<String> select(Collection<String> registrationTokens) {
+            List<String> selected = new ArrayList<String>(registrationTokens.size() / ring.getMembers().size() + 16);
+
+            for (String registrationToken : registrationTokens) {
+                if (covers(registrationToken)) {
+                    selected.add(registrationToken);
+                }
+            }
+
+            return selected;
+        }
+
+        /**
+         * @return Whether the two slices cover the same tokens, so a selection made with one holds for the other.
+         */
+        public boolean sameAs(Slice other) {
+            return other != null && ring == other.ring && covering.equals(other.covering);
+        }
+    }
+
+
+    /**
+     * Handles a JSON request from a peer, checking it is authorised.
+     */
+    private abstract class Handler implements HttpHandler {
+
+        // Where requests are handled, if not on the server's own threads.
+        private final ExecutorService executor;
+
+        Handler() {
+            this(null);
+        }
+
+        Handler(ExecutorService executor) {
+            this.executor = executor;
+        }
+
+        abstract JsonObject handle(JsonObject request);
+
+        /**
+         * Check the secret in constant time, so how long a guess takes to refuse doesn't give away how much of it
+         * was right.
+         */
+        private boolean authorised(String header) {
+            return header != null && MessageDigest.isEqual(header.getBytes(StandardCharsets.UTF_8),
+                    authorization.getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void handle(final HttpExchange exchange) throws IOException {
+            if (executor == null) {
+                respond(exchange);
+                return;
+            }
+
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            respond(exchange);
+                        } catch (IOException e) {
+                            logger.log(Level.FINE, "Unable to answer cluster peer at " + exchange.getRequestURI(), e);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                exchange.close();
+            }
+        }
+
+        private void respond(HttpExchange exchange) throws IOException {
+            try {
+                if (!"POST".equals(exchange.getRequestMethod())) {
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+
+                if (!authorised(exchange.getRequestHeaders().getFirst("Authorization"))) {
+                    exchange.sendResponseHeaders(401, -1);
+                    return;
+                }
+
+                JsonObject response;
+                try (Reader in = new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)) {
+                    response = handle(new JsonParser().parse(in).getAsJsonObject());
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "Unable to handle request from cluster peer at "
+                            + exchange.getRequestURI(), e);
+                    exchange.sendResponseHeaders(400, -1);
+                    return;
+                }
+
+                byte[] body = gson.toJson(response).getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, body.length);
+
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+
+
+    private static class Unregistration {
+        final String site;
+        final String registrationToken;
+        final long at;
+
+        Unregistration(String site, String registrationToken, long at) {
+            this.site = site;
+            this.registrationToken = registrationToken;
+            this.at = at;
+        }
+    }
+
+
+    /**
+     * Another member of the cluster, and the worker replicating registrations to it.
+     */
+    private class Peer implements Runnable {
+
+        final String address;
+        final boolean seed;
+        final URL heartbeat;
+        final URL registrations;
+        final URL events;
+
+        final LinkedBlockingQueue<JsonObject> changes = new LinkedBlockingQueue<JsonObject>();
+
+        volatile boolean alive;
+        volatile long lastSeen = System.currentTimeMillis();
+        volatile boolean forgotten;
+
+        Peer(String address, boolean seed) throws IOException {
+            this.address = address;
+            this.seed = seed;
+            this.heartbeat = new URL("http://" + address + "/cluster/heartbeat");
+            this.registrations = new URL("http://" + address + "/cluster/registrations");
+            this.events = new URL("http://" + address + "/cluster/events");
+        }
+
+        @Override
+        public void run() {
+            List<JsonObject> batch = new ArrayList<JsonObject>(MAX_BATCH);
+            long backoff = INITIAL_BACKOFF_MILLIS;
+
+            while (!forgotten && !Thread.currentThread().isInterrupted()) {
+                try {
+                    JsonObject first = changes.poll(HEARTBEAT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+
+                    batch.add(first);
+                    changes.drainTo(batch, MAX_BATCH - 1);
+
+                    // Retry until the peer takes the batch, or leaves the ring and gets a full sync on rejoining.
+                    while (alive) {
+                        try {
+                            JsonObject request = new JsonObject();
+                            JsonArray array = new JsonArray();
+                            for (JsonObject change : batch) {
+                                array.add(change);
+                            }
+                            request.add("changes", array);
+
+                            post(registrations, gson.toJson(request));
+                            backoff = INITIAL_BACKOFF_MILLIS;
+                            break;
+                        } catch (IOException e) {
+                            logger.log(Level.FINE, "Unable to replicate registrations to " + address, e);
+                            Thread.sleep(backoff);
+                            backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+                        }
+                    }
+
+                    batch.clear();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright 2016 Jethro Carr. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jethrocarr.howalarming.gcmserver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * An immutable consistent hash ring, assigning each registration token to one of the members of a cluster.
+ *
+ * Every member is placed on the ring at a number of points (virtual nodes), and a token belongs to the member
+ * owning the first point at or after the token's hash. Adding or removing a member only moves the tokens between
+ * it and its neighbours, roughly 1/n of them, and the virtual nodes keep each member's share close to even.
+ *
+ * Two rings built from the same members always agree, whichever node builds them.
+ */
+public class ConsistentHashRing {
+
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    private final List<String> members;
+
+    // Hashes of the points on the ring in ascending order, and the member each belongs to.
+    private final long[] points;
+    private final String[] owners;
+
+    public ConsistentHashRing(Collection<String> members) {
+        this(members, DEFAULT_VIRTUAL_NODES);
+    }
+
+    public ConsistentHashRing(Collection<String> members, int virtualNodes) {
+        // Sorted, so that the ring is the same whatever order the members were learnt in.
+        this.members = Collections.unmodifiableList(new ArrayList<String>(new TreeSet<String>(members)));
+
+        int count = this.members.size() * virtualNodes;
+        long[] hashes = new long[count];
+        String[] hashOwners = new String[count];
+
+        int i = 0;
+        for (String member : this.members) {
+            for (int v = 0; v < virtualNodes; v++) {
+                hashes[i] = hash(member + "#" + v);
+                hashOwners[i] = member;
+                i++;
+            }
+        }
+
+        // Sort the points, carrying their owners along. Collisions between 64 bit hashes can be ignored.
+        Integer[] order = new Integer[count];
+        for (i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        final long[] unsorted = hashes;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(unsorted[a], unsorted[b]);
+            }
+        });
+
+        points = new long[count];
+        owners = new String[count];
+        for (i = 0; i < count; i++) {
+            points[i] = hashes[order[i]];
+            owners[i] = hashOwners[order[i]];
+        }
+    }
+
+    /**
+     * @return Members of the ring, in sorted order.
+     */
+    public List<String> getMembers() {
+        return members;
+    }
+
+    /**
+     * @return The member the key belongs to, or null if the ring has no members.
+     */
+    public String owner(String key) {
+        if (points.length == 0) {
+            return null;
+        }
+
+        int index = Arrays.binarySearch(points, hash(key));
+        if (index < 0) {
+            index = -index - 1;
+        }
+
+        // Past the last point wraps around to the first.
+        return owners[index == points.length ? 0 : index];
+    }
+
+    /**
+     * 64 bit FNV-1a over the string's characters, finished with MurmurHash3's mix so that similar tokens land far
+     * apart on the ring.
+     */
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return members.toString();
+    }
+}
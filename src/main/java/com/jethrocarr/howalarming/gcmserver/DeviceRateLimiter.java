@@ -0,0 +1,216 @@
+/**
+ * Copyright 2016 Jethro Carr. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jethrocarr.howalarming.gcmserver;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Limits the upstream traffic we act on from each device, so that a misbehaving app or every phone waking at once
+ * can't tie up the CCS listener, our share of CCS throughput or the beanstalk producers.
+ *
+ * Each registration token gets a token bucket, allowing bursts of up to `burst` messages and refilling at `rate`
+ * per second. The bucket is held as a single theoretical arrival time (GCRA), so checking it is one CAS and a
+ * bucket costs one small object. A bucket that has refilled completely is indistinguishable from a new one, so
+ * such buckets are dropped by a periodic sweep and only recently active devices are held.
+ *
+ * Pings are also coalesced: a device pinging again within the coalescing window, whilst the alarm state is
+ * unchanged, has already been sent the status it's asking for. Replies are tracked per site, as a device can be
+ * registered with several, and only once they've actually been handed to the transport.
+ */
+public class DeviceRateLimiter {
+
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    private final long intervalNanos;
+    private final long toleranceNanos;
+    private final long coalesceNanos;
+
+    private final ConcurrentHashMap<String, Device> devices;
+    // Last status reply sent to each device, by site and registration token.
+    private final ConcurrentHashMap<String, PingReply> pingReplies;
+    private final AtomicLong nextSweep;
+
+    /**
+     * @param rate Messages per second each device is allowed on average.
+     * @param burst Messages a device can send at once after being quiet.
+     * @param coalesceSeconds Pings within this many seconds of a status reply are coalesced into it, 0 disables.
+     */
+    public DeviceRateLimiter(double rate, int burst, int coalesceSeconds) {
+        intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        toleranceNanos = intervalNanos * (Math.max(1, burst) - 1);
+        coalesceNanos = TimeUnit.SECONDS.toNanos(coalesceSeconds);
+
+        devices = new ConcurrentHashMap<String, Device>();
+        pingReplies = new ConcurrentHashMap<String, PingReply>();
+        nextSweep = new AtomicLong(System.nanoTime() + SWEEP_INTERVAL_NANOS);
+    }
+
+    /**
+     * Take a token from the device's bucket.
+     *
+     * @return false if the device is over its limit and the message should be dropped.
+     */
+    public boolean tryAcquire(String registrationToken) {
+        long now = System.nanoTime();
+        sweepIfDue(now);
+
+        return device(registrationToken, now).tryAcquire(now, intervalNanos, toleranceNanos);
+    }
+
+    /**
+     * Check whether a ping needs a reply of its own, without recording anything. Doesn't take a token, so pings
+     * that are coalesced never eat into the allowance for commands.
+     *
+     * @param status The status the reply would carry, compared by identity with the one last sent.
+     * @return false if the device was sent this status for the site within the coalescing window.
+     */
+    public boolean shouldReplyToPing(String site, String registrationToken, Object status) {
+        if (coalesceNanos == 0) {
+            return true;
+        }
+
+        PingReply reply = pingReplies.get(pingKey(site, registrationToken));
+        return reply == null || reply.status != status || System.nanoTime() - reply.sentAt >= coalesceNanos;
+    }
+
+    /**
+     * Record that a status reply has been sent to the device, so that pings within the coalescing window can be
+     * answered by it. Replies dropped whilst still queued mustn't be recorded, or the device's pings would go
+     * unanswered. Two pings racing between the check and this may both be replied to, coalescing is best effort.
+     */
+    public void recordPingReply(String site, String registrationToken, Object status) {
+        if (coalesceNanos == 0) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        sweepIfDue(now);
+
+        pingReplies.put(pingKey(site, registrationToken), new PingReply(now, status));
+    }
+
+    /**
+     * @return Number of devices currently being tracked.
+     */
+    public int size() {
+        return devices.size();
+    }
+
+    private static String pingKey(String site, String registrationToken) {
+        return site + " " + registrationToken;
+    }
+
+    private Device device(String registrationToken, long now) {
+        Device device = devices.get(registrationToken);
+
+        if (device == null) {
+            // Must start from the same reading as the acquire, a later one would refuse the first message when
+            // there's no burst to absorb the difference.
+            Device created = new Device(now);
+            device = devices.putIfAbsent(registrationToken, created);
+            if (device == null) {
+                device = created;
+            }
+        }
+
+        return device;
+    }
+
+    private void sweepIfDue(long now) {
+        long due = nextSweep.get();
+
+        if (now - due < 0 || !nextSweep.compareAndSet(due, now + SWEEP_INTERVAL_NANOS)) {
+            return;
+        }
+
+        sweep(now);
+    }
+
+    /**
+     * Drop devices whose bucket has refilled and status replies that have left the coalescing window. A device
+     * that races with its removal may see one message go unlimited, which is harmless.
+     */
+    void sweep(long now) {
+        for (Iterator<Map.Entry<String, Device>> i = devices.entrySet().iterator(); i.hasNext(); ) {
+            Device device = i.next().getValue();
+
+            if (device.isIdle(now)) {
+                i.remove();
+            }
+        }
+
+        for (Iterator<Map.Entry<String, PingReply>> i = pingReplies.entrySet().iterator(); i.hasNext(); ) {
+            if (now - i.next().getValue().sentAt >= coalesceNanos) {
+                i.remove();
+            }
+        }
+    }
+
+
+    private static class Device {
+
+        private static final AtomicLongFieldUpdater<Device> ARRIVAL =
+                AtomicLongFieldUpdater.newUpdater(Device.class, "arrival");
+
+        // Time by which the bucket will have refilled, ahead of now by the tokens in use times the interval.
+        private volatile long arrival;
+
+        Device(long now) {
+            arrival = now;
+        }
+
+        boolean tryAcquire(long now, long intervalNanos, long toleranceNanos) {
+            while (true) {
+                long current = arrival;
+                long start = now - current > 0 ? now : current;
+
+                if (start - now > toleranceNanos) {
+                    return false;
+                }
+
+                if (ARRIVAL.compareAndSet(this, current, start + intervalNanos)) {
+                    return true;
+                }
+            }
+        }
+
+        boolean isIdle(long now) {
+            return now - arrival >= 0;
+        }
+    }
+
+
+    /**
+     * When a status reply was queued and what it carried, replaced as a whole so the two are always read together.
+     */
+    private static class PingReply {
+
+        final long sentAt;
+        final Object status;
+
+        PingReply(long sentAt, Object status) {
+            this.sentAt = sentAt;
+            this.status = status;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/**
+ * Copyright 2016 Jethro Carr. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jethrocarr.howalarming.gcmserver;
+
+/**
+ * A fully rendered stanza addressed to a single device, along with what we need to know to retry it.
+ */
+public class DownstreamMessage {
+
+    /**
+     * Order in which queued messages are sent, anything queued at a higher priority goes out first.
+     */
+    public enum Priority {
+        HIGH,
+        NORMAL,
+        LOW
+    }
+
+    /**
+     * Follows the messages sent for a single push, eg to learn when every device has been reached.
+     */
+    public interface Delivery {
+        /**
+         * The given number of messages are done with, whether acked by CCS, refused for good or expired.
+         */
+        void settled(int count);
+
+        /**
+         * The message never reached CCS, or CCS never answered it, and it may be sent again.
+         */
+        void lost(DownstreamMessage message);
+    }
+
+    // A time_to_live of 0 asks FCM to deliver now or never, which still has to get through our own queues first.
+    private static final long IMMEDIATE_DELIVERY_MILLIS = 5000;
+
+    private final String messageId;
+    private final String to;
+    private final String payload;
+
+    // FCM time_to_live of the message in seconds, or null if FCM's default applies.
+    private final Integer timeToLive;
+    private final Priority priority;
+
+    // Wall clock time the message was first sent, retries keep the original time so TTLs are honoured.
+    private final long createdAt;
+    private final int attempt;
+
+    // Following the push this message is part of, or null if nothing is.
+    private final Delivery delivery;
+
+    // Run once the message has been handed to a transport, or null.
+    private final Runnable onSent;
+
+    public DownstreamMessage(String messageId, String to, String payload, Integer timeToLive) {
+        this(messageId, to, payload, timeToLive, Priority.NORMAL, System.currentTimeMillis());
+    }
+
+    /**
+     * @param createdAt Wall clock time the message came into being, which its time_to_live counts from.
+     */
+    public DownstreamMessage(String messageId, String to, String payload, Integer timeToLive, Priority priority,
+                             long createdAt) {
+        this(messageId, to, payload, timeToLive, priority, createdAt, null);
+    }
+
+    /**
+     * @param createdAt Wall clock time the message came into being, which its time_to_live counts from.
+     * @param delivery Told when the message is done with, or null.
+     */
+    public DownstreamMessage(String messageId, String to, String payload, Integer timeToLive, Priority priority,
+                             long createdAt, Delivery delivery) {
+        this(messageId, to, payload, timeToLive, priority, createdAt, delivery, null);
+    }
+
+    /**
+     * @param createdAt Wall clock time the message came into being, which its time_to_live counts from.
+     * @param delivery Told when the message is done with, or null.
+     * @param onSent Run once the message has been handed to a transport rather than dropped unsent, or null.
+     */
+    public DownstreamMessage(String messageId, String to, String payload, Integer timeToLive, Priority priority,
+                             long createdAt, Delivery delivery, Runnable onSent) {
+        this(messageId, to, payload, timeToLive, priority, createdAt, 1, delivery, onSent);
+    }
+
+    private DownstreamMessage(String messageId, String to, String payload, Integer timeToLive, Priority priority,
+                              long createdAt, int attempt, Delivery delivery, Runnable onSent) {
+        this.messageId = messageId;
+        this.to = to;
+        this.payload = payload;
+        this.timeToLive = timeToLive;
+        this.priority = priority;
+        this.createdAt = createdAt;
+        this.attempt = attempt;
+        this.delivery = delivery;
+        this.onSent = onSent;
+    }
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    public String getTo() {
+        return to;
+    }
+
+    public String getPayload() {
+        return payload;
+    }
+
+    public Integer getTimeToLive() {
+        return timeToLive;
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public int getAttempt() {
+        return attempt;
+    }
+
+    /**
+     * @return What is following the push this message is part of, or null if nothing is.
+     */
+    public Delivery getDelivery() {
+        return delivery;
+    }
+
+    /**
+     * Tell whatever is following the message that it is done with.
+     */
+    public void settle() {
+        if (delivery != null) {
+            delivery.settled(1);
+        }
+    }
+
+    /**
+     * Tell whatever asked that the message has been handed to a transport.
+     */
+    public void sent() {
+        if (onSent != null) {
+            onSent.run();
+        }
+    }
+
+    /**
+     * @return true if the message's time_to_live has elapsed since it was first sent. A TTL of 0 means the
+     *         message was only ever good for immediate delivery.
+     */
+    public boolean isExpired(long now) {
+        if (timeToLive == null) {
+            return false;
+        }
+
+        return timeToLive == 0 || now - createdAt >= timeToLive * 1000L;
+    }
+
+    /**
+     * @return Wall clock time after which the message is no longer worth putting on the wire.
+     */
+    public long getDeadline() {
+        return deadline(createdAt, timeToLive);
+    }
+
+    /**
+     * @return Wall clock time after which a message created at the given time with the given time_to_live is no
+     *         longer worth putting on the wire, or Long.MAX_VALUE if it never goes stale.
+     */
+    public static long deadline(long createdAt, Integer timeToLive) {
+        if (timeToLive == null) {
+            return Long.MAX_VALUE;
+        }
+
+        if (timeToLive == 0) {
+            return createdAt + IMMEDIATE_DELIVERY_MILLIS;
+        }
+
+        return createdAt + timeToLive * 1000L;
+    }
+
+    /**
+     * @return A copy of this message for the next delivery attempt.
+     */
+    public DownstreamMessage retry() {
+        return new DownstreamMessage(messageId, to, payload, timeToLive, priority, createdAt, attempt + 1, delivery,
+                onSent);
+    }
+}
@@ -0,0 +1,284 @@
+/**
+ * Copyright 2016 Jethro Carr. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jethrocarr.howalarming.gcmserver;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * CCS allows at most 100 downstream messages to be awaiting an ack/nack on a connection at any one time, beyond
+ * that messages get throttled or dropped. FlowControlWindow tracks each message sent until CCS responds to it and
+ * blocks senders once the window is full.
+ */
+public class FlowControlWindow {
+
+    private static final Logger logger = Logger.getLogger("FlowControlWindow");
+
+    public static final int CCS_MAX_PENDING = 100;
+
+    // If CCS hasn't responded to a message within this time (eg the connection was lost) we give up waiting on
+    // it, so that lost acks can't permanently shrink the window.
+    private static final long ACK_TIMEOUT_MILLIS = 30000;
+
+    public enum State {
+        PENDING,
+        ACKED,
+        NACKED,
+        TIMED_OUT
+    }
+
+    /**
+     * A downstream message that has been given a place in the window, and is either waiting to be written or has
+     * been sent to CCS.
+     */
+    public static class PendingMessage {
+
+        private final DownstreamMessage message;
+
+        // Time the message was written to CCS, or took its place in the window until then.
+        private volatile long sentAt;
+        private volatile boolean written;
+
+        private volatile State state;
+        private volatile long roundTripNanos;
+
+        PendingMessage(DownstreamMessage message) {
+            this.message = message;
+            this.sentAt = System.nanoTime();
+            this.state = State.PENDING;
+            this.roundTripNanos = -1;
+        }
+
+        public DownstreamMessage getMessage() {
+            return message;
+        }
+
+        public String getMessageId() {
+            return message.getMessageId();
+        }
+
+        /**
+         * @return Time the message was written to CCS, or took its place in the window if it hasn't been yet.
+         */
+        public long getSentAt() {
+            return sentAt;
+        }
+
+        /**
+         * @return true once the message has been written to CCS.
+         */
+        public boolean isWritten() {
+            return written;
+        }
+
+        private void written() {
+            sentAt = System.nanoTime();
+            written = true;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        /**
+         * @return Time between sending the message and CCS responding to it, or -1 if it is still pending.
+         */
+        public long getRoundTripNanos() {
+            return roundTripNanos;
+        }
+
+        private void complete(State state) {
+            this.roundTripNanos = System.nanoTime() - sentAt;
+            this.state = state;
+        }
+    }
+
+
+    private final ConcurrentHashMap<String, PendingMessage> pending;
+    private final Semaphore window;
+
+    public FlowControlWindow() {
+        this(CCS_MAX_PENDING);
+    }
+
+    public FlowControlWindow(int size) {
+        pending = new ConcurrentHashMap<String, PendingMessage>();
+        window = new Semaphore(size, true);
+    }
+
+    /**
+     * Reserve a place in the window for a message about to be sent, blocking until one is available.
+     *
+     * @return The tracking entry for the message.
+     */
+    public PendingMessage acquire(DownstreamMessage message) throws InterruptedException {
+        while (!window.tryAcquire(ACK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+            logger.warning("No space in flow control window after " + ACK_TIMEOUT_MILLIS + "ms, "
+                    + pending.size() + " messages in flight");
+            expire();
+        }
+
+        return track(message);
+    }
+
+    /**
+     * Reserve a place in the window for a message about to be sent if one is immediately available.
+     *
+     * @return The tracking entry for the message, or null if the window is full.
+     */
+    public PendingMessage tryAcquire(DownstreamMessage message) {
+        if (!window.tryAcquire()) {
+            return null;
+        }
+
+        return track(message);
+    }
+
+    private PendingMessage track(DownstreamMessage message) {
+        String messageId = message.getMessageId();
+        PendingMessage tracked = new PendingMessage(message);
+        PendingMessage replaced = pending.put(messageId, tracked);
+
+        // A reused message ID means we can no longer tell which message a response belongs to, so stop waiting
+        // on the older one rather than leaking its place in the window.
+        if (replaced != null) {
+            logger.warning("Message ID " + messageId + " reused whilst still in flight");
+            replaced.complete(State.TIMED_OUT);
+            window.release();
+            lost(replaced);
+        }
+
+        return tracked;
+    }
+
+    /**
+     * Handle an ack from CCS for the given message.
+     *
+     * @return The completed message, or null if the message was not being tracked.
+     */
+    public PendingMessage acknowledged(String messageId) {
+        return complete(messageId, State.ACKED);
+    }
+
+    /**
+     * Handle a nack from CCS for the given message.
+     *
+     * @return The completed message, or null if the message was not being tracked.
+     */
+    public PendingMessage rejected(String messageId) {
+        return complete(messageId, State.NACKED);
+    }
+
+    /**
+     * Record that a message has been written to CCS, from when its ack is timed and can time out. Time spent
+     * before then waiting on the connection's writer doesn't count.
+     */
+    public void written(String messageId) {
+        PendingMessage message = pending.get(messageId);
+
+        if (message != null) {
+            message.written();
+        }
+    }
+
+    /**
+     * Stop tracking a message that never made it onto the wire.
+     */
+    public void abandon(String messageId) {
+        complete(messageId, State.TIMED_OUT);
+    }
+
+    /**
+     * Give up on any messages that have been waiting on CCS for longer than the ack timeout. Messages yet to be
+     * written are left to the writer, which gives up on them itself if it can't write them.
+     *
+     * @return Number of messages expired.
+     */
+    public int expire() {
+        long cutoff = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(ACK_TIMEOUT_MILLIS);
+        int expired = 0;
+
+        Iterator<PendingMessage> iterator = pending.values().iterator();
+        while (iterator.hasNext()) {
+            PendingMessage message = iterator.next();
+
+            if (message.written && message.sentAt - cutoff < 0 && complete(message.getMessageId(), State.TIMED_OUT) != null) {
+                lost(message);
+                expired++;
+            }
+        }
+
+        if (expired > 0) {
+            logger.warning("Expired " + expired + " messages that were never acknowledged by CCS");
+        }
+
+        return expired;
+    }
+
+    /**
+     * Give up on every message still waiting on CCS, eg because the connection they were sent on has been closed
+     * and their acks will never arrive.
+     *
+     * @return Number of messages given up on.
+     */
+    public int failAll() {
+        int failed = 0;
+
+        for (PendingMessage message : pending.values()) {
+            if (complete(message.getMessageId(), State.TIMED_OUT) != null) {
+                lost(message);
+                failed++;
+            }
+        }
+
+        return failed;
+    }
+
+    /**
+     * Hand a message CCS never answered back to whatever is following it, so it can be sent again.
+     */
+    private static void lost(PendingMessage message) {
+        DownstreamMessage.Delivery delivery = message.getMessage().getDelivery();
+
+        if (delivery != null) {
+            delivery.lost(message.getMessage());
+        }
+    }
+
+    private PendingMessage complete(String messageId, State state) {
+        PendingMessage message = pending.remove(messageId);
+
+        // Only the caller that actually removed the entry gets to release its place in the window.
+        if (message != null) {
+            message.complete(state);
+            window.release();
+        }
+
+        return message;
+    }
+
+    /**
+     * @return Number of messages currently awaiting a response from CCS.
+     */
+    public int inFlight() {
+        return pending.size();
+    }
+}
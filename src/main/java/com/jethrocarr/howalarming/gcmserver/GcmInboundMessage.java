@@ -0,0 +1,256 @@
+/**
+ * Copyright 2016 Jethro Carr. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jethrocarr.howalarming.gcmserver;
+
+import com.google.gson.stream.JsonReader;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+/**
+ * The routing fields of a message received from CCS, scanned from the JSON text without building a tree of it.
+ *
+ * During a broadcast almost everything we receive is an ack or nack, which only need these fields. Only upstream
+ * messages from devices carry a data payload worth parsing in full, which is left to the caller.
+ */
+public class GcmInboundMessage {
+
+    private String messageType;
+    private String messageId;
+    private String from;
+    private String error;
+    private String controlType;
+    private boolean hasData;
+
+    private GcmInboundMessage() {
+    }
+
+    /**
+     * @return The scanned message, or null if the JSON is malformed.
+     */
+    public static GcmInboundMessage scan(String json) {
+        GcmInboundMessage message = new GcmInboundMessage();
+        Scanner scanner = new Scanner(json);
+
+        if (!scanner.consume('{')) {
+            return null;
+        }
+
+        if (scanner.consume('}')) {
+            return message;
+        }
+
+        do {
+            String name = scanner.string();
+            if (name == null || !scanner.consume(':')) {
+                return null;
+            }
+
+            char next = scanner.peek();
+
+            if (next == '"') {
+                String value = scanner.string();
+                if (value == null) {
+                    return null;
+                }
+                message.set(name, value);
+            } else if (next == '{' || next == '[') {
+                if (name.equals("data")) {
+                    message.hasData = next == '{';
+                }
+                if (!scanner.skipNested()) {
+                    return null;
+                }
+            } else {
+                String value = scanner.literal();
+                if (value == null) {
+                    return null;
+                }
+                message.set(name, value);
+            }
+        } while (scanner.consume(','));
+
+        return scanner.consume('}') ? message : null;
+    }
+
+    private void set(String name, String value) {
+        switch (name) {
+            case "message_type":
+                messageType = value;
+                break;
+            case "message_id":
+                messageId = value;
+                break;
+            case "from":
+                from = value;
+                break;
+            case "error":
+                error = value;
+                break;
+            case "control_type":
+                controlType = value;
+                break;
+        }
+    }
+
+    /**
+     * @return The message type (ack, nack, control, receipt), or null for an upstream message from a device.
+     */
+    public String getMessageType() {
+        return messageType;
+    }
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    public String getFrom() {
+        return from;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public String getControlType() {
+        return controlType;
+    }
+
+    public boolean hasData() {
+        return hasData;
+    }
+
+
+    /**
+     * Minimal JSON tokenizer over the raw message. Strings without escapes are returned as substrings of the
+     * message, anything escaped falls back to Gson's JsonReader to unescape.
+     */
+    private static class Scanner {
+
+        private final String json;
+        private int position;
+
+        Scanner(String json) {
+            this.json = json;
+        }
+
+        private void skipWhitespace() {
+            while (position < json.length() && json.charAt(position) <= ' ') {
+                position++;
+            }
+        }
+
+        char peek() {
+            skipWhitespace();
+            return position < json.length() ? json.charAt(position) : 0;
+        }
+
+        boolean consume(char expected) {
+            if (peek() != expected) {
+                return false;
+            }
+
+            position++;
+            return true;
+        }
+
+        /**
+         * @return The next string value, or null if there isn't a well formed one.
+         */
+        String string() {
+            if (!consume('"')) {
+                return null;
+            }
+
+            int start = position;
+            boolean escaped = false;
+
+            while (position < json.length()) {
+                char c = json.charAt(position++);
+
+                if (c == '\\') {
+                    escaped = true;
+                    position++;
+                } else if (c == '"') {
+                    if (!escaped) {
+                        return json.substring(start, position - 1);
+                    }
+                    return unescape(json.substring(start - 1, position));
+                }
+            }
+
+            return null;
+        }
+
+        private static String unescape(String quoted) {
+            try {
+                JsonReader reader = new JsonReader(new StringReader(quoted));
+                reader.setLenient(true);
+                return reader.nextString();
+            } catch (IOException | IllegalStateException e) {
+                return null;
+            }
+        }
+
+        /**
+         * @return The next number/true/false/null literal as text, or null if there isn't one.
+         */
+        String literal() {
+            skipWhitespace();
+            int start = position;
+
+            while (position < json.length()) {
+                char c = json.charAt(position);
+                if (c == ',' || c == '}' || c == ']' || c <= ' ') {
+                    break;
+                }
+                position++;
+            }
+
+            return position > start ? json.substring(start, position) : null;
+        }
+
+        /**
+         * Skip over a nested object or array, including any strings within it.
+         */
+        boolean skipNested() {
+            int depth = 0;
+            skipWhitespace();
+
+            while (position < json.length()) {
+                char c = json.charAt(position++);
+
+                if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    if (--depth == 0) {
+                        return true;
+                    }
+                } else if (c == '"') {
+                    while (position < json.length() && (c = json.charAt(position++)) != '"') {
+                        if (c == '\\') {
+                            position++;
+                        }
+                    }
+                }
+            }
+
+            return false;
+        }
+    }
+}
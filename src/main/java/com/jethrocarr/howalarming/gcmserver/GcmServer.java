@@ -19,164 +19,147 @@ package com.jethrocarr.howalarming.gcmserver;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
-import org.jivesoftware.smack.SmackException;
-import org.jivesoftware.smack.StanzaListener;
-import org.jivesoftware.smack.filter.StanzaFilter;
-import org.jivesoftware.smack.packet.ExtensionElement;
-import org.jivesoftware.smack.packet.Stanza;
-import org.jivesoftware.smack.provider.ExtensionElementProvider;
-import org.jivesoftware.smack.provider.ProviderManager;
-import org.jivesoftware.smack.util.StringUtils;
-import org.xmlpull.v1.XmlPullParser;
-import org.xmlpull.v1.XmlPullParserException;
-
-import java.io.IOException;
-import java.util.Calendar;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public abstract class GcmServer {
 
-  /**
-   * Extension of Packet to allow production and consumption of packets, to and from GCM.
-   */
-  public class GcmPacketExtension implements ExtensionElement {
-
-    private String json;
-
-    public GcmPacketExtension(String json) {
-      this.json = json;
-    }
-
-    public String getJson() {
-      return json;
-    }
-
-    @Override
-    public String getNamespace() {
-      return GCM_NAMESPACE;
-    }
-
-    @Override
-    public String getElementName() {
-      return GCM_ELEMENT_NAME;
-    }
-
-    @Override
-    public CharSequence toXML() {
-      return String.format("<%s xmlns=\"%s\">%s</%s>", getElementName(), getNamespace(), json,
-          getElementName());
-    }
-  }
-
   public static final String GCM_NAMESPACE = "google:mobile:data";
   public static final String GCM_ELEMENT_NAME = "gcm";
   public static final String GCM_HOST = "fcm-xmpp.googleapis.com";
   public static final int GCM_CCS_PORT = 5235;
+  public static final String FCM_HTTP_URL = "https://fcm.googleapis.com/fcm/send";
 
   private static final Logger logger = Logger.getLogger("GcmServer");
 
-  private SmackCcsClient smackCcsClient;
+  // Maximum number of times a message is sent before we give up retrying it.
+  private static final int MAX_SEND_ATTEMPTS = 5;
+  private static final long RETRY_BASE_MILLIS = 1000;
+  // How often spooled messages lost to an FCM outage are tried again if no ack shows FCM is back first.
+  private static final long STALLED_RESEND_MILLIS = 10000;
+
+  private static final Metrics.Histogram ackRoundTrip = Metrics.histogram("gcm_ack_round_trip_seconds",
+      "Time from a downstream message being sent to FCM acking it.");
+  private static final Metrics.LabeledCounter nacks = Metrics.counter("gcm_nacks_total",
+      "Downstream messages refused by FCM, by error code.", "error");
+
+  // Transport upstream messages arrive on, and the one downstream messages are sent on, usually the same.
+  private GcmTransport upstream;
+  private GcmTransport downstream;
+  // Priority lanes messages wait in until there is room for them on the transport.
+  private OutboundScheduler outbound;
+  // Schedules retries of nacked messages, which are then sent from the retry executor.
+  private HashedWheelTimer retryTimer;
+  private ExecutorService retryExecutor;
+  // Spooled messages that never reached FCM, held until it is reachable again.
+  private final ConcurrentLinkedQueue<DownstreamMessage> stalled =
+      new ConcurrentLinkedQueue<DownstreamMessage>();
+  private final AtomicBoolean resendingStalled = new AtomicBoolean();
+  private MessageIdGenerator messageIdGenerator;
   private Gson gson;
-  private JsonParser jsonParser;
-  // Filter to determine what messages get handled here, passed to external handler or ignored.
-  private StanzaFilter stanzaFilter;
-  // Handle normal, ack, nack and control type, incoming GCM messages. For normal messages,
-  // call onMessage to be handled externally. For other message types log their receipt but
-  // more involved handling could be done.
-  private StanzaListener stanzaListener;
 
   public GcmServer(String apiKey, String senderId, String serviceName) {
-    jsonParser = new JsonParser();
-    gson = new GsonBuilder().create();
-    String username = senderId + "@gcm.googleapis.com";
-    smackCcsClient = new SmackCcsClient(apiKey, username, serviceName, GCM_HOST, GCM_CCS_PORT);
+    this(apiKey, senderId, serviceName, 1);
+  }
 
-    // Add the GcmPacketExtension as an extension provider.
-    ProviderManager.addExtensionProvider(GCM_ELEMENT_NAME, GCM_NAMESPACE,
-        new ExtensionElementProvider<GcmPacketExtension>() {
-          @Override
-          public GcmPacketExtension parse(XmlPullParser parser, int initialDepth)
-              throws XmlPullParserException, IOException, SmackException {
-            String json = parser.nextText();
-            return new GcmPacketExtension(json);
-          }
-        });
+  /**
+   * @param connections Number of connections to keep open to CCS. Each connection can have up to
+   *                    100 messages awaiting an ack, so more connections allow for faster broadcasts.
+   */
+  public GcmServer(String apiKey, String senderId, String serviceName, int connections) {
+    this(apiKey, senderId, serviceName, connections, GCM_HOST, GCM_CCS_PORT, true);
+  }
+
+  /**
+   * @param connections Number of connections to keep open to CCS.
+   * @param host Host to connect to CCS on, eg a local stand-in when load testing.
+   * @param port Port to connect to CCS on.
+   * @param tls Whether to connect over TLS, as CCS requires.
+   */
+  public GcmServer(String apiKey, String senderId, String serviceName, int connections, String host,
+      int port, boolean tls) {
+    this(new CcsTransport(apiKey, senderId, serviceName, connections, host, port, tls), null,
+        connections);
+  }
 
-    stanzaFilter = new StanzaFilter() {
+  /**
+   * @param upstream Transport upstream messages from devices arrive on, which is also used to send
+   *                 downstream messages unless another is given.
+   * @param downstream Transport to send downstream messages on, or null to use the upstream one.
+   * @param senders Number of threads taking messages from the queue and handing them to the
+   *                transport, each of which blocks whilst the transport has no room.
+   */
+  public GcmServer(GcmTransport upstream, GcmTransport downstream, int senders) {
+    gson = new GsonBuilder().create();
+    messageIdGenerator = new MessageIdGenerator();
+    retryTimer = new HashedWheelTimer("GCM Retry Timer", 100, TimeUnit.MILLISECONDS, 512);
+    retryExecutor = Threads.newSerialExecutor("GCM Retry");
+    this.upstream = upstream;
+    this.downstream = downstream != null ? downstream : upstream;
+    outbound = new OutboundScheduler(new OutboundScheduler.Sender() {
       @Override
-      public boolean accept(Stanza stanza) {
-        // Accept messages from GCM CCS.
-        if (stanza.hasExtension(GCM_ELEMENT_NAME, GCM_NAMESPACE)) {
-          return true;
+      public boolean send(DownstreamMessage message) throws InterruptedException {
+        return GcmServer.this.downstream.send(message);
+      }
+    }, senders);
+    scheduleStalledResend();
+
+    GcmTransport.Listener listener = new GcmTransport.Listener() {
+      @Override
+      public void acked(DownstreamMessage message, long roundTripNanos) {
+        message.settle();
+        ackRoundTrip.record(roundTripNanos);
+
+        // FCM is answering, anything held back whilst it wasn't can go now.
+        if (!stalled.isEmpty()) {
+          resendStalled();
         }
-        // Reject messages that are not from GCM CCS.
-        return false;
       }
-    };
 
-    stanzaListener = new StanzaListener() {
       @Override
-      public void processPacket(Stanza packet) throws SmackException.NotConnectedException {
-        // Extract the GCM message from the packet.
-        GcmPacketExtension packetExtension =
-            (GcmPacketExtension) packet.getExtension(GCM_NAMESPACE);
-
-        JsonObject jGcmMessage = jsonParser.parse(packetExtension.getJson()).getAsJsonObject();
-        String from = jGcmMessage.get("from").getAsString();
-
-        // If there is no message_type normal GCM message is assumed.
-        if (!jGcmMessage.has("message_type")) {
-          if (StringUtils.isNotEmpty(from)) {
-            JsonObject jData = jGcmMessage.get("data").getAsJsonObject();
-            onMessage(from, jData);
-
-            // Send Ack to CCS to confirm receipt of upstream message.
-            String messageId = jGcmMessage.get("message_id").getAsString();
-            if (StringUtils.isNotEmpty(messageId)) {
-              sendAck(from, messageId);
-            } else {
-              logger.log(Level.SEVERE, "Message ID is null or empty.");
-            }
-          } else {
-            logger.log(Level.SEVERE, "From is null or empty.");
-          }
+      public void nacked(DownstreamMessage message, String from, String error) {
+        nacks.labels(error != null ? error : "unknown").increment();
+        handleNack(message, from, error);
+      }
+
+      @Override
+      public void expired(DownstreamMessage message) {
+        outbound.expired(message);
+        logger.fine("Dropped msg " + message.getMessageId() + ", time_to_live expired before it"
+            + " could be written");
+      }
+
+      @Override
+      public void failed(DownstreamMessage message, Throwable error) {
+        if (message.getDelivery() != null) {
+          logger.warning("Unable to send msg " + message.getMessageId() + " to " + message.getTo()
+              + " (" + error + "), holding it until FCM is reachable");
+          message.getDelivery().lost(message);
         } else {
-          // Handle message_type here.
-          String messageType = jGcmMessage.get("message_type").getAsString();
-          if (messageType.equals("ack")) {
-            // Handle ACK. Here the ack is logged, you may want to further process the ACK at this
-            // point.
-            String messageId = jGcmMessage.get("message_id").getAsString();
-            logger.info("ACK received for message " + messageId + " from " + from);
-          } else if (messageType.equals("nack")) {
-            // Handle NACK. Here the nack is logged, you may want to further process the NACK at
-            // this point.
-            String messageId = jGcmMessage.get("message_id").getAsString();
-            logger.info("NACK received for message " + messageId + " from " + from);
-          } else if (messageType.equals("control")) {
-            logger.info("Control message received.");
-            String controlType = jGcmMessage.get("control_type").getAsString();
-            if (controlType.equals("CONNECTION_DRAINING")) {
-              // Handle connection draining
-              // SmackCcsClient only maintains one connection the CCS to reduce complexity. A real
-              // world application should be capable of maintaining multiple connections to GCM,
-              // allowing the application to continue to onMessage for incoming messages on the
-              // draining connection and sending all new out going messages on a newly created
-              // connection.
-              logger.info("Current connection will be closed soon.");
-            } else {
-              // Currently the only control_type is CONNECTION_DRAINING, if new control messages
-              // are added they should be handled here.
-              logger.info("New control message has been received.");
-            }
-          }
+          logger.log(Level.SEVERE, "Unable to send msg " + message.getMessageId() + " to "
+              + message.getTo(), error);
         }
       }
+
+      @Override
+      public void upstream(String from, JsonObject data) {
+        onMessage(from, data);
+      }
     };
 
-    smackCcsClient.listen(stanzaListener, stanzaFilter);
+    this.upstream.start(listener);
+    if (this.downstream != this.upstream) {
+      this.downstream.start(listener);
+    }
   }
 
   /**
@@ -195,55 +178,460 @@ public abstract class GcmServer {
    * @param message Message to be sent.
    */
   public void send(String to, JsonObject message) {
-    message.addProperty("to", to);
-    /**
-     * Message ID generated as a remainder of current time in milliseconds. You could use any
-     * method of unique ID generation here.
-     */
-    message.addProperty("message_id", (Calendar.getInstance().getTimeInMillis()) + "");
+    send(to, message, DownstreamMessage.Priority.NORMAL);
+  }
+
+  /**
+   * Send messages to recipient via GCM, ahead of anything queued at a lower priority.
+   *
+   * @param to Message recipient.
+   * @param message Message to be sent.
+   * @param priority Priority to queue the message at.
+   */
+  public void send(String to, JsonObject message, DownstreamMessage.Priority priority) {
+    String messageId = nextMessageId();
+    Integer timeToLive = message.has("time_to_live") ? message.get("time_to_live").getAsInt() : null;
+
+    logger.info("sending msg " + messageId + " to " + to);
+    try {
+      outbound.schedule(new DownstreamMessage(messageId, to, encodeStanza(gson, to, messageId, message),
+          timeToLive, priority, System.currentTimeMillis()));
+    } catch (InterruptedException e) {
+      logger.warning("Interrupted whilst waiting to send msg " + messageId);
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Send a pre-encoded message to a recipient via GCM, ahead of anything queued at a lower priority.
+   * Only the recipient and message ID are rendered, so this is cheap enough to call for every ping.
+   *
+   * @param to Message recipient.
+   * @param template Message to be sent.
+   * @param timeToLive time_to_live the message was encoded with, counted from now.
+   * @param priority Priority to queue the message at.
+   * @return Whether the message was queued.
+   */
+  public boolean send(String to, PushMessageTemplate template, Integer timeToLive,
+      DownstreamMessage.Priority priority) {
+    return send(to, template, timeToLive, priority, null);
+  }
+
+  /**
+   * Send a pre-encoded message to a recipient via GCM, ahead of anything queued at a lower priority.
+   *
+   * @param to Message recipient.
+   * @param template Message to be sent.
+   * @param timeToLive time_to_live the message was encoded with, counted from now.
+   * @param priority Priority to queue the message at.
+   * @param onSent Run once the message has been handed to the transport, which it may never be if
+   *               its time_to_live runs out whilst it is queued. May be null.
+   * @return Whether the message was queued.
+   */
+  public boolean send(String to, PushMessageTemplate template, Integer timeToLive,
+      DownstreamMessage.Priority priority, Runnable onSent) {
+    String messageId = nextMessageId();
+
+    if (logger.isLoggable(Level.FINE)) {
+      logger.fine("sending msg " + messageId + " to " + to);
+    }
+    try {
+      outbound.schedule(new DownstreamMessage(messageId, to, template.render(to, messageId),
+          timeToLive, priority, System.currentTimeMillis(), null, onSent));
+      return true;
+    } catch (InterruptedException e) {
+      logger.warning("Interrupted whilst waiting to send msg " + messageId);
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * Send the same message to many recipients via GCM. The message is serialised once and only the
+   * recipient and message ID differ between the stanzas sent to each device.
+   *
+   * @param message Message to be sent.
+   * @param recipients Registration tokens of the devices to send to.
+   */
+  public void broadcast(PushMessage message, Collection<String> recipients) {
+    broadcast(message, recipients, DownstreamMessage.Priority.NORMAL);
+  }
+
+  /**
+   * Send the same message to many recipients via GCM, ahead of anything queued at a lower priority.
+   * The broadcast is queued as a whole and each recipient's stanza is only rendered once it is their
+   * turn to be sent, so this returns without waiting on CCS.
+   *
+   * @param message Message to be sent.
+   * @param recipients Registration tokens of the devices to send to, which must not change whilst
+   *                   the broadcast is in progress.
+   * @param priority Priority to queue the broadcast at.
+   */
+  public void broadcast(PushMessage message, Collection<String> recipients,
+      final DownstreamMessage.Priority priority) {
+    broadcast(message, recipients, priority, null);
+  }
 
-    final String payload = gson.toJson(message);
-    Stanza stanza = new Stanza() {
+  /**
+   * Send the same message to many recipients via GCM, ahead of anything queued at a lower priority.
+   *
+   * @param message Message to be sent.
+   * @param recipients Registration tokens of the devices to send to, which must not change whilst
+   *                   the broadcast is in progress.
+   * @param priority Priority to queue the broadcast at.
+   * @param delivery Following the push the broadcast is part of, or null.
+   */
+  public void broadcast(PushMessage message, Collection<String> recipients,
+      final DownstreamMessage.Priority priority, final Delivery delivery) {
+    final PushMessageTemplate template = new PushMessageTemplate(gson, message);
+    final Integer timeToLive = message.time_to_live;
+    final long createdAt = message.createdAt;
+    final Iterator<String> iterator = recipients.iterator();
+
+    logger.info("broadcasting msg to " + recipients.size() + " recipients at " + priority + " priority");
+
+    Iterator<DownstreamMessage> messages = new Iterator<DownstreamMessage>() {
       @Override
-      public CharSequence toXML() {
-        return wrapWithXML(payload);
+      public boolean hasNext() {
+        return iterator.hasNext();
+      }
+
+      @Override
+      public DownstreamMessage next() {
+        String to = iterator.next();
+        String messageId = nextMessageId();
+        return new DownstreamMessage(messageId, to, template.render(to, messageId), timeToLive,
+            priority, createdAt, delivery);
       }
     };
 
-    logger.info("sending msg: " + stanza);
-    smackCcsClient.sendStanza(stanza);
+    if (delivery != null) {
+      delivery.add(recipients.size());
+    }
+
+    try {
+      outbound.schedule(priority, DownstreamMessage.deadline(createdAt, timeToLive), recipients.size(),
+          messages, delivery);
+    } catch (InterruptedException e) {
+      logger.warning("Interrupted whilst queueing broadcast, abandoning it");
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Send a message to every device subscribed to an FCM topic, as a single stanza.
+   *
+   * @param message Message to be sent.
+   * @param topic Topic to send to, eg /topics/howalarming.
+   * @param priority Priority to queue the message at.
+   */
+  public void publish(PushMessage message, String topic, DownstreamMessage.Priority priority) {
+    publish(message, topic, priority, null);
   }
 
   /**
-   * Send Ack message back to CCS to acknowledged the receipt of the message with ID msg_id.
+   * Send a message to every device subscribed to an FCM topic, as a single stanza.
    *
-   * @param to Registration token of the sender of the message being acknowledged.
-   * @param msg_id ID of message being acknowledged.
-   */
-  private void sendAck(String to, String msg_id) {
-    JsonObject jPayload = new JsonObject();
-    jPayload.addProperty("to", to);
-    jPayload.addProperty("message_id", msg_id);
-    jPayload.addProperty("message_type", "ack");
-
-    Gson gson = new GsonBuilder().setPrettyPrinting().create();
-    final String payload = gson.toJson(jPayload);
-    Stanza stanza = new Stanza() {
+   * @param message Message to be sent.
+   * @param topic Topic to send to, eg /topics/howalarming.
+   * @param priority Priority to queue the message at.
+   * @param delivery Following the push the message is part of, or null.
+   */
+  public void publish(PushMessage message, String topic, DownstreamMessage.Priority priority,
+      Delivery delivery) {
+    String messageId = nextMessageId();
+    PushMessageTemplate template = new PushMessageTemplate(gson, message);
+
+    logger.info("publishing msg " + messageId + " to " + topic + " at " + priority + " priority");
+
+    if (delivery != null) {
+      delivery.add(1);
+    }
+
+    try {
+      outbound.schedule(new DownstreamMessage(messageId, topic, template.render(topic, messageId),
+          message.time_to_live, priority, message.createdAt, delivery));
+    } catch (InterruptedException e) {
+      logger.warning("Interrupted whilst waiting to publish msg " + messageId);
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Decide what to do with a message CCS has refused. Messages to devices that are no longer
+   * registered are dropped along with the device, transient failures are retried with backoff
+   * unless the message has outlived its time_to_live, and anything else is dropped.
+   *
+   * @param message The message that was refused, or null if it was not being tracked.
+   * @param from Registration token the nack relates to.
+   * @param error Error code reported by CCS.
+   */
+  private void handleNack(DownstreamMessage message, String from, String error) {
+    if (message != null && !isRetryable(error)) {
+      message.settle();
+    }
+
+    if (error == null) {
+      return;
+    }
+
+    switch (error) {
+      case "DEVICE_UNREGISTERED":
+      case "BAD_REGISTRATION":
+        onRegistrationInvalid(message != null ? message.getTo() : from);
+        break;
+
+      case "SERVICE_UNAVAILABLE":
+      case "INTERNAL_SERVER_ERROR":
+      case "DEVICE_MESSAGE_RATE_EXCEEDED":
+        if (message == null) {
+          logger.warning("Unable to retry untracked message to " + from);
+        } else if (message.isExpired(System.currentTimeMillis())) {
+          logger.info("Not retrying msg " + message.getMessageId() + ", time_to_live has expired");
+          message.settle();
+        } else if (message.getAttempt() >= MAX_SEND_ATTEMPTS) {
+          logger.warning("Giving up on msg " + message.getMessageId() + " after "
+              + message.getAttempt() + " attempts");
+          message.settle();
+        } else {
+          scheduleRetry(message.retry());
+        }
+        break;
+
+      default:
+        logger.warning("Dropping msg to " + from + " after unrecoverable error " + error);
+    }
+  }
+
+  private static boolean isRetryable(String error) {
+    return "SERVICE_UNAVAILABLE".equals(error) || "INTERNAL_SERVER_ERROR".equals(error)
+        || "DEVICE_MESSAGE_RATE_EXCEEDED".equals(error);
+  }
+
+  /**
+   * Resend a message after an exponential backoff with jitter, so that devices being rate limited
+   * or a struggling CCS aren't hit with every retry at once.
+   */
+  private void scheduleRetry(final DownstreamMessage message) {
+    long backoff = RETRY_BASE_MILLIS << Math.min(message.getAttempt() - 2, 16);
+    long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff);
+
+    logger.info("Retrying msg " + message.getMessageId() + " in " + delay + "ms (attempt "
+        + message.getAttempt() + ")");
+
+    retryTimer.schedule(new Runnable() {
       @Override
-      public CharSequence toXML() {
-        return wrapWithXML(payload);
+      public void run() {
+        // Queueing can block on a full lane, which the timer thread must not do.
+        retryExecutor.execute(new Runnable() {
+          @Override
+          public void run() {
+            if (message.isExpired(System.currentTimeMillis())) {
+              logger.info("Not retrying msg " + message.getMessageId() + ", time_to_live has expired");
+              message.settle();
+              return;
+            }
+
+            try {
+              outbound.schedule(message);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          }
+        });
       }
-    };
+    }, delay, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Hold a spooled message that never reached FCM, or that FCM never answered, until FCM is
+   * reachable again.
+   */
+  private void stall(DownstreamMessage message) {
+    if (message.isExpired(System.currentTimeMillis())) {
+      outbound.expired(message);
+      return;
+    }
+
+    stalled.add(message);
+  }
+
+  /**
+   * Queue the held messages to be sent again, dropping any whose time_to_live has run out.
+   */
+  private void resendStalled() {
+    if (!resendingStalled.compareAndSet(false, true)) {
+      return;
+    }
+
+    // Queueing can block on a full lane, which neither the inbound handler nor timer must do.
+    retryExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          int resent = 0;
+          DownstreamMessage message;
+
+          while ((message = stalled.poll()) != null) {
+            if (message.isExpired(System.currentTimeMillis())) {
+              outbound.expired(message);
+              continue;
+            }
+
+            outbound.schedule(message);
+            resent++;
+          }
+
+          if (resent > 0) {
+            logger.info("Resending " + resent + " spooled messages held whilst FCM was unreachable");
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } finally {
+          resendingStalled.set(false);
+        }
+      }
+    });
+  }
+
+  /**
+   * Try the held messages again every so often, in case there is no other traffic to show CCS
+   * is back.
+   */
+  private void scheduleStalledResend() {
+    retryTimer.schedule(new Runnable() {
+      @Override
+      public void run() {
+        if (!stalled.isEmpty()) {
+          resendStalled();
+        }
+        scheduleStalledResend();
+      }
+    }, STALLED_RESEND_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Start following the messages sent for a spooled push.
+   *
+   * @param entry The push's entry in the spool, completed once every message sent for it is done
+   *              with.
+   */
+  public Delivery track(OutboundSpool.Entry entry) {
+    return new Delivery(entry);
+  }
+
+  /**
+   * Follows the messages sent for a spooled push, completing its spool entry once CCS has acked
+   * every one of them or they have been settled some other way. Messages lost to a CCS outage are
+   * held and sent again once CCS is back, keeping the entry pending until they get through.
+   */
+  public class Delivery implements DownstreamMessage.Delivery {
+
+    private final OutboundSpool.Entry entry;
+
+    // Messages not yet settled, plus one held by the sender until it has queued them all.
+    private final AtomicInteger outstanding = new AtomicInteger(1);
+
+    Delivery(OutboundSpool.Entry entry) {
+      this.entry = entry;
+    }
+
+    void add(int count) {
+      outstanding.addAndGet(count);
+    }
+
+    @Override
+    public void settled(int count) {
+      if (outstanding.addAndGet(-count) == 0) {
+        entry.complete();
+      }
+    }
+
+    @Override
+    public void lost(DownstreamMessage message) {
+      stall(message);
+    }
+
+    /**
+     * Called by the sender once every message for the push has been queued.
+     */
+    public void close() {
+      settled(1);
+    }
+  }
+
+  /**
+   * Called when CCS reports that a registration token is no longer valid, eg the app has been
+   * uninstalled. Subclasses should stop sending messages to it.
+   *
+   * @param registrationToken The invalid registration token.
+   */
+  protected void onRegistrationInvalid(String registrationToken) {
+    logger.info("Registration token no longer valid: " + registrationToken);
+  }
+
+  /**
+   * @return Number of downstream messages queued to be sent at the given priority.
+   */
+  public int queued(DownstreamMessage.Priority priority) {
+    return outbound.queueDepth(priority);
+  }
+
+  /**
+   * @return Number of downstream messages at the given priority dropped because their time_to_live
+   *         expired before they could be sent.
+   */
+  public long expired(DownstreamMessage.Priority priority) {
+    return outbound.expired(priority);
+  }
+
+  /**
+   * @return Number of downstream messages waiting to be written to a connection.
+   */
+  public int queuedForWrite() {
+    return downstream.queued();
+  }
+
+  /**
+   * @return Number of open connections downstream messages can be sent on.
+   */
+  public int connections() {
+    return downstream.connections();
+  }
+
+  /**
+   * @return Number of downstream messages awaiting an ack/nack from FCM.
+   */
+  public int inFlight() {
+    return downstream.inFlight();
+  }
+
+  /**
+   * Message ID unique to this message, across restarts and other server instances.
+   */
+  private String nextMessageId() {
+    return messageIdGenerator.next();
+  }
+
+  /**
+   * Address a message to a single recipient and encode it as a stanza for XMPP transport.
+   *
+   * @param to Message recipient.
+   * @param messageId Unique ID for this message.
+   * @param message Message to be sent, the recipient and ID are added to it.
+   */
+  static String encodeStanza(Gson gson, String to, String messageId, JsonObject message) {
+    message.addProperty("to", to);
+    message.addProperty("message_id", messageId);
 
-    logger.info("sending ack: " + stanza);
-    smackCcsClient.sendStanza(stanza);
+    return wrapWithXML(gson.toJson(message));
   }
 
   /**
    * Wrap payload with appropriate xml for XMPP transport.
    * @param payload String to be wrapped.
    */
-  private String wrapWithXML(String payload) {
+  static String wrapWithXML(String payload) {
     String msg = String.format("<message><%s xmlns=\"%s\">%s</%s></message>",
         GCM_ELEMENT_NAME, GCM_NAMESPACE, payload, GCM_ELEMENT_NAME);
 
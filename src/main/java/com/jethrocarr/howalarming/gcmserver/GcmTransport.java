@@ -0,0 +1,96 @@
+/**
+ * Copyright 2016 Jethro Carr. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jethrocarr.howalarming.gcmserver;
+
+import com.google.gson.JsonObject;
+
+/**
+ * GcmTransport carries downstream messages to FCM and reports back what became of each of them, so that GcmServer's
+ * queueing, retries and spooling don't depend on how the messages get there.
+ *
+ * CcsTransport sends them as XMPP stanzas over CCS connections, which is also the only way FCM delivers upstream
+ * messages from devices. FcmHttpTransport sends them as HTTP/2 requests instead.
+ */
+public interface GcmTransport {
+
+    /**
+     * Told the outcome of every message sent, from whichever thread learns of it.
+     */
+    interface Listener {
+
+        /**
+         * FCM has accepted the message.
+         *
+         * @param roundTripNanos Time from the message being sent to it being accepted.
+         */
+        void acked(DownstreamMessage message, long roundTripNanos);
+
+        /**
+         * FCM has refused the message.
+         *
+         * @param message The message refused, or null if it wasn't being tracked.
+         * @param from Registration token the refusal relates to.
+         * @param error Error code, in the form CCS reports them, eg DEVICE_UNREGISTERED.
+         */
+        void nacked(DownstreamMessage message, String from, String error);
+
+        /**
+         * The message's time_to_live ran out before it could be sent.
+         */
+        void expired(DownstreamMessage message);
+
+        /**
+         * The message never reached FCM, eg the connection was lost.
+         */
+        void failed(DownstreamMessage message, Throwable error);
+
+        /**
+         * An upstream message has been received from a device.
+         */
+        void upstream(String from, JsonObject data);
+    }
+
+    /**
+     * Start reporting to the listener. Called once, before anything is sent.
+     */
+    void start(Listener listener);
+
+    /**
+     * Send a message, blocking until the transport has room for it.
+     *
+     * @param message Message to be sent, as an XMPP stanza.
+     * @return false if the message's deadline passed whilst waiting for room, in which case it is dropped rather
+     *         than sent.
+     */
+    boolean send(DownstreamMessage message) throws InterruptedException;
+
+    /**
+     * @return Number of open connections new messages can be sent on.
+     */
+    int connections();
+
+    /**
+     * @return Number of messages sent and awaiting an answer from FCM.
+     */
+    int inFlight();
+
+    /**
+     * @return Number of messages waiting to be written to a connection.
+     */
+    int queued();
+}
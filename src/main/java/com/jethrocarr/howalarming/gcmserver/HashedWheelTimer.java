@@ -0,0 +1,142 @@
+/**
+ * Copyright 2016 Jethro Carr. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jethrocarr.howalarming.gcmserver;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Timer for scheduling large numbers of short lived tasks (eg message retries) cheaply. Tasks are dropped into
+ * buckets on a wheel which a single worker thread advances one bucket per tick, so scheduling is O(1) and never
+ * contends with the worker, at the cost of tasks firing up to one tick late.
+ *
+ * Tasks run on the worker thread and so must not block.
+ */
+public class HashedWheelTimer {
+
+    private static final Logger logger = Logger.getLogger("HashedWheelTimer");
+
+    private final long tickNanos;
+    private final List<List<Timeout>> wheel;
+
+    // Newly scheduled tasks, moved onto the wheel by the worker thread on its next tick.
+    private final ConcurrentLinkedQueue<Timeout> scheduled;
+
+    private final long startTime;
+    private final Thread worker;
+
+    public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int wheelSize) {
+        tickNanos = unit.toNanos(tickDuration);
+        wheel = new ArrayList<List<Timeout>>(wheelSize);
+        for (int i = 0; i < wheelSize; i++) {
+            wheel.add(new ArrayList<Timeout>());
+        }
+
+        scheduled = new ConcurrentLinkedQueue<Timeout>();
+        startTime = System.nanoTime();
+
+        worker = Threads.newThread(name, new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        });
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Run the task once the delay has passed.
+     */
+    public void schedule(Runnable task, long delay, TimeUnit unit) {
+        scheduled.add(new Timeout(task, System.nanoTime() + unit.toNanos(delay)));
+    }
+
+    public void stop() {
+        worker.interrupt();
+    }
+
+    private void work() {
+        long tick = 0;
+
+        while (!Thread.currentThread().isInterrupted()) {
+            long sleepNanos = startTime + (tick + 1) * tickNanos - System.nanoTime();
+
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+
+            tick++;
+            transferScheduled(tick);
+            expire(wheel.get((int) (tick % wheel.size())), tick);
+        }
+    }
+
+    private void transferScheduled(long tick) {
+        Timeout timeout;
+
+        while ((timeout = scheduled.poll()) != null) {
+            long due = Math.max(tick, (timeout.deadline - startTime + tickNanos - 1) / tickNanos);
+
+            timeout.rounds = (due - tick) / wheel.size();
+            wheel.get((int) (due % wheel.size())).add(timeout);
+        }
+    }
+
+    private void expire(List<Timeout> bucket, long tick) {
+        Iterator<Timeout> iterator = bucket.iterator();
+
+        while (iterator.hasNext()) {
+            Timeout timeout = iterator.next();
+
+            if (timeout.rounds > 0) {
+                timeout.rounds--;
+                continue;
+            }
+
+            iterator.remove();
+
+            try {
+                timeout.task.run();
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "Scheduled task failed", e);
+            }
+        }
+    }
+
+
+    private static class Timeout {
+        final Runnable task;
+        final long deadline;
+        long rounds;
+
+        Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+    }
+}
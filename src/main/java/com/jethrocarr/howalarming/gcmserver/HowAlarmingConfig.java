@@ -26,25 +26,117 @@ public class HowAlarmingConfig {
     public static final String SERVER_API_KEY      = System.getenv("GCM_API_KEY");
     public static final String SENDER_ID           = System.getenv("GCM_SENDER_ID");
 
+    // Number of connections to hold open to GCM CCS, each allows 100 messages in flight at once.
+    public static String GCM_CONNECTIONS           = System.getenv("GCM_CONNECTIONS");
+    // Where to find CCS, only changed to point at a local stand-in when load testing.
+    public static String GCM_HOST                  = System.getenv("GCM_HOST");
+    public static String GCM_PORT                  = System.getenv("GCM_PORT");
+    public static String GCM_TLS                   = System.getenv("GCM_TLS");
+    // Send downstream messages over the CCS connections ("xmpp"), or as HTTP/2 requests to GCM_HTTP_URL ("http")
+    // with up to GCM_HTTP_STREAMS at once on each of GCM_CONNECTIONS connections. Upstream messages always arrive
+    // over CCS.
+    public static String GCM_TRANSPORT             = System.getenv("GCM_TRANSPORT");
+    public static String GCM_HTTP_URL              = System.getenv("GCM_HTTP_URL");
+    public static String GCM_HTTP_STREAMS          = System.getenv("GCM_HTTP_STREAMS");
+
     // Beanstalk Queue
     public static String BEANSTALK_HOST            = System.getenv("BEANSTALK_HOST");
     public static String BEANSTALK_PORT            = System.getenv("BEANSTALK_PORT");
+    // Comma separated list of tubes to read alarm events from.
     public static String BEANSTALK_TUBES_EVENTS    = System.getenv("BEANSTALK_TUBES_EVENTS");
     public static String BEANSTALK_TUBES_COMMANDS  = System.getenv("BEANSTALK_TUBES_COMMANDS");
+    public static String BEANSTALK_PRODUCERS       = System.getenv("BEANSTALK_PRODUCERS");
+    public static String BEANSTALK_CONSUMERS       = System.getenv("BEANSTALK_CONSUMERS");
+
+    // Comma separated IDs of the sites (alarm panels) served, the first being the default for messages that don't
+    // name a site. If unset a single site is served using the tubes above. Otherwise each site's tubes can be set
+    // with BEANSTALK_TUBES_EVENTS_<ID> and BEANSTALK_TUBES_COMMANDS_<ID>, and default to the tubes above suffixed
+    // with _<id>.
+    public static String SITES                     = System.getenv("SITES");
+
+    // Host and port this server is reached at by the other members of a cluster, and listens on. If unset the
+    // server runs alone. CLUSTER_PEERS is a comma separated list of the other members' addresses, any one is
+    // enough to join, with the rest being learnt from it. CLUSTER_SECRET is shared by all the members and
+    // authorises the requests between them.
+    public static String CLUSTER_ADDRESS           = System.getenv("CLUSTER_ADDRESS");
+    public static String CLUSTER_PEERS             = System.getenv("CLUSTER_PEERS");
+    public static String CLUSTER_SECRET            = System.getenv("CLUSTER_SECRET");
+
+    // Directory to persist device registrations to, if unset registrations are only held in memory.
+    public static String REGISTRY_PATH             = System.getenv("REGISTRY_PATH");
+
+    // Directory to spool pushes to until CCS has acked them, so they survive CCS outages and restarts. If unset
+    // pushes are only held in memory. Appends are forced to disk together, waiting SPOOL_COMMIT_MICROS for more to
+    // join each batch.
+    public static String SPOOL_PATH                = System.getenv("SPOOL_PATH");
+    public static String SPOOL_COMMIT_MICROS       = System.getenv("SPOOL_COMMIT_MICROS");
+
+    // Dispatch of push messages between the Beanstalk workers and the GCM sender
+    public static String DISPATCH_WORKERS          = System.getenv("DISPATCH_WORKERS");
+    public static String DISPATCH_QUEUE_SIZE       = System.getenv("DISPATCH_QUEUE_SIZE");
+    public static String DISPATCH_OVERFLOW         = System.getenv("DISPATCH_OVERFLOW");
+
+    // Broadcast to each device directly ("fanout"), or to an FCM topic that devices are subscribed to ("topic"),
+    // with subscriptions made through the instance ID service.
+    public static String BROADCAST_MODE            = System.getenv("BROADCAST_MODE");
+    public static String GCM_TOPIC                 = System.getenv("GCM_TOPIC");
+    public static String IID_URL                   = System.getenv("IID_URL");
 
-    // Observer used to send messages from Beanstalk reads through to GCM pushes
-    public static PushMessageDispatch messageAllClients = new PushMessageDispatch();
+    // Upstream messages from each device that we act on, on average per second and in a single burst. Repeated
+    // pings are answered once within the coalescing window unless the alarm state changes.
+    public static String UPSTREAM_RATE             = System.getenv("UPSTREAM_RATE");
+    public static String UPSTREAM_BURST            = System.getenv("UPSTREAM_BURST");
+    public static String PING_COALESCE_SECONDS     = System.getenv("PING_COALESCE_SECONDS");
 
-    // Alarm system status
+    // Port to serve Prometheus metrics on at /metrics, if unset metrics are not served.
+    public static String METRICS_PORT              = System.getenv("METRICS_PORT");
+
+    // Run blocking work on "platform" or "virtual" threads, virtual threads need Java 21 or later.
+    public static String THREAD_MODE               = System.getenv("THREAD_MODE");
+
+    public static final String GCM_TRANSPORT_XMPP = "xmpp";
+    public static final String GCM_TRANSPORT_HTTP = "http";
+
+    public static final String BROADCAST_MODE_FANOUT = "fanout";
+    public static final String BROADCAST_MODE_TOPIC  = "topic";
+
+    // Alarm system status, the current state of each site is held by its AlarmState.
     public static final String ALARM_STATE_UNKNOWN  = "unknown";
     public static final String ALARM_STATE_ARMED    = "armed";
     public static final String ALARM_STATE_DISARMED = "disarmed";
-    public static String stateArmed = ALARM_STATE_UNKNOWN;
 
     /**
      * Validate all the required configuration in the constructor, and set defaults as required.
      */
     public HowAlarmingConfig() {
+        if (GCM_CONNECTIONS == null) {
+            GCM_CONNECTIONS="2";
+        }
+
+        if (GCM_HOST == null) {
+            GCM_HOST=GcmServer.GCM_HOST;
+        }
+
+        if (GCM_PORT == null) {
+            GCM_PORT=Integer.toString(GcmServer.GCM_CCS_PORT);
+        }
+
+        if (GCM_TLS == null) {
+            GCM_TLS="true";
+        }
+
+        if (GCM_TRANSPORT == null) {
+            GCM_TRANSPORT=GCM_TRANSPORT_XMPP;
+        }
+
+        if (GCM_HTTP_URL == null) {
+            GCM_HTTP_URL=GcmServer.FCM_HTTP_URL;
+        }
+
+        if (GCM_HTTP_STREAMS == null) {
+            GCM_HTTP_STREAMS="100";
+        }
+
         if (BEANSTALK_HOST == null) {
             BEANSTALK_HOST="127.0.0.1";
         }
@@ -60,6 +152,58 @@ public class HowAlarmingConfig {
         if (BEANSTALK_TUBES_COMMANDS == null) {
             BEANSTALK_TUBES_COMMANDS="commands";
         }
+
+        if (BEANSTALK_PRODUCERS == null) {
+            BEANSTALK_PRODUCERS="2";
+        }
+
+        if (BEANSTALK_CONSUMERS == null) {
+            BEANSTALK_CONSUMERS="4";
+        }
+
+        if (SPOOL_COMMIT_MICROS == null) {
+            SPOOL_COMMIT_MICROS="0";
+        }
+
+        if (DISPATCH_WORKERS == null) {
+            DISPATCH_WORKERS="4";
+        }
+
+        if (DISPATCH_QUEUE_SIZE == null) {
+            DISPATCH_QUEUE_SIZE="1000";
+        }
+
+        if (DISPATCH_OVERFLOW == null) {
+            DISPATCH_OVERFLOW="block";
+        }
+
+        if (BROADCAST_MODE == null) {
+            BROADCAST_MODE=BROADCAST_MODE_FANOUT;
+        }
+
+        if (GCM_TOPIC == null) {
+            GCM_TOPIC="howalarming";
+        }
+
+        if (IID_URL == null) {
+            IID_URL=TopicSubscriptionManager.IID_URL;
+        }
+
+        if (UPSTREAM_RATE == null) {
+            UPSTREAM_RATE="0.2";
+        }
+
+        if (UPSTREAM_BURST == null) {
+            UPSTREAM_BURST="10";
+        }
+
+        if (PING_COALESCE_SECONDS == null) {
+            PING_COALESCE_SECONDS="30";
+        }
+
+        if (THREAD_MODE == null) {
+            THREAD_MODE=Threads.MODE_PLATFORM;
+        }
     }
 
 }
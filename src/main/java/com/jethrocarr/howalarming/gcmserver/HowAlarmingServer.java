@@ -19,6 +19,8 @@ package com.jethrocarr.howalarming.gcmserver;
 
 import com.google.gson.*;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.CountDownLatch;
 import java.util.logging.Level;
@@ -42,7 +44,24 @@ public class HowAlarmingServer extends HowAlarmingConfig {
     private class HowAlarmingGcmServer extends GcmServer {
 
         public HowAlarmingGcmServer (String apiKey, String senderId, String serviceName) {
-            super(apiKey, senderId, serviceName);
+            // GcmServer has its own GCM_HOST default, so the configured one needs qualifying.
+            this(new CcsTransport(apiKey, senderId, serviceName, Integer.parseInt(GCM_CONNECTIONS),
+                    HowAlarmingConfig.GCM_HOST, Integer.parseInt(GCM_PORT), Boolean.parseBoolean(GCM_TLS)), apiKey);
+        }
+
+        private HowAlarmingGcmServer (CcsTransport ccs, String apiKey) {
+            // Upstream messages only ever arrive over CCS, whichever transport downstream messages go out on.
+            super(ccs, createDownstreamTransport(apiKey), Integer.parseInt(GCM_CONNECTIONS));
+        }
+
+        @Override
+        protected void onRegistrationInvalid(String registrationToken) {
+            // Device has uninstalled the app or otherwise lost its registration, stop broadcasting to it.
+            for (Site site : sites.values()) {
+                if (site.unregister(registrationToken) && cluster != null) {
+                    cluster.replicate(site.getId(), registrationToken, false);
+                }
+            }
         }
 
         @Override
@@ -53,12 +72,26 @@ public class HowAlarmingServer extends HowAlarmingConfig {
 
             String registration_token = null;
 
+            // Apps that predate multiple sites don't say which they're for, they follow the default site.
+            Site site = defaultSite;
+
+            if (jData.has("site")) {
+                site = sites.get(jData.get("site").getAsString());
+
+                if (site == null) {
+                    logger.warning("Message from " + from + " is for unknown site " + jData.get("site").getAsString()
+                            + ", ignoring");
+                    unknownSite.increment();
+                    return;
+                }
+            }
+
             if (jData.has("registration_token")) {
                 registration_token = jData.get("registration_token").getAsString();
                 logger.info("Message sender: "+ registration_token);
 
-                if (!registeredClients.contains(registration_token)) {
-                    registerNewClient(registration_token);
+                if (site.register(registration_token) && cluster != null) {
+                    cluster.replicate(site.getId(), registration_token, true);
                 }
             }
 
@@ -67,6 +100,21 @@ public class HowAlarmingServer extends HowAlarmingConfig {
 
                 logger.info("Command \""+ command +"\" received from device.");
 
+                // Repeated pings whilst the state is unchanged have already been answered. They're checked before
+                // the rate limit so that an app pinging in a loop doesn't use up the allowance for its commands.
+                if (command.equals("ping") && registration_token != null && !rateLimiter.shouldReplyToPing(
+                        site.getId(), registration_token, site.getAlarmState().getStatus())) {
+                    logger.fine("Coalescing repeated ping from " + registration_token);
+                    pingsCoalesced.increment();
+                    return;
+                }
+
+                if (!rateLimiter.tryAcquire(from)) {
+                    logger.fine("Dropping command \"" + command + "\" from " + from + ", over its rate limit");
+                    rateLimited.labels(command.equals("ping") ? "ping" : "command").increment();
+                    return;
+                }
+
                 switch (command) {
                     case "status":
                     case "arm":
@@ -75,7 +123,7 @@ public class HowAlarmingServer extends HowAlarmingConfig {
                     case "medical":
                     case "police":
                         // Supported simple commands in HowAlarming. We feed these into the beanstalk queue(s)
-                        beanstalkClient.beanstalkPost(command);
+                        beanstalkClient.beanstalkPost(site, command);
                         break;
 
                     case "ping":
@@ -87,13 +135,23 @@ public class HowAlarmingServer extends HowAlarmingConfig {
                         logger.info("Received ping from device, sending back status.");
 
                         if (registration_token != null) {
-                            PushMessage myPushMessage = new PushMessage();
-                            myPushMessage.alarmStatus(stateArmed);
-
-                            JsonObject myPushJMessageJson = new JsonParser().parse(gson.toJson(myPushMessage)).getAsJsonObject();
+                            // The status message is encoded once per state change, so after an alarm every app
+                            // opening at once only costs us the splicing in of its token.
+                            AlarmState alarmState = site.getAlarmState();
+                            final PushMessageTemplate status = alarmState.getStatus();
+                            final String siteId = site.getId();
+                            final String token = registration_token;
 
                             try {
-                                HowAlarmingGcmServer.send(registration_token, myPushJMessageJson);
+                                // Status replies queue behind alarms and state changes, they're dropped if they go stale.
+                                // Only a reply that actually went out answers later pings.
+                                HowAlarmingGcmServer.send(registration_token, status, alarmState.getStatusTimeToLive(),
+                                        DownstreamMessage.Priority.LOW, new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        rateLimiter.recordPingReply(siteId, token, status);
+                                    }
+                                });
                             } catch (Exception e) {
                                 logger.log(Level.SEVERE, "An unexpected error occurred attempting to message device: " + registration_token, e);
                             }
@@ -120,11 +178,25 @@ public class HowAlarmingServer extends HowAlarmingConfig {
     private static final Logger logger = Logger.getLogger("HowAlarmingServer");
     public static final String SERVICE_NAME = "HowAlarming GCM Server";
 
+    private static final Metrics.Histogram dispatchDelay = Metrics.histogram("howalarming_event_dispatch_seconds",
+            "Time from an event being reserved from beanstalk to its broadcast starting.");
+    private static final Metrics.Histogram eventAge = Metrics.histogram("howalarming_event_age_seconds",
+            "Age of events when their broadcast starts, measured from the event's own timestamp.");
+    private static final Metrics.LabeledCounter rateLimited = Metrics.counter("howalarming_upstream_rate_limited_total",
+            "Upstream messages dropped as the device was over its rate limit, by type.", "type");
+    private static final Metrics.Counter pingsCoalesced = Metrics.counter("howalarming_pings_coalesced_total",
+            "Pings not replied to as the device had just been sent the current status.");
+    private static final Metrics.Counter unknownSite = Metrics.counter("howalarming_upstream_unknown_site_total",
+            "Upstream messages ignored as they were for a site that isn't configured.");
+
+
 
+    // Sites served by ID, in the order configured. Each holds its own registered clients, persisted under
+    // REGISTRY_PATH if configured so they survive restarts, otherwise populated fresh as the clients ping us.
+    private Map<String, Site> sites;
 
-    // Store registered clients for life of the application. This is populated fresh after the server
-    // and clients are launched consecutively.
-    private List<String> registeredClients;
+    // Site for upstream messages that don't name one.
+    private Site defaultSite;
 
     // Listener responsible for handling incoming registrations and pings.
     private HowAlarmingGcmServer HowAlarmingGcmServer;
@@ -132,8 +204,14 @@ public class HowAlarmingServer extends HowAlarmingConfig {
     // Beanstalk Client
     private BeanstalkClient beanstalkClient;
 
-    // Gson helper to assist with going to and from JSON and Client.
-    private Gson gson;
+    // Limits how much upstream traffic each device can have us act on.
+    private DeviceRateLimiter rateLimiter;
+
+    // Membership of the cluster sharing our broadcasts, or null if running alone.
+    private ClusterNode cluster;
+
+    // Pushes not yet delivered, shared by all sites, or null if they're only held in memory.
+    private OutboundSpool spool;
 
 
     // MARK: HowAlarming Server
@@ -141,50 +219,643 @@ public class HowAlarmingServer extends HowAlarmingConfig {
 
     public HowAlarmingServer(String apiKey, String senderId) {
 
-        registeredClients = new ArrayList<String>();
-        gson = new GsonBuilder().create();
+        rateLimiter = new DeviceRateLimiter(Double.parseDouble(UPSTREAM_RATE), Integer.parseInt(UPSTREAM_BURST),
+                Integer.parseInt(PING_COALESCE_SECONDS));
 
-        beanstalkClient = new BeanstalkClient();
+        spool = createSpool();
+        sites = createSites(apiKey);
+        defaultSite = sites.values().iterator().next();
+
+        // Commands from devices are posted to beanstalk, so it needs to be ready to take them before we hear from
+        // devices, but events aren't read until they can be broadcast.
+        beanstalkClient = new BeanstalkClient(sites);
         HowAlarmingGcmServer = new HowAlarmingGcmServer(apiKey, senderId, SERVICE_NAME);
 
-        messageAllClients.addObserver(new messageAllClients());
+        for (Site site : sites.values()) {
+            site.getDispatch().subscribe(new messageAllClients(site));
+        }
+
+        // Peers forward events as soon as we join, and spooled pushes are sliced by the ring.
+        cluster = createCluster();
+
+        // Pushes left over from before the restart go out ahead of any new events.
+        registerMetrics();
+        replaySpool();
+
+        beanstalkClient.start();
+    }
+
+
+    /**
+     * Expose the state of the pipeline as gauges, and serve all metrics if METRICS_PORT is configured.
+     */
+    private void registerMetrics() {
+        Metrics.gauge("howalarming_registered_clients", "Devices registered to receive broadcasts.", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                long registered = 0;
+                for (Site site : sites.values()) {
+                    registered += site.getRegisteredClients().size();
+                }
+                return registered;
+            }
+        });
+        Metrics.gauge("howalarming_dispatch_queue_depth", "Push messages waiting to be broadcast.", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                long depth = 0;
+                for (Site site : sites.values()) {
+                    depth += site.getDispatch().queueDepth();
+                }
+                return depth;
+            }
+        });
+
+        for (final Site site : sites.values()) {
+            Metrics.gauge("howalarming_site_registered_clients", "Devices registered to receive broadcasts, by site.",
+                    "site", site.getId(), new Metrics.Gauge() {
+                @Override
+                public long get() {
+                    return site.getRegisteredClients().size();
+                }
+            });
+            Metrics.gauge("howalarming_site_dispatch_queue_depth", "Push messages waiting to be broadcast, by site.",
+                    "site", site.getId(), new Metrics.Gauge() {
+                @Override
+                public long get() {
+                    return site.getDispatch().queueDepth();
+                }
+            });
+            site.getDispatch().setTimeInQueue(Metrics.histogram("howalarming_dispatch_queue_seconds",
+                    "Time push messages wait to be broadcast, by site.", "site", site.getId()));
+            Metrics.counter("howalarming_dispatch_dropped_total", "Status messages discarded from a full dispatch"
+                    + " queue as a newer status superseded them, by site.", "site", site.getId(), new Metrics.Gauge() {
+                @Override
+                public long get() {
+                    return site.getDispatch().dropped();
+                }
+            });
+            Metrics.counter("howalarming_dispatch_spilled_total", "Push messages queued past the dispatch queue's"
+                    + " capacity, by site.", "site", site.getId(), new Metrics.Gauge() {
+                @Override
+                public long get() {
+                    return site.getDispatch().spilled();
+                }
+            });
+        }
+        Metrics.gauge("beanstalk_command_queue_depth", "Commands waiting to be posted to beanstalk.", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return beanstalkClient.commandQueueDepth();
+            }
+        });
+        Metrics.gauge("howalarming_rate_limited_devices", "Devices with upstream traffic recent enough to be tracked"
+                + " by the rate limiter.", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return rateLimiter.size();
+            }
+        });
+        Metrics.gauge("gcm_connections", "Open connections downstream messages are sent on.", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return HowAlarmingGcmServer.connections();
+            }
+        });
+        Metrics.gauge("gcm_in_flight", "Downstream messages awaiting an ack/nack from FCM.", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return HowAlarmingGcmServer.inFlight();
+            }
+        });
+        Metrics.gauge("gcm_write_queue_depth", "Downstream messages waiting to be written to a connection.",
+                new Metrics.Gauge() {
+                    @Override
+                    public long get() {
+                        return HowAlarmingGcmServer.queuedForWrite();
+                    }
+                });
+
+        for (final DownstreamMessage.Priority priority : DownstreamMessage.Priority.values()) {
+            String label = priority.toString().toLowerCase();
+
+            Metrics.gauge("gcm_outbound_queue_depth", "Downstream messages waiting to be sent, by priority.",
+                    "priority", label, new Metrics.Gauge() {
+                @Override
+                public long get() {
+                    return HowAlarmingGcmServer.queued(priority);
+                }
+            });
+            Metrics.counter("gcm_outbound_expired_total", "Downstream messages dropped as their time_to_live expired"
+                    + " before they could be sent, by priority.", "priority", label, new Metrics.Gauge() {
+                @Override
+                public long get() {
+                    return HowAlarmingGcmServer.expired(priority);
+                }
+            });
+        }
+
+        if (BROADCAST_MODE.equals(BROADCAST_MODE_TOPIC)) {
+            Metrics.gauge("gcm_topic_subscribed", "Devices confirmed as subscribed to their site's broadcast topic.",
+                    new Metrics.Gauge() {
+                @Override
+                public long get() {
+                    long subscribed = 0;
+                    for (Site site : sites.values()) {
+                        if (site.getTopicSubscriptions() != null) {
+                            subscribed += site.getTopicSubscriptions().subscribed();
+                        }
+                    }
+                    return subscribed;
+                }
+            });
+            Metrics.gauge("gcm_topic_subscription_changes_pending", "Subscriptions to broadcast topics waiting"
+                    + " to be made or removed.", new Metrics.Gauge() {
+                @Override
+                public long get() {
+                    long pending = 0;
+                    for (Site site : sites.values()) {
+                        if (site.getTopicSubscriptions() != null) {
+                            pending += site.getTopicSubscriptions().pending();
+                        }
+                    }
+                    return pending;
+                }
+            });
+        }
+
+        if (spool != null) {
+            Metrics.gauge("howalarming_spool_pending", "Pushes recorded in the spool that haven't been delivered.",
+                    new Metrics.Gauge() {
+                @Override
+                public long get() {
+                    return spool.pending();
+                }
+            });
+        }
+
+        if (cluster != null) {
+            Metrics.gauge("howalarming_cluster_members", "Members of the cluster in the ring, including this one.",
+                    new Metrics.Gauge() {
+                @Override
+                public long get() {
+                    return cluster.members();
+                }
+            });
+        }
+
+        if (METRICS_PORT != null) {
+            try {
+                new MetricsServer(Integer.parseInt(METRICS_PORT));
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Unable to serve metrics on port " + METRICS_PORT, e);
+            }
+        }
+    }
+
+
+    /**
+     * Open the spool if SPOOL_PATH is configured.
+     */
+    private static OutboundSpool createSpool() {
+        if (SPOOL_PATH == null) {
+            logger.warning("No SPOOL_PATH configured, pushes not yet delivered will be lost on restart");
+            return null;
+        }
+
+        try {
+            return new OutboundSpool(new File(SPOOL_PATH), OutboundSpool.DEFAULT_SEGMENT_SIZE,
+                    Long.parseLong(SPOOL_COMMIT_MICROS));
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Unable to open spool at " + SPOOL_PATH + ", holding pushes in memory only", e);
+            return null;
+        }
+    }
+
+
+    /**
+     * Create the transport to send downstream messages on if GCM_TRANSPORT asks for something other than the CCS
+     * connections, or null to send over CCS.
+     */
+    private static GcmTransport createDownstreamTransport(String apiKey) {
+        if (GCM_TRANSPORT.equalsIgnoreCase(GCM_TRANSPORT_XMPP)) {
+            return null;
+        }
+
+        if (!GCM_TRANSPORT.equalsIgnoreCase(GCM_TRANSPORT_HTTP)) {
+            logger.warning("Unknown GCM_TRANSPORT " + GCM_TRANSPORT + ", sending over CCS");
+            return null;
+        }
+
+        // The HTTP transport is built for Java 11, which java.net.http needs, so it's only loaded when asked for.
+        try {
+            Class<?> transport = Class.forName("com.jethrocarr.howalarming.gcmserver.FcmHttpTransport");
+            GcmTransport http = (GcmTransport) transport
+                    .getConstructor(String.class, String.class, int.class, int.class)
+                    .newInstance(apiKey, GCM_HTTP_URL, Integer.parseInt(GCM_CONNECTIONS),
+                            Integer.parseInt(GCM_HTTP_STREAMS));
+
+            logger.info("Sending downstream messages over HTTP to " + GCM_HTTP_URL);
+            return http;
+        } catch (ClassNotFoundException | LinkageError e) {
+            logger.warning("The HTTP transport needs Java 11 or later, this is Java "
+                    + System.getProperty("java.version") + ", sending over CCS");
+        } catch (ReflectiveOperationException e) {
+            logger.log(Level.SEVERE, "Unable to create the HTTP transport, sending over CCS", e);
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Send again the pushes recovered from the spool, highest priority first.
+     */
+    private void replaySpool() {
+        if (spool == null || spool.recovered().isEmpty()) {
+            return;
+        }
+
+        logger.info("Replaying " + spool.recovered().size() + " pushes recovered from the spool");
+
+        for (OutboundSpool.Entry entry : spool.recovered()) {
+            Site.SpooledPush push;
+            try {
+                push = Site.SpooledPush.decode(entry);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Unable to decode spooled push " + entry + ", discarding it", e);
+                entry.complete();
+                continue;
+            }
+
+            Site site = sites.get(push.site);
+            if (site == null) {
+                logger.warning("Spooled push " + entry + " is for unknown site " + push.site + ", discarding it");
+                entry.complete();
+                continue;
+            }
+
+            try {
+                site.replay(entry, push, cluster);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * Join the cluster if CLUSTER_ADDRESS is configured, authorising requests between members with CLUSTER_SECRET.
+     */
+    private ClusterNode createCluster() {
+        if (CLUSTER_ADDRESS == null) {
+            return null;
+        }
+
+        if (CLUSTER_SECRET == null || CLUSTER_SECRET.isEmpty()) {
+            logger.severe("No CLUSTER_SECRET configured, unable to join cluster as " + CLUSTER_ADDRESS
+                    + ", running alone");
+            return null;
+        }
+
+        List<String> seeds = new ArrayList<String>();
+        if (CLUSTER_PEERS != null) {
+            for (String peer : CLUSTER_PEERS.split(",")) {
+                if (!peer.trim().isEmpty()) {
+                    seeds.add(peer.trim());
+                }
+            }
+        }
+
+        try {
+            return new ClusterNode(CLUSTER_ADDRESS, seeds, CLUSTER_SECRET, new ClusterListener());
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.SEVERE, "Unable to join cluster as " + CLUSTER_ADDRESS + ", running alone", e);
+            return null;
+        }
+    }
+
+
+    /**
+     * Takes on the registrations and events other members of the cluster pass us.
+     */
+    private class ClusterListener implements ClusterNode.Listener {
+
+        @Override
+        public void onRegistration(String siteId, String registrationToken, boolean registered) {
+            Site site = sites.get(siteId);
+
+            if (site == null) {
+                logger.warning("Cluster peer replicated a registration for unknown site " + siteId + ", ignoring");
+            } else if (registered) {
+                site.register(registrationToken);
+            } else {
+                site.unregister(registrationToken);
+            }
+        }
+
+        @Override
+        public void onEvent(String siteId, PushMessage myPushMessage) {
+            Site site = sites.get(siteId);
+
+            if (site == null) {
+                logger.warning("Cluster peer forwarded an event for unknown site " + siteId + ", ignoring");
+                return;
+            }
+
+            String type = myPushMessage.data.get("type");
+
+            // Spooled before we answer the peer, so once it has forwarded the event it can forget it.
+            try {
+                site.dispatch(myPushMessage);
+            } catch (InterruptedException e) {
+                logger.warning("Interrupted whilst queuing forwarded event of type: " + type);
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            // Every member tracks the state, so that whichever a ping reaches can answer it.
+            site.record(BeanstalkEvent.Type.fromString(type), type, myPushMessage.data.get("timestamp"));
+        }
+
+        @Override
+        public Map<String, Collection<String>> registrations() {
+            Map<String, Collection<String>> registrations = new LinkedHashMap<String, Collection<String>>();
+
+            for (Site site : sites.values()) {
+                registrations.put(site.getId(), site.getRegisteredClients().snapshot());
+            }
 
+            return registrations;
+        }
     }
 
 
     /**
-     * Add a new client to the client list.
-     *
-     * @param registrationToken String with GCM token ID of client.
+     * Set up the sites listed in SITES, or the single default site if there is no list.
      */
-    private void registerNewClient(String registrationToken) {
-        if (!registeredClients.contains(registrationToken)) {
-            logger.info("Registered new client "+ registrationToken);
-            registeredClients.add(registrationToken);
+    private Map<String, Site> createSites(String apiKey) {
+        Map<String, Site> sites = new LinkedHashMap<String, Site>();
+
+        if (REGISTRY_PATH == null) {
+            logger.warning("No REGISTRY_PATH configured, client registrations will be lost on restart");
+        }
+
+        if (SITES != null) {
+            for (String id : SITES.split(",")) {
+                id = id.trim();
+
+                if (id.isEmpty() || sites.containsKey(id)) {
+                    continue;
+                }
+
+                if (!Site.isValidId(id)) {
+                    logger.severe("Ignoring invalid site ID \"" + id + "\" in SITES, only letters, digits, - and _"
+                            + " are allowed");
+                    continue;
+                }
+
+                // Environment variable names can't contain -, so the per site tubes are looked up with _ instead.
+                String key = id.toUpperCase().replace('-', '_');
+
+                String eventTubes = System.getenv("BEANSTALK_TUBES_EVENTS_" + key);
+                if (eventTubes == null) {
+                    eventTubes = suffixTubes(BEANSTALK_TUBES_EVENTS, id);
+                }
+
+                String commandsTube = System.getenv("BEANSTALK_TUBES_COMMANDS_" + key);
+                if (commandsTube == null) {
+                    commandsTube = BEANSTALK_TUBES_COMMANDS + "_" + id;
+                }
+
+                sites.put(id, createSite(id, true, eventTubes, commandsTube,
+                        REGISTRY_PATH == null ? null : new File(REGISTRY_PATH, id).getPath(), GCM_TOPIC + "-" + id,
+                        apiKey));
+            }
+
+            if (sites.isEmpty()) {
+                logger.severe("No valid sites in SITES, serving a single site");
+            }
         }
+
+        if (sites.isEmpty()) {
+            sites.put(Site.DEFAULT_ID, createSite(Site.DEFAULT_ID, false, BEANSTALK_TUBES_EVENTS,
+                    BEANSTALK_TUBES_COMMANDS, REGISTRY_PATH, GCM_TOPIC, apiKey));
+        }
+
+        logger.info("Serving " + sites.size() + " site(s): " + sites.keySet());
+        return Collections.unmodifiableMap(sites);
+    }
+
+
+    private Site createSite(String id, boolean tagged, String eventTubes, String commandsTube, String registryPath,
+                            String topic, String apiKey) {
+        List<String> tubes = new ArrayList<String>();
+        for (String tube : eventTubes.split(",")) {
+            if (!tube.trim().isEmpty()) {
+                tubes.add(tube.trim());
+            }
+        }
+
+        ClientRegistry registeredClients = new ClientRegistry(createRegistryStore(registryPath));
+
+        PushMessageDispatch dispatch = new PushMessageDispatch(
+                tagged ? "Push Message Dispatch " + id : "Push Message Dispatch",
+                Integer.parseInt(DISPATCH_WORKERS), Integer.parseInt(DISPATCH_QUEUE_SIZE),
+                PushMessageDispatch.OverflowPolicy.valueOf(DISPATCH_OVERFLOW.toUpperCase().replace('-', '_')));
+
+        return new Site(id, tagged, tubes, commandsTube, registeredClients, dispatch,
+                createTopicSubscriptions(topic, registeredClients, apiKey), spool);
     }
 
 
     /**
-     * Deliver a message to all registered clients (basically broadcast, we don't need to care about 1-1 messaging)
+     * @return Each of a comma separated list of tubes with the suffix _<id>.
      */
-    private class messageAllClients implements Observer {
-        public void update(Observable obj, Object arg) {
+    private static String suffixTubes(String tubes, String id) {
+        StringBuilder suffixed = new StringBuilder();
 
-            PushMessage myPushMessage = (PushMessage) arg;
+        for (String tube : tubes.split(",")) {
+            if (tube.trim().isEmpty()) {
+                continue;
+            }
+
+            if (suffixed.length() > 0) {
+                suffixed.append(',');
+            }
+            suffixed.append(tube.trim()).append('_').append(id);
+        }
 
-            logger.info("Dispatching broadcast message to all registered clients");
+        return suffixed.toString();
+    }
 
-            String messageString = gson.toJson(myPushMessage);
-            JsonObject jData = new JsonParser().parse(messageString).getAsJsonObject();
 
-            for (String clientToken : registeredClients) {
-                try {
-                    HowAlarmingGcmServer.send(clientToken, jData);
-                } catch (Exception e) {
-                    logger.log(Level.SEVERE, "An unexpected error occurred attempting to message device: " + clientToken, e);
+    /**
+     * Set up topic broadcasts if configured, making sure every device already registered is subscribed.
+     */
+    private TopicSubscriptionManager createTopicSubscriptions(String topic, ClientRegistry registeredClients,
+                                                              String apiKey) {
+        if (!BROADCAST_MODE.equals(BROADCAST_MODE_TOPIC)) {
+            return null;
+        }
+
+        TopicSubscriptionManager subscriptions;
+        try {
+            subscriptions = new TopicSubscriptionManager(topic, apiKey, IID_URL);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Unable to manage subscriptions to topic " + topic
+                    + ", broadcasting to each device directly", e);
+            return null;
+        }
+
+        // Subscribing is idempotent, so after a restart everyone is simply subscribed again.
+        for (String registrationToken : registeredClients.snapshot()) {
+            subscriptions.subscribe(registrationToken);
+        }
+
+        return subscriptions;
+    }
+
+
+    /**
+     * Select the backend for the client registry based on configuration.
+     */
+    private static ClientRegistryStore createRegistryStore(String registryPath) {
+        if (registryPath == null) {
+            return new ClientRegistryStore.Memory();
+        }
+
+        try {
+            return new MappedClientRegistryStore(new File(registryPath));
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Unable to open client registry at " + registryPath + ", falling back to memory only", e);
+            return new ClientRegistryStore.Memory();
+        }
+    }
+
+
+    /**
+     * Deliver a message to all of a site's registered clients (basically broadcast, we don't need to care about 1-1
+     * messaging)
+     */
+    private class messageAllClients implements PushMessageDispatch.Subscriber {
+
+        private final Site site;
+
+        // The last slice of the registrations selected, reused whilst neither they nor the ring change.
+        private volatile Selection lastSelection;
+
+        messageAllClients(Site site) {
+            this.site = site;
+        }
+
+        public void onPushMessage(PushMessage myPushMessage) {
+
+            logger.info("Dispatching broadcast message to all registered clients of site " + site);
+
+            // An event read from beanstalk by us goes to the rest of the cluster, each member sending its slice.
+            ClusterNode.Slice slice = myPushMessage.slice;
+            if (slice == null && cluster != null) {
+                slice = cluster.forward(site.getId(), myPushMessage);
+            }
+
+            Collection<String> clients = site.getRegisteredClients().snapshot();
+            if (slice != null) {
+                clients = select(clients, slice);
+            }
+
+            dispatchDelay.recordSince(myPushMessage.createdNanos);
+            recordEventAge(myPushMessage);
+
+            // A spooled push is complete once CCS has acked every message sent for it.
+            GcmServer.Delivery delivery = myPushMessage.spooled != null
+                    ? HowAlarmingGcmServer.track(myPushMessage.spooled) : null;
+
+            send(myPushMessage, clients, slice, myPushMessage.outboundPriority(), delivery);
+
+            // Left open if sending failed unexpectedly, so the push is tried again after a restart.
+            if (delivery != null) {
+                delivery.close();
+            }
+        }
+
+        private void send(PushMessage myPushMessage, Collection<String> clients, ClusterNode.Slice slice,
+                          DownstreamMessage.Priority priority, GcmServer.Delivery delivery) {
+            TopicSubscriptionManager topicSubscriptions = site.getTopicSubscriptions();
+
+            if (topicSubscriptions == null) {
+                HowAlarmingGcmServer.broadcast(myPushMessage, clients, priority, delivery);
+                return;
+            }
+
+            // One stanza to the topic reaches every subscribed device, anyone not yet subscribed is sent to directly.
+            // In a cluster only the member that read the event publishes it.
+            if (slice == null || slice.isOrigin()) {
+                HowAlarmingGcmServer.publish(myPushMessage, topicSubscriptions.getTopicAddress(), priority, delivery);
+            }
+
+            List<String> unsubscribed = new ArrayList<String>();
+            for (String registrationToken : clients) {
+                if (!topicSubscriptions.isSubscribed(registrationToken)) {
+                    unsubscribed.add(registrationToken);
                 }
             }
+
+            if (!unsubscribed.isEmpty()) {
+                HowAlarmingGcmServer.broadcast(myPushMessage, unsubscribed, priority, delivery);
+            }
+        }
+
+        /**
+         * @return The clients in the slice, hashing every token only when the registrations or ring have changed.
+         */
+        private Collection<String> select(Collection<String> clients, ClusterNode.Slice slice) {
+            Selection last = lastSelection;
+
+            if (last != null && last.clients == clients && last.slice.sameAs(slice)) {
+                return last.selected;
+            }
+
+            Selection selection = new Selection(clients, slice, slice.select(clients));
+            lastSelection = selection;
+            return selection.selected;
+        }
+    }
+
+
+
+    /**
+     * A slice of a snapshot of the registrations, as selected for a broadcast.
+     */
+    private static class Selection {
+        final Collection<String> clients;
+        final ClusterNode.Slice slice;
+        final List<String> selected;
+
+        Selection(Collection<String> clients, ClusterNode.Slice slice, List<String> selected) {
+            this.clients = clients;
+            this.slice = slice;
+            this.selected = selected;
+        }
+    }
+
+
+
+    /**
+     * Record how old an event is by its timestamp, which is in seconds since the epoch.
+     */
+    private static void recordEventAge(PushMessage myPushMessage) {
+        String timestamp = myPushMessage.data.get("timestamp");
+        if (timestamp == null) {
+            return;
+        }
+
+        try {
+            long ageMillis = System.currentTimeMillis() - Long.parseLong(timestamp) * 1000L;
+            eventAge.record(ageMillis * 1000000L);
+        } catch (NumberFormatException e) {
+            logger.fine("Event timestamp is not a number: " + timestamp);
         }
     }
 
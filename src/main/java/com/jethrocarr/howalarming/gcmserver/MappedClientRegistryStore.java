@@ -0,0 +1,316 @@
+/**
+ * Copyright 2016 Jethro Carr. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jethrocarr.howalarming.gcmserver;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * Durable registry store made up of a snapshot file plus an append-only, memory-mapped log of the registrations
+ * and unregistrations made since the snapshot was written.
+ *
+ * Log records are laid out as [op byte][length short][token bytes] with the op byte written last, so a record
+ * interrupted part way through is seen as the end of the log on replay. Once the log grows larger than the
+ * number of live clients it is folded into a new snapshot, and the records appended since are moved to a new log.
+ * Both are written to a temporary file and renamed into place, so a crash part way through a compaction leaves
+ * either the old or the new file, never a mix of the two.
+ */
+public class MappedClientRegistryStore implements ClientRegistryStore {
+
+    private static final Logger logger = Logger.getLogger("MappedClientRegistryStore");
+
+    private static final int SNAPSHOT_MAGIC = 0x48414352; // "HACR"
+
+    private static final byte OP_END = 0;
+    private static final byte OP_REGISTER = 1;
+    private static final byte OP_UNREGISTER = 2;
+
+    private static final int INITIAL_LOG_SIZE = 4 * 1024 * 1024;
+    private static final int MIN_COMPACTION_RECORDS = 10000;
+
+    private final File snapshotFile;
+    private final File logFile;
+
+    private RandomAccessFile logRaf;
+    private FileChannel logChannel;
+    private MappedByteBuffer log;
+
+    // Number of records held in the log since the last compaction.
+    private int logRecords;
+
+    // Guards the log. A lock rather than a monitor, as appends can fault pages in or remap the log and so block on
+    // disk, which would pin a virtual thread's carrier.
+    private final ReentrantLock lock = new ReentrantLock();
+
+    public MappedClientRegistryStore(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create registry directory " + directory);
+        }
+
+        snapshotFile = new File(directory, "registry.snapshot");
+        logFile = new File(directory, "registry.log");
+
+        logRaf = new RandomAccessFile(logFile, "rw");
+        logChannel = logRaf.getChannel();
+        log = logChannel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(logChannel.size(), INITIAL_LOG_SIZE));
+    }
+
+    @Override
+    public int expectedClients() {
+        if (!snapshotFile.exists()) {
+            return 0;
+        }
+
+        try (RandomAccessFile snapshotRaf = new RandomAccessFile(snapshotFile, "r")) {
+            return snapshotRaf.readInt() == SNAPSHOT_MAGIC ? snapshotRaf.readInt() : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public void replay(Collection<String> clients) throws IOException {
+        lock.lock();
+        try {
+            long started = System.nanoTime();
+            byte[] buffer = new byte[Short.MAX_VALUE * 2 + 1];
+
+            if (snapshotFile.exists()) {
+                try (RandomAccessFile snapshotRaf = new RandomAccessFile(snapshotFile, "r")) {
+                    MappedByteBuffer snapshot = snapshotRaf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, snapshotRaf.length());
+
+                    if (snapshot.getInt() != SNAPSHOT_MAGIC) {
+                        throw new IOException("Registry snapshot " + snapshotFile + " is not a valid snapshot");
+                    }
+
+                    int count = snapshot.getInt();
+                    for (int i = 0; i < count; i++) {
+                        int length = snapshot.getShort() & 0xffff;
+                        snapshot.get(buffer, 0, length);
+                        clients.add(new String(buffer, 0, length, StandardCharsets.UTF_8));
+                    }
+                }
+            }
+
+            log.position(0);
+            logRecords = 0;
+
+            while (log.remaining() > 3) {
+                int start = log.position();
+                byte op = log.get();
+
+                if (op == OP_END) {
+                    log.position(start);
+                    break;
+                }
+
+                int length = log.getShort() & 0xffff;
+                if (log.remaining() < length) {
+                    logger.warning("Truncated record found at end of registry log, ignoring");
+                    log.position(start);
+                    break;
+                }
+
+                log.get(buffer, 0, length);
+                String registrationToken = new String(buffer, 0, length, StandardCharsets.UTF_8);
+
+                if (op == OP_REGISTER) {
+                    clients.add(registrationToken);
+                } else {
+                    clients.remove(registrationToken);
+                }
+
+                logRecords++;
+            }
+
+            logger.info("Loaded " + clients.size() + " registered clients in "
+                    + ((System.nanoTime() - started) / 1000000) + "ms");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void registered(String registrationToken) throws IOException {
+        append(OP_REGISTER, registrationToken);
+    }
+
+    @Override
+    public void unregistered(String registrationToken) throws IOException {
+        append(OP_UNREGISTER, registrationToken);
+    }
+
+    private void append(byte op, String registrationToken) throws IOException {
+        lock.lock();
+        try {
+            byte[] token = registrationToken.getBytes(StandardCharsets.UTF_8);
+
+            if (token.length > 0xffff) {
+                throw new IOException("Registration token too long to persist");
+            }
+
+            int start = log.position();
+            ensureCapacity(token.length + 4);
+
+            // Write the body first and only then the op byte, which marks the record as complete.
+            log.position(start + 1);
+            log.putShort((short) token.length);
+            log.put(token);
+            int end = log.position();
+
+            log.put(start, op);
+            log.position(end);
+
+            logRecords++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void ensureCapacity(int required) throws IOException {
+        if (log.remaining() >= required) {
+            return;
+        }
+
+        int position = log.position();
+        long size = Math.max(log.capacity() * 2L, position + required);
+
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Registry log has exceeded maximum size");
+        }
+
+        log.force();
+        log = logChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        log.position(position);
+    }
+
+    @Override
+    public boolean needsCompaction(int liveClients) {
+        lock.lock();
+        try {
+            return logRecords > Math.max(MIN_COMPACTION_RECORDS, liveClients);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void compact(ClientRegistry registry) throws IOException {
+        int compactedTo;
+
+        // Anything appended before this point has already been applied to the registry, so it will be
+        // captured by the snapshot we are about to take.
+        lock.lock();
+        try {
+            compactedTo = log.position();
+        } finally {
+            lock.unlock();
+        }
+
+        Collection<String> clients = registry.snapshot();
+        File temporary = new File(snapshotFile.getPath() + ".tmp");
+
+        try (FileOutputStream fileStream = new FileOutputStream(temporary)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileStream, 256 * 1024));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(clients.size());
+
+            for (String registrationToken : clients) {
+                byte[] token = registrationToken.getBytes(StandardCharsets.UTF_8);
+                out.writeShort(token.length);
+                out.write(token);
+            }
+
+            out.flush();
+            fileStream.getChannel().force(true);
+        }
+
+        Files.move(temporary.toPath(), snapshotFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        // Until the new log replaces the old one, the old log is replayed over the new snapshot. Every token's last
+        // record in it is its current state, so that is harmless.
+        lock.lock();
+        try {
+            int end = log.position();
+            byte[] tail = new byte[end - compactedTo];
+            log.position(compactedTo);
+            log.get(tail);
+            log.position(end);
+
+            // Carry over the records appended whilst the snapshot was being written.
+            File temporaryLog = new File(logFile.getPath() + ".tmp");
+            RandomAccessFile newRaf = new RandomAccessFile(temporaryLog, "rw");
+            MappedByteBuffer newLog;
+            try {
+                newRaf.setLength(0);
+                newLog = newRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                        Math.max(INITIAL_LOG_SIZE, tail.length * 2L));
+                newLog.put(tail);
+                newLog.force();
+
+                Files.move(temporaryLog.toPath(), logFile.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException | RuntimeException e) {
+                newRaf.close();
+                throw e;
+            }
+
+            logChannel.close();
+            logRaf.close();
+
+            logRaf = newRaf;
+            logChannel = newRaf.getChannel();
+            log = newLog;
+
+            int kept = 0;
+            for (int offset = 0; offset < tail.length; offset += 3 + (log.getShort(offset + 1) & 0xffff)) {
+                kept++;
+            }
+            logRecords = kept;
+        } finally {
+            lock.unlock();
+        }
+
+        logger.info("Compacted registry to snapshot of " + clients.size() + " clients");
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            log.force();
+            logChannel.close();
+            logRaf.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
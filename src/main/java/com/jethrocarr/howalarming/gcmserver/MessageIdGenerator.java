@@ -0,0 +1,76 @@
+/**
+ * Copyright 2016 Jethro Carr. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jethrocarr.howalarming.gcmserver;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates unique IDs for downstream messages, so that acks/nacks from CCS can be matched back to the message
+ * they relate to.
+ *
+ * IDs are a fixed prefix, made up of the time the generator was created and a random node ID, followed by an
+ * atomic counter. The prefix keeps IDs unique across restarts and between server instances, whilst the counter
+ * means generating an ID needs no locking and only allocates the resulting string.
+ */
+public class MessageIdGenerator {
+
+    // URL-safe base64 alphabet, safe to embed in both JSON and XML without escaping.
+    private static final char[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+    private final char[] prefix;
+    private final AtomicLong counter;
+
+    public MessageIdGenerator() {
+        this(new SecureRandom().nextLong() & 0xffffffffffffL);
+    }
+
+    /**
+     * @param node ID distinguishing this server from others sending with the same sender ID, only the lower
+     *             48 bits are used.
+     */
+    public MessageIdGenerator(long node) {
+        prefix = new char[15];
+        encode(System.currentTimeMillis(), prefix, 0, 7);
+        encode(node, prefix, 7, 8);
+        counter = new AtomicLong();
+    }
+
+    public String next() {
+        long sequence = counter.getAndIncrement();
+
+        int digits = (64 - Long.numberOfLeadingZeros(sequence | 1) + 5) / 6;
+        char[] id = new char[prefix.length + digits];
+
+        System.arraycopy(prefix, 0, id, 0, prefix.length);
+        encode(sequence, id, prefix.length, digits);
+
+        return new String(id);
+    }
+
+    /**
+     * Write the lowest 6 * length bits of value into the buffer, most significant digit first.
+     */
+    private static void encode(long value, char[] buffer, int offset, int length) {
+        for (int i = offset + length - 1; i >= offset; i--) {
+            buffer[i] = ALPHABET[(int) (value & 63)];
+            value >>>= 6;
+        }
+    }
+}
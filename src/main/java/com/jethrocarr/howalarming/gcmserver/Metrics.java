@@ -0,0 +1,438 @@
+/**
+ * Copyright 2016 Jethro Carr. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jethrocarr.howalarming.gcmserver;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-process registry of the metrics describing the push pipeline, written out in the Prometheus text format by
+ * MetricsServer.
+ *
+ * Metrics are looked up by name much like loggers, and are meant to be held in a static field by whatever records
+ * them. Recording a value never locks or allocates, so instrumentation can be left on in production.
+ */
+public class Metrics {
+
+    private static final ConcurrentSkipListMap<String, Family> families = new ConcurrentSkipListMap<String, Family>();
+
+    private Metrics() {
+    }
+
+    /**
+     * @return The counter with the given name, created if it doesn't already exist.
+     */
+    public static Counter counter(String name, String help) {
+        return family(name, help, "counter").child("", Counter.class);
+    }
+
+    /**
+     * @return The family of counters with the given name split by a single label, created if it doesn't already
+     *         exist.
+     */
+    public static LabeledCounter counter(String name, String help, String labelName) {
+        return (LabeledCounter) family(name, help, "counter").child("", LabeledCounter.class, labelName);
+    }
+
+    /**
+     * @return The histogram with the given name, created if it doesn't already exist. Values are recorded in
+     *         nanoseconds and exported in seconds.
+     */
+    public static Histogram histogram(String name, String help) {
+        return family(name, help, "summary").child("", Histogram.class);
+    }
+
+    /**
+     * @return One of several histograms sharing a name, distinguished by a single label, created if it doesn't
+     *         already exist.
+     */
+    public static Histogram histogram(String name, String help, String labelName, String labelValue) {
+        return family(name, help, "summary").child(labels(labelName, labelValue), Histogram.class);
+    }
+
+    /**
+     * Register a gauge sampled each time metrics are written, replacing any gauge already registered under the
+     * same name.
+     */
+    public static void gauge(String name, String help, Gauge gauge) {
+        family(name, help, "gauge").children.put("", new GaugeChild(gauge));
+    }
+
+    /**
+     * Register one of several gauges sharing a name, distinguished by a single label.
+     */
+    public static void gauge(String name, String help, String labelName, String labelValue, Gauge gauge) {
+        family(name, help, "gauge").children.put(labels(labelName, labelValue), new GaugeChild(gauge));
+    }
+
+    /**
+     * Register one of several counters sharing a name, distinguished by a single label, whose value is kept
+     * elsewhere and sampled each time metrics are written.
+     */
+    public static void counter(String name, String help, String labelName, String labelValue, Gauge count) {
+        family(name, help, "counter").children.put(labels(labelName, labelValue), new GaugeChild(count));
+    }
+
+    private static Family family(String name, String help, String type) {
+        Family family = families.get(name);
+
+        if (family == null) {
+            Family created = new Family(help, type);
+            family = families.putIfAbsent(name, created);
+            if (family == null) {
+                family = created;
+            }
+        }
+
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException("Metric " + name + " is already registered as a " + family.type);
+        }
+
+        return family;
+    }
+
+    /**
+     * Write every registered metric in the Prometheus text exposition format.
+     */
+    public static void write(StringBuilder out) {
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+
+            for (Map.Entry<String, Child> child : family.children.entrySet()) {
+                child.getValue().write(out, name, child.getKey());
+            }
+        }
+    }
+
+    private static String labels(String labelName, String labelValue) {
+        StringBuilder labels = new StringBuilder(labelName.length() + labelValue.length() + 5);
+        labels.append(labelName).append("=\"");
+
+        for (int i = 0; i < labelValue.length(); i++) {
+            char c = labelValue.charAt(i);
+
+            if (c == '\\' || c == '"') {
+                labels.append('\\').append(c);
+            } else if (c == '\n') {
+                labels.append("\\n");
+            } else {
+                labels.append(c);
+            }
+        }
+
+        return labels.append('"').toString();
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, String value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+
+    /**
+     * A metric name along with every labelled instance of it.
+     */
+    private static class Family {
+        final String help;
+        final String type;
+        final ConcurrentSkipListMap<String, Child> children = new ConcurrentSkipListMap<String, Child>();
+
+        Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+
+        <T extends Child> T child(String labels, Class<T> kind) {
+            return kind.cast(child(labels, kind, null));
+        }
+
+        Child child(String labels, Class<? extends Child> kind, String labelName) {
+            Child child = children.get(labels);
+
+            if (child == null) {
+                Child created;
+                if (kind == Counter.class) {
+                    created = new Counter();
+                } else if (kind == LabeledCounter.class) {
+                    created = new LabeledCounter(labelName);
+                } else {
+                    created = new Histogram();
+                }
+
+                child = children.putIfAbsent(labels, created);
+                if (child == null) {
+                    child = created;
+                }
+            }
+
+            if (!kind.isInstance(child)) {
+                throw new IllegalArgumentException("Metric is already registered as a " + child.getClass().getSimpleName());
+            }
+
+            return child;
+        }
+    }
+
+    private abstract static class Child {
+        abstract void write(StringBuilder out, String name, String labels);
+    }
+
+
+    /**
+     * A value sampled whenever the metrics are written, eg a queue depth.
+     */
+    public interface Gauge {
+        long get();
+    }
+
+    private static class GaugeChild extends Child {
+        private final Gauge gauge;
+
+        GaugeChild(Gauge gauge) {
+            this.gauge = gauge;
+        }
+
+        @Override
+        void write(StringBuilder out, String name, String labels) {
+            sample(out, name, labels, Long.toString(gauge.get()));
+        }
+    }
+
+
+    /**
+     * A count that only ever goes up.
+     */
+    public static class Counter extends Child {
+        private final LongAdder count = new LongAdder();
+
+        public void increment() {
+            count.increment();
+        }
+
+        public void add(long amount) {
+            count.add(amount);
+        }
+
+        public long get() {
+            return count.sum();
+        }
+
+        @Override
+        void write(StringBuilder out, String name, String labels) {
+            sample(out, name, labels, Long.toString(count.sum()));
+        }
+    }
+
+
+    /**
+     * Counters split by the value of a single label, eg NACKs by error code.
+     */
+    public static class LabeledCounter extends Child {
+
+        // Label values come from outside (eg error codes from CCS), so cap how many we'll keep separately.
+        private static final int MAX_LABEL_VALUES = 64;
+        private static final String OTHER = "other";
+
+        private final String labelName;
+        private final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+
+        LabeledCounter(String labelName) {
+            this.labelName = labelName;
+        }
+
+        /**
+         * @return The counter for the given label value. Only the first use of a value allocates.
+         */
+        public Counter labels(String labelValue) {
+            Counter counter = counters.get(labelValue);
+
+            if (counter == null) {
+                if (counters.size() >= MAX_LABEL_VALUES && !labelValue.equals(OTHER)) {
+                    return labels(OTHER);
+                }
+
+                Counter created = new Counter();
+                counter = counters.putIfAbsent(labelValue, created);
+                if (counter == null) {
+                    counter = created;
+                }
+            }
+
+            return counter;
+        }
+
+        @Override
+        void write(StringBuilder out, String name, String labels) {
+            for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+                sample(out, name, Metrics.labels(labelName, entry.getKey()), Long.toString(entry.getValue().get()));
+            }
+        }
+    }
+
+
+    /**
+     * Latency histogram in the style of HdrHistogram: buckets double in width with each power of two and are split
+     * into eight linear sub-buckets, so any recorded value is known to within 12.5%. Values are counted with a
+     * single atomic increment, and quantiles are worked out from the buckets when the histogram is written.
+     */
+    public static class Histogram extends Child {
+
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        // Values beyond 2^44ns (nearly 5 hours) are counted in the last bucket.
+        private static final int MAX_EXPONENT = 44;
+        private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+        private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder sum = new LongAdder();
+
+        /**
+         * Record a duration in nanoseconds.
+         */
+        public void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+
+            buckets.incrementAndGet(index(nanos));
+            sum.add(nanos);
+        }
+
+        /**
+         * Record the time elapsed since the given System.nanoTime().
+         */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        static int index(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            if (exponent >= MAX_EXPONENT) {
+                return BUCKETS - 1;
+            }
+
+            int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+        }
+
+        /**
+         * @return The largest value counted in the given bucket.
+         */
+        static long highestValue(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+
+            int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            long subBucket = index % SUB_BUCKETS;
+            long width = 1L << (exponent - SUB_BUCKET_BITS);
+
+            return ((SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS)) + width - 1;
+        }
+
+        /**
+         * @return Number of values recorded.
+         */
+        public long count() {
+            return total(counts());
+        }
+
+        /**
+         * @return The value at the given quantile (eg 0.99) in nanoseconds, to within the bucket's precision.
+         */
+        public long valueAt(double quantile) {
+            long[] counts = counts();
+            return valueAt(quantile, counts, total(counts));
+        }
+
+        private long[] counts() {
+            long[] counts = new long[BUCKETS];
+
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+            }
+
+            return counts;
+        }
+
+        private static long total(long[] counts) {
+            long total = 0;
+
+            for (long count : counts) {
+                total += count;
+            }
+
+            return total;
+        }
+
+        private static long valueAt(double quantile, long[] counts, long total) {
+            if (total == 0) {
+                return 0;
+            }
+
+            long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return highestValue(i);
+                }
+            }
+
+            return highestValue(BUCKETS - 1);
+        }
+
+        @Override
+        void write(StringBuilder out, String name, String labels) {
+            // Work from one copy of the buckets so that the quantiles and count agree with each other.
+            long[] counts = counts();
+            long total = total(counts);
+
+            String prefix = labels.isEmpty() ? "" : labels + ",";
+
+            for (double quantile : QUANTILES) {
+                sample(out, name, prefix + "quantile=\"" + quantile + "\"", seconds(valueAt(quantile, counts, total)));
+            }
+
+            sample(out, name + "_sum", labels, seconds(sum.sum()));
+            sample(out, name + "_count", labels, Long.toString(total));
+        }
+
+        private static String seconds(long nanos) {
+            return Double.toString(nanos / 1e9);
+        }
+    }
+}
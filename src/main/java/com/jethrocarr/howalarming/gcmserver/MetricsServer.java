@@ -0,0 +1,80 @@
+/**
+ * Copyright 2016 Jethro Carr. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jethrocarr.howalarming.gcmserver;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Logger;
+
+/**
+ * Serves the contents of Metrics at /metrics in the Prometheus text format, using the HTTP server built into the
+ * JDK so there's nothing extra to deploy.
+ */
+public class MetricsServer {
+
+    private static final Logger logger = Logger.getLogger("MetricsServer");
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final HttpServer server;
+
+    public MetricsServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+
+        server.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    if (!"GET".equals(exchange.getRequestMethod())) {
+                        exchange.sendResponseHeaders(405, -1);
+                        return;
+                    }
+
+                    StringBuilder out = new StringBuilder(8192);
+                    Metrics.write(out);
+                    byte[] body = out.toString().getBytes(StandardCharsets.UTF_8);
+
+                    exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+                    exchange.sendResponseHeaders(200, body.length);
+
+                    OutputStream response = exchange.getResponseBody();
+                    response.write(body);
+                    response.close();
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+
+        // Scrapes are infrequent, a single thread is plenty.
+        server.setExecutor(Threads.newSerialExecutor("Metrics Server"));
+        server.start();
+
+        logger.info("Serving metrics on port " + server.getAddress().getPort());
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+}
@@ -0,0 +1,293 @@
+/**
+ * Copyright 2016 Jethro Carr. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jethrocarr.howalarming.gcmserver;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Queues downstream messages on strict priority lanes ahead of the CCS connections, so an alarm never waits behind
+ * a large state change broadcast or a backlog of status replies. Senders always take from the highest priority
+ * lane with anything in it, moving on to a lower lane only once the higher ones are empty.
+ *
+ * Messages whose time_to_live runs out whilst they are queued are dropped rather than sent, so stale status never
+ * competes with live traffic for the flow control window.
+ *
+ * Broadcasts are queued as a single batch which is rendered one message at a time as the senders reach it, so a
+ * broadcast to many devices neither holds a rendered stanza per device in memory nor blocks the caller.
+ */
+public class OutboundScheduler {
+
+    private static final Logger logger = Logger.getLogger("OutboundScheduler");
+
+    // Maximum batches queued in each lane before callers block.
+    private static final int LANE_CAPACITY = 1024;
+
+    /**
+     * Puts a message on the wire, blocking until there is room to.
+     */
+    public interface Sender {
+        /**
+         * @return false if the message was dropped because its deadline passed whilst waiting for room.
+         */
+        boolean send(DownstreamMessage message) throws InterruptedException;
+    }
+
+
+    private final Sender sender;
+    private final ArrayDeque<Batch>[] lanes;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    private final LongAdder[] sent;
+    private final LongAdder[] expired;
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public OutboundScheduler(Sender sender, int senders) {
+        this.sender = sender;
+
+        int priorities = DownstreamMessage.Priority.values().length;
+        lanes = new ArrayDeque[priorities];
+        sent = new LongAdder[priorities];
+        expired = new LongAdder[priorities];
+
+        for (int i = 0; i < priorities; i++) {
+            lanes[i] = new ArrayDeque<Batch>();
+            sent[i] = new LongAdder();
+            expired[i] = new LongAdder();
+        }
+
+        for (int i = 0; i < Math.max(1, senders); i++) {
+            Thread senderThread = Threads.newThread("GCM Outbound Sender " + i, new Runnable() {
+                @Override
+                public void run() {
+                    sendLoop();
+                }
+            });
+            senderThread.setDaemon(true);
+            senderThread.start();
+        }
+    }
+
+    /**
+     * Queue a single message at its own priority.
+     */
+    public void schedule(DownstreamMessage message) throws InterruptedException {
+        schedule(message.getPriority(), message.getDeadline(), 1, Collections.singletonList(message).iterator(),
+                message.getDelivery());
+    }
+
+    /**
+     * Queue a batch of messages that share a priority and deadline, eg a broadcast. The messages are only
+     * produced from the iterator once a sender is ready for them, and whatever is left of the batch is dropped if
+     * the deadline passes first.
+     *
+     * @param count Number of messages the iterator will produce.
+     */
+    public void schedule(DownstreamMessage.Priority priority, long deadline, int count,
+                         Iterator<DownstreamMessage> messages) throws InterruptedException {
+        schedule(priority, deadline, count, messages, null);
+    }
+
+    /**
+     * Queue a batch of messages that share a priority and deadline, eg a broadcast.
+     *
+     * @param count Number of messages the iterator will produce.
+     * @param delivery Told of any messages dropped before they're produced, or null.
+     */
+    public void schedule(DownstreamMessage.Priority priority, long deadline, int count,
+                         Iterator<DownstreamMessage> messages, DownstreamMessage.Delivery delivery)
+            throws InterruptedException {
+        if (count <= 0 || !messages.hasNext()) {
+            return;
+        }
+
+        ArrayDeque<Batch> lane = lanes[priority.ordinal()];
+
+        lock.lockInterruptibly();
+        try {
+            while (lane.size() >= LANE_CAPACITY) {
+                notFull.await();
+            }
+
+            lane.addLast(new Batch(priority, deadline, count, messages, delivery));
+
+            // A batch can keep every sender busy, not just the first to wake.
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Record a message that was dropped after leaving the queue because its deadline passed before it could be
+     * written.
+     */
+    public void expired(DownstreamMessage message) {
+        expired[message.getPriority().ordinal()].increment();
+        message.settle();
+    }
+
+    /**
+     * @return Number of messages queued at the given priority.
+     */
+    public int queueDepth(DownstreamMessage.Priority priority) {
+        lock.lock();
+        try {
+            int depth = 0;
+
+            for (Batch batch : lanes[priority.ordinal()]) {
+                depth += batch.remaining;
+            }
+
+            return depth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Number of messages handed to the CCS connections at the given priority.
+     */
+    public long sent(DownstreamMessage.Priority priority) {
+        return sent[priority.ordinal()].sum();
+    }
+
+    /**
+     * @return Number of messages dropped at the given priority because their deadline passed.
+     */
+    public long expired(DownstreamMessage.Priority priority) {
+        return expired[priority.ordinal()].sum();
+    }
+
+    /**
+     * Take the next message to send, from the highest priority lane that has one.
+     */
+    private DownstreamMessage take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (true) {
+                long now = System.currentTimeMillis();
+
+                for (ArrayDeque<Batch> lane : lanes) {
+                    Batch batch;
+
+                    while ((batch = lane.peekFirst()) != null) {
+                        if (now >= batch.deadline) {
+                            lane.removeFirst();
+                            notFull.signalAll();
+
+                            expired[batch.priority.ordinal()].add(batch.remaining);
+                            if (batch.delivery != null) {
+                                batch.delivery.settled(batch.remaining);
+                            }
+                            // Stale status replies are routine, a stale broadcast is worth knowing about.
+                            logger.log(batch.remaining > 1 ? Level.INFO : Level.FINE, "Dropped " + batch.remaining
+                                    + " queued " + batch.priority + " priority messages, time_to_live expired"
+                                    + " before they could be sent");
+                            continue;
+                        }
+
+                        DownstreamMessage message = null;
+                        try {
+                            message = batch.messages.next();
+                        } catch (RuntimeException e) {
+                            // Skip the message rather than retrying it forever, and count it as done with.
+                            logger.log(Level.SEVERE, "Unable to produce queued downstream message, skipping it", e);
+                            if (batch.delivery != null) {
+                                batch.delivery.settled(1);
+                            }
+                        }
+                        batch.remaining--;
+
+                        if (batch.remaining == 0 || !batch.messages.hasNext()) {
+                            lane.removeFirst();
+                            notFull.signalAll();
+
+                            // The batch came up short of its count, there is nothing more to wait on.
+                            if (batch.remaining > 0 && batch.delivery != null) {
+                                batch.delivery.settled(batch.remaining);
+                            }
+                        }
+
+                        if (message != null) {
+                            return message;
+                        }
+                        continue;
+                    }
+                }
+
+                notEmpty.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void sendLoop() {
+        while (!Thread.currentThread().isInterrupted()) {
+            DownstreamMessage message = null;
+
+            try {
+                message = take();
+
+                if (sender.send(message)) {
+                    sent[message.getPriority().ordinal()].increment();
+                    message.sent();
+                } else {
+                    expired(message);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "Unexpected error sending downstream message", e);
+
+                // The message has left its batch, so hand it back to whatever is following it to be sent again.
+                if (message != null && message.getDelivery() != null) {
+                    message.getDelivery().lost(message);
+                }
+            }
+        }
+    }
+
+
+    private static class Batch {
+        final DownstreamMessage.Priority priority;
+        final long deadline;
+        final Iterator<DownstreamMessage> messages;
+        final DownstreamMessage.Delivery delivery;
+        int remaining;
+
+        Batch(DownstreamMessage.Priority priority, long deadline, int remaining,
+              Iterator<DownstreamMessage> messages, DownstreamMessage.Delivery delivery) {
+            this.priority = priority;
+            this.deadline = deadline;
+            this.remaining = remaining;
+            this.messages = messages;
+            this.delivery = delivery;
+        }
+    }
+}
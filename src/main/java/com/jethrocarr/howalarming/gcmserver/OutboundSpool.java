@@ -0,0 +1,630 @@
+/**
+ * Copyright 2016 Jethro Carr. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jethrocarr.howalarming.gcmserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of the pushes we have taken responsibility for, so that an alarm read from beanstalk survives a
+ * CCS outage or a restart rather than only ever existing in memory once its job has been deleted.
+ *
+ * The log is a series of fixed size, memory-mapped segment files. Each push is appended as an entry, and once it
+ * has been delivered a completion record for the entry is appended after it. On startup every segment is scanned,
+ * and the entries with no completion record that haven't outlived their time_to_live are handed back to be sent
+ * again. Segments are deleted from the oldest once everything appended to them has completed.
+ *
+ * Records are laid out as [length int][crc int][type byte][id long][priority byte][deadline long][payload], with
+ * the length written last so a record interrupted part way through reads as the end of the segment, and a checksum
+ * over the rest so that a torn or corrupted record is never mistaken for a push.
+ *
+ * Appends only return once their entry is on disk. Forcing a segment to disk costs the same whether it holds one
+ * new record or a hundred, so a single committer thread forces whatever has been appended since it last did, and
+ * everyone appending meanwhile shares the one fsync (group commit).
+ */
+public class OutboundSpool {
+
+    private static final Logger logger = Logger.getLogger("OutboundSpool");
+
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private static final byte TYPE_ENTRY = 1;
+    private static final byte TYPE_COMPLETE = 2;
+
+    // length, crc, type, id, priority, deadline.
+    private static final int HEADER_SIZE = 4 + 4 + 1 + 8 + 1 + 8;
+
+    private static final Pattern SEGMENT_NAME = Pattern.compile("spool-(\\d+)\\.log");
+
+    private static final Metrics.Histogram commitTime = Metrics.histogram("howalarming_spool_commit_seconds",
+            "Time taken to force appends to the outbound spool to disk.");
+    private static final Metrics.Counter commits = Metrics.counter("howalarming_spool_commits_total",
+            "Forces of the outbound spool to disk, each covering every append made since the last.");
+    private static final Metrics.Counter appends = Metrics.counter("howalarming_spool_appends_total",
+            "Pushes recorded in the outbound spool.");
+
+    private final File directory;
+    private final int segmentSize;
+    private final long commitDelayNanos;
+
+    // Segments from oldest to newest, the last being the one appended to.
+    private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+    // Segments written to since they were last forced to disk.
+    private final List<Segment> unsynced = new ArrayList<Segment>();
+
+    // Entries recovered from disk on startup, to be sent again.
+    private final List<Entry> recovered;
+
+    private long nextId;
+    private long nextSegment;
+    private int pending;
+
+    // Records appended, and how many of those are known to be on disk.
+    private long appended;
+    private long durable;
+    // The last record covered by a force that failed, and why.
+    private long failedThrough;
+    private IOException failure;
+    private volatile boolean closed;
+
+    // A lock rather than a monitor, as appends can fault pages in and so block on disk, which would pin a virtual
+    // thread's carrier.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition dirty = lock.newCondition();
+    private final Condition committed = lock.newCondition();
+
+    private final CRC32 crc = new CRC32();
+    private final Thread committer;
+
+    public OutboundSpool(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, 0);
+    }
+
+    /**
+     * @param segmentSize Size of each segment file, which limits the size of a single entry.
+     * @param commitDelayMicros How long the committer waits after the first append for others to join it before
+     *                          forcing them to disk, trading latency for fewer fsyncs. 0 forces straight away, with
+     *                          appends made whilst a force is in progress still sharing the next.
+     */
+    public OutboundSpool(File directory, int segmentSize, long commitDelayMicros) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create spool directory " + directory);
+        }
+
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.commitDelayNanos = TimeUnit.MICROSECONDS.toNanos(commitDelayMicros);
+
+        recovered = recover();
+
+        // Never append after what was recovered, the tail of the last segment may be torn.
+        segments.addLast(openSegment(nextSegment++));
+        deleteCompletedSegments();
+
+        committer = Threads.newThread("Outbound Spool Committer", new Runnable() {
+            @Override
+            public void run() {
+                commitLoop();
+            }
+        });
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * Record a push, returning once it is on disk.
+     *
+     * @param priority Priority the push is sent at, which replays are ordered by.
+     * @param deadline Wall clock time after which the push is no longer worth sending.
+     * @param payload Whatever is needed to send the push again.
+     * @return The entry, to be completed once the push has been delivered.
+     */
+    public Entry append(DownstreamMessage.Priority priority, long deadline, byte[] payload)
+            throws IOException, InterruptedException {
+        if (HEADER_SIZE + payload.length + 4 > segmentSize) {
+            throw new IOException("Push of " + payload.length + " bytes is too large for the spool");
+        }
+
+        long sequence;
+        Entry entry;
+
+        lock.lockInterruptibly();
+        try {
+            checkOpen();
+
+            Segment segment = writable(HEADER_SIZE + payload.length);
+            entry = new Entry(this, nextId++, priority, deadline, null, segment);
+            write(segment, TYPE_ENTRY, entry.id, priority, deadline, payload);
+
+            segment.live++;
+            pending++;
+            sequence = ++appended;
+            dirty.signal();
+
+            while (durable < sequence) {
+                if (sequence <= failedThrough) {
+                    // The caller sends the push without the spool's protection, so don't keep waiting on it.
+                    entry.complete();
+                    throw new IOException("Unable to write to spool", failure);
+                }
+                checkOpen();
+                committed.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        appends.increment();
+        return entry;
+    }
+
+    /**
+     * Record that an entry's push has been delivered, so it isn't sent again. Completion records don't wait on the
+     * disk, at worst a push completed just before a crash is sent again.
+     */
+    void complete(Entry entry) {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+
+            Segment segment = writable(HEADER_SIZE);
+            write(segment, TYPE_COMPLETE, entry.id, entry.priority, 0, null);
+
+            entry.segment.live--;
+            pending--;
+            appended++;
+            dirty.signal();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to record completion of spooled push " + entry.id
+                    + ", it will be sent again after a restart", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The entries found on disk at startup that were neither completed nor expired, highest priority first
+     *         and then in the order they were appended.
+     */
+    public List<Entry> recovered() {
+        return recovered;
+    }
+
+    /**
+     * @return Number of entries that haven't completed.
+     */
+    public int pending() {
+        lock.lock();
+        try {
+            return pending;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Force everything to disk and stop accepting appends.
+     */
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            committed.signalAll();
+            dirty.signal();
+        } finally {
+            lock.unlock();
+        }
+
+        committer.interrupt();
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        lock.lock();
+        try {
+            for (Segment segment : segments) {
+                segment.buffer.force();
+                segment.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Spool is closed");
+        }
+    }
+
+    /**
+     * @return The segment to append a record of the given size to, starting a new one if the current one is full.
+     */
+    private Segment writable(int size) throws IOException {
+        Segment segment = segments.peekLast();
+
+        // Keep room for the zero length that marks the end of the segment.
+        if (segment.buffer.remaining() < size + 4) {
+            segment = openSegment(nextSegment++);
+            segments.addLast(segment);
+        }
+
+        if (!unsynced.contains(segment)) {
+            unsynced.add(segment);
+        }
+
+        return segment;
+    }
+
+    private void write(Segment segment, byte type, long id, DownstreamMessage.Priority priority, long deadline,
+                       byte[] payload) {
+        MappedByteBuffer buffer = segment.buffer;
+        int start = buffer.position();
+        int length = HEADER_SIZE + (payload != null ? payload.length : 0);
+
+        // Write the body first and only then the length, which marks the record as complete.
+        buffer.position(start + 8);
+        buffer.put(type);
+        buffer.putLong(id);
+        buffer.put((byte) priority.ordinal());
+        buffer.putLong(deadline);
+
+        // Checksum what was just written plus the payload from the array, rather than reading it all back.
+        crc.reset();
+        for (int i = start + 8; i < start + HEADER_SIZE; i++) {
+            crc.update(buffer.get(i));
+        }
+
+        if (payload != null) {
+            buffer.put(payload);
+            crc.update(payload, 0, payload.length);
+        }
+
+        buffer.putInt(start + 4, (int) crc.getValue());
+        buffer.putInt(start, length);
+        buffer.position(start + length);
+    }
+
+    private int checksum(MappedByteBuffer buffer, int offset, int length, byte[] scratch) {
+        crc.reset();
+
+        // CRC32 only takes a ByteBuffer from Java 9, so go through an array.
+        for (int done = 0; done < length; ) {
+            int size = Math.min(scratch.length, length - done);
+            for (int i = 0; i < size; i++) {
+                scratch[i] = buffer.get(offset + done + i);
+            }
+            crc.update(scratch, 0, size);
+            done += size;
+        }
+
+        return (int) crc.getValue();
+    }
+
+    private void commitLoop() {
+        List<Segment> syncing = new ArrayList<Segment>();
+
+        while (!closed) {
+            long target;
+
+            try {
+                lock.lockInterruptibly();
+                try {
+                    while (durable == appended && !closed) {
+                        dirty.await();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+
+                if (commitDelayNanos > 0) {
+                    TimeUnit.NANOSECONDS.sleep(commitDelayNanos);
+                }
+
+                lock.lockInterruptibly();
+                try {
+                    target = appended;
+                    syncing.addAll(unsynced);
+                    unsynced.clear();
+                } finally {
+                    lock.unlock();
+                }
+            } catch (InterruptedException e) {
+                // Only interrupted when closing.
+                continue;
+            }
+
+            long started = System.nanoTime();
+            IOException error = null;
+
+            // Appends carry on into the segments whilst they're forced, anything up to the target was written
+            // before we took it and so is covered.
+            try {
+                for (Segment segment : syncing) {
+                    segment.buffer.force();
+                }
+            } catch (RuntimeException e) {
+                error = new IOException("Unable to force spool to disk", e);
+            }
+
+            commitTime.recordSince(started);
+            commits.increment();
+
+            lock.lock();
+            try {
+                if (error != null) {
+                    logger.log(Level.SEVERE, "Unable to force spool to disk", error);
+                    failure = error;
+                    failedThrough = target;
+                    unsynced.addAll(syncing);
+                } else {
+                    durable = target;
+                    deleteCompletedSegments();
+                }
+                committed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+
+            syncing.clear();
+        }
+    }
+
+    /**
+     * Delete segments from the oldest whilst everything appended to them has completed. Completion records only
+     * ever follow their entry, so those in a deleted segment only refer to entries in segments already deleted.
+     */
+    private void deleteCompletedSegments() {
+        while (segments.size() > 1 && segments.peekFirst().live == 0) {
+            Segment segment = segments.removeFirst();
+            unsynced.remove(segment);
+
+            try {
+                segment.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Unable to close spool segment " + segment.file, e);
+            }
+
+            if (!segment.file.delete()) {
+                logger.warning("Unable to delete spool segment " + segment.file);
+            }
+        }
+    }
+
+    private Segment openSegment(long number) throws IOException {
+        File file = new File(directory, String.format("spool-%016d.log", number));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    Math.max(channel.size(), segmentSize));
+            return new Segment(file, raf, buffer);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Scan every segment on disk, leaving the segments open and counting the live entries in each.
+     */
+    private List<Entry> recover() throws IOException {
+        long started = System.nanoTime();
+
+        File[] files = directory.listFiles();
+        List<Long> numbers = new ArrayList<Long>();
+        if (files != null) {
+            for (File file : files) {
+                Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+                if (matcher.matches()) {
+                    numbers.add(Long.parseLong(matcher.group(1)));
+                }
+            }
+        }
+        Collections.sort(numbers);
+
+        Map<Long, Entry> live = new LinkedHashMap<Long, Entry>();
+        byte[] scratch = new byte[64 * 1024];
+        DownstreamMessage.Priority[] priorities = DownstreamMessage.Priority.values();
+
+        for (long number : numbers) {
+            Segment segment = openSegment(number);
+            segments.addLast(segment);
+            nextSegment = number + 1;
+
+            MappedByteBuffer buffer = segment.buffer;
+            int position = 0;
+
+            while (position + HEADER_SIZE <= buffer.capacity()) {
+                int length = buffer.getInt(position);
+
+                if (length == 0) {
+                    break;
+                }
+
+                if (length < HEADER_SIZE || position + length > buffer.capacity()
+                        || buffer.getInt(position + 4) != checksum(buffer, position + 8, length - 8, scratch)) {
+                    logger.warning("Torn or corrupt record found in spool segment " + segment.file + " at offset "
+                            + position + ", ignoring the rest of the segment");
+                    break;
+                }
+
+                byte type = buffer.get(position + 8);
+                long id = buffer.getLong(position + 9);
+                nextId = Math.max(nextId, id + 1);
+
+                if (type == TYPE_ENTRY) {
+                    int priority = buffer.get(position + 17);
+                    long deadline = buffer.getLong(position + 18);
+
+                    byte[] payload = new byte[length - HEADER_SIZE];
+                    for (int i = 0; i < payload.length; i++) {
+                        payload[i] = buffer.get(position + HEADER_SIZE + i);
+                    }
+
+                    live.put(id, new Entry(this, id, priorities[Math.min(priority, priorities.length - 1)], deadline,
+                            payload, segment));
+                    segment.live++;
+                } else if (type == TYPE_COMPLETE) {
+                    Entry entry = live.remove(id);
+                    if (entry != null) {
+                        entry.segment.live--;
+                    }
+                }
+
+                position += length;
+            }
+        }
+
+        // Expired entries are left for their segment to be deleted along with it, they'll only be skipped again.
+        long now = System.currentTimeMillis();
+        List<Entry> replay = new ArrayList<Entry>();
+        int expired = 0;
+
+        for (Entry entry : live.values()) {
+            if (now >= entry.deadline) {
+                entry.segment.live--;
+                expired++;
+            } else {
+                replay.add(entry);
+            }
+        }
+
+        Collections.sort(replay, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                int byPriority = a.priority.compareTo(b.priority);
+                return byPriority != 0 ? byPriority : Long.compare(a.id, b.id);
+            }
+        });
+
+        pending = replay.size();
+
+        if (!numbers.isEmpty()) {
+            logger.info("Recovered " + replay.size() + " pending pushes from " + numbers.size() + " spool segments in "
+                    + ((System.nanoTime() - started) / 1000000) + "ms, skipping " + expired + " that have expired");
+        }
+
+        return Collections.unmodifiableList(replay);
+    }
+
+
+    /**
+     * A push recorded in the spool.
+     */
+    public static class Entry {
+
+        private final OutboundSpool spool;
+        private final long id;
+        private final DownstreamMessage.Priority priority;
+        private final long deadline;
+        private final byte[] payload;
+        private final Segment segment;
+        private final AtomicBoolean completed = new AtomicBoolean();
+
+        Entry(OutboundSpool spool, long id, DownstreamMessage.Priority priority, long deadline, byte[] payload,
+              Segment segment) {
+            this.spool = spool;
+            this.id = id;
+            this.priority = priority;
+            this.deadline = deadline;
+            this.payload = payload;
+            this.segment = segment;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public DownstreamMessage.Priority getPriority() {
+            return priority;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+
+        /**
+         * @return The payload the entry was appended with, only kept for entries recovered from disk.
+         */
+        public byte[] getPayload() {
+            return payload;
+        }
+
+        /**
+         * Mark the push as delivered, or as no longer worth sending. Only the first call has any effect.
+         */
+        public void complete() {
+            if (completed.compareAndSet(false, true)) {
+                spool.complete(this);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return Long.toString(id);
+        }
+    }
+
+
+    private static class Segment {
+        final File file;
+        final RandomAccessFile raf;
+        final MappedByteBuffer buffer;
+
+        // Entries appended to this segment that haven't completed.
+        int live;
+
+        Segment(File file, RandomAccessFile raf, MappedByteBuffer buffer) {
+            this.file = file;
+            this.raf = raf;
+            this.buffer = buffer;
+        }
+
+        void close() throws IOException {
+            raf.close();
+        }
+    }
+}
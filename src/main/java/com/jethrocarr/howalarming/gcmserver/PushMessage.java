@@ -18,6 +18,10 @@
 package com.jethrocarr.howalarming.gcmserver;
 
 import com.google.gson.JsonObject;
+
+import static com.jethrocarr.howalarming.gcmserver.HowAlarmingConfig.ALARM_STATE_ARMED;
+import static com.jethrocarr.howalarming.gcmserver.HowAlarmingConfig.ALARM_STATE_DISARMED;
+import static com.jethrocarr.howalarming.gcmserver.HowAlarmingConfig.ALARM_STATE_UNKNOWN;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -31,6 +35,15 @@ public class PushMessage {
     public Map<String,String> data;
     public Map<String,String> notification;
 
+    // Wall clock time the message was created, which its time_to_live is counted from. Not sent to devices.
+    public transient long createdAt;
+    // System.nanoTime() at creation, for measuring how long it takes to reach the GCM sender.
+    public transient long createdNanos;
+    // Part of the broadcast this member of a cluster sends, or null to send to every registered device.
+    public transient ClusterNode.Slice slice;
+    // Entry recording the message in the outbound spool until it has been delivered, or null if it isn't spooled.
+    public transient OutboundSpool.Entry spooled;
+
     public PushMessage() {
         // Data for the actual apps (iOS + Android), same format as the documented HowAlarming beanstalk queue.
         data = new ConcurrentHashMap<String, String>();
@@ -46,6 +59,9 @@ public class PushMessage {
         // messages. Full details about FCM TTLs available at:
         // https://firebase.google.com/docs/cloud-messaging/concept-options#ttl
         time_to_live = 3600;
+
+        createdAt = System.currentTimeMillis();
+        createdNanos = System.nanoTime();
     }
 /*
     public isValid() {
@@ -71,6 +87,23 @@ public class PushMessage {
         time_to_live = 0;
     }
 
+    /**
+     * Status messages only convey the current armed/disarmed state of the alarm, so a newer status message makes
+     * any older one redundant.
+     */
+    public boolean isStatus() {
+        String type = data.get("type");
+
+        return ALARM_STATE_ARMED.equals(type) || ALARM_STATE_DISARMED.equals(type) || ALARM_STATE_UNKNOWN.equals(type);
+    }
+
+    /**
+     * Alarm events jump ahead of any arming/disarming broadcasts still going out.
+     */
+    public DownstreamMessage.Priority outboundPriority() {
+        return isStatus() ? DownstreamMessage.Priority.NORMAL : DownstreamMessage.Priority.HIGH;
+    }
+
     public void fromBeanstalk(JsonObject jData) {
         // Take a JSON message from beanstalk and package it into a PushMessage.
 
@@ -80,6 +113,32 @@ public class PushMessage {
         data.put("message", jData.get("message").getAsString());
         data.put("timestamp", jData.get("timestamp").getAsString());
 
+        addNotification();
+    }
+
+    public void fromBeanstalk(BeanstalkEvent event) {
+        // Take a decoded event from beanstalk and package it into a PushMessage.
+
+        data.put("raw", event.getRaw());
+        data.put("code", event.getCode());
+        data.put("type", event.getTypeName());
+        data.put("message", event.getMessage());
+        data.put("timestamp", event.getTimestamp());
+
+        addNotification();
+    }
+
+    /**
+     * Tag the message with the site it concerns, so that a device registered with several sites can tell them
+     * apart. A null site leaves the message untagged, as when only a single site is served.
+     */
+    public void site(String site) {
+        if (site != null) {
+            data.put("site", site);
+        }
+    }
+
+    private void addNotification() {
         notification.put("badge", "0");
         notification.put("sound", "default");
         notification.put("title", "HowAlarming Event " + data.get("type"));
@@ -17,19 +17,282 @@
 
 package com.jethrocarr.howalarming.gcmserver;
 
-import java.util.Observable;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 
 /**
- * We need an observable object to allow us to dispatch messages between the beanstalk thread and the main
- * application upon receipt of messages.
+ * Dispatch stage between the beanstalk consumers and the GCM sender. Push messages are queued and delivered to the
+ * subscribers by a pool of workers, so bursts of alarm events are absorbed rather than each broadcast running on
+ * the beanstalk thread that received it.
+ *
+ * Each worker has its own bounded queue and messages are routed to them by type, so events of the same type are
+ * still delivered in order whilst unrelated events are broadcast in parallel. What happens when a queue is full is
+ * decided by the OverflowPolicy.
  */
+public class PushMessageDispatch {
+
+    private static final Logger logger = Logger.getLogger("PushMessageDispatch");
+
+    public enum OverflowPolicy {
+        // Block the sender until there is space.
+        BLOCK,
+        // Discard the oldest queued status (armed/disarmed) message that a newer status for the same site, queued
+        // or arriving, supersedes, as only the latest state matters. Blocks if there is no such message to discard.
+        DROP_OLDEST_STATUS,
+        // Let the queue grow past its capacity rather than block or drop anything.
+        SPILL
+    }
+
+    /**
+     * Receives every push message sent through the dispatch.
+     */
+    public interface Subscriber {
+        void onPushMessage(PushMessage message);
+    }
+
+
+    private final CopyOnWriteArrayList<Subscriber> subscribers;
+    private final Partition[] partitions;
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+
+    private final LongAdder dropped;
+    private final LongAdder spilled;
+
+    // Time messages spend queued before being delivered, or null until set.
+    private volatile Metrics.Histogram timeInQueue;
+
+    public PushMessageDispatch(int workers, int capacity, OverflowPolicy overflowPolicy) {
+        this("Push Message Dispatch", workers, capacity, overflowPolicy);
+    }
+
+    /**
+     * @param name Name the worker threads are given, followed by their number.
+     */
+    public PushMessageDispatch(String name, int workers, int capacity, OverflowPolicy overflowPolicy) {
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+
+        subscribers = new CopyOnWriteArrayList<Subscriber>();
+        dropped = new LongAdder();
+        spilled = new LongAdder();
+
+        partitions = new Partition[Math.max(1, workers)];
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i] = new Partition();
+
+            Thread worker = Threads.newThread(name + " " + i, partitions[i]);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    public void subscribe(Subscriber subscriber) {
+        subscribers.addIfAbsent(subscriber);
+    }
+
+    public void unsubscribe(Subscriber subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    /**
+     * Queue a message for delivery to all subscribers, applying the overflow policy if the queue is full.
+     */
+    public void send(PushMessage myPushMessage) throws InterruptedException {
+        String type = myPushMessage.data.get("type");
+
+        // Status changes share a queue so they are always delivered in the order they happened.
+        String orderingKey = myPushMessage.isStatus() ? "status" : String.valueOf(type);
+        int hash = orderingKey.hashCode();
+
+        partitions[(hash & Integer.MAX_VALUE) % partitions.length].put(new Entry(myPushMessage));
+    }
+
+    /**
+     * @return Number of messages waiting to be delivered.
+     */
+    public int queueDepth() {
+        int depth = 0;
+
+        for (Partition partition : partitions) {
+            depth += partition.size();
+        }
+
+        return depth;
+    }
 
-public class PushMessageDispatch extends Observable {
+    /**
+     * @return Number of status messages discarded by the DROP_OLDEST_STATUS policy.
+     */
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return Number of messages queued beyond capacity by the SPILL policy.
+     */
+    public long spilled() {
+        return spilled.sum();
+    }
+
+    /**
+     * Record the time each message spends queued before being delivered in the histogram.
+     */
+    public void setTimeInQueue(Metrics.Histogram timeInQueue) {
+        this.timeInQueue = timeInQueue;
+    }
+
+    private void deliver(Entry entry) {
+        Metrics.Histogram timeInQueue = this.timeInQueue;
+        if (timeInQueue != null) {
+            timeInQueue.recordSince(entry.queuedAt);
+        }
 
-    public void send(PushMessage myPushMessage) {
-        setChanged();
-        notifyObservers(myPushMessage);
+        for (Subscriber subscriber : subscribers) {
+            try {
+                subscriber.onPushMessage(entry.message);
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "Unexpected error delivering push message", e);
+            }
+        }
     }
 
-}
\ No newline at end of file
+
+    private static class Entry {
+        final PushMessage message;
+        final long queuedAt;
+
+        Entry(PushMessage message) {
+            this.message = message;
+            this.queuedAt = System.nanoTime();
+        }
+    }
+
+
+    /**
+     * A queue of messages delivered in order by a single worker.
+     */
+    private class Partition implements Runnable {
+
+        private final ArrayDeque<Entry> queue = new ArrayDeque<Entry>();
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private final Condition notFull = lock.newCondition();
+
+        void put(Entry entry) throws InterruptedException {
+            lock.lockInterruptibly();
+            try {
+                while (queue.size() >= capacity) {
+                    if (overflowPolicy == OverflowPolicy.SPILL) {
+                        spilled.increment();
+                        if (queue.size() == capacity) {
+                            logger.warning("Push message queue full, spilling past capacity of " + capacity);
+                        }
+                        break;
+                    }
+
+                    if (overflowPolicy == OverflowPolicy.DROP_OLDEST_STATUS && dropSupersededStatus(entry)) {
+                        continue;
+                    }
+
+                    notFull.await();
+                }
+
+                queue.addLast(entry);
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Discard the oldest queued status message with a newer status for the same site behind it, either queued
+         * or the one being added. Anything else is left for the sender to wait on, as dropping it could leave
+         * devices never hearing of the change.
+         *
+         * @return false if there was no superseded status message to discard.
+         */
+        private boolean dropSupersededStatus(Entry incoming) {
+            String incomingSite = incoming.message.isStatus() ? incoming.message.data.get("site") : null;
+            Map<String, Entry> oldestBySite = new HashMap<String, Entry>();
+
+            for (Entry queued : queue) {
+                if (!queued.message.isStatus()) {
+                    continue;
+                }
+
+                String site = queued.message.data.get("site");
+
+                if (incoming.message.isStatus() && Objects.equals(site, incomingSite)) {
+                    drop(queued);
+                    return true;
+                }
+
+                Entry oldest = oldestBySite.get(site);
+                if (oldest != null) {
+                    drop(oldest);
+                    return true;
+                }
+                oldestBySite.put(site, queued);
+            }
+
+            return false;
+        }
+
+        private void drop(Entry queued) {
+            queue.removeFirstOccurrence(queued);
+            dropped.increment();
+
+            // A newer status supersedes it, there's no call to send it after a restart either.
+            if (queued.message.spooled != null) {
+                queued.message.spooled.complete();
+            }
+            logger.warning("Push message queue full, dropped superseded status message "
+                    + queued.message.data.get("type"));
+        }
+
+        int size() {
+            lock.lock();
+            try {
+                return queue.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private Entry take() throws InterruptedException {
+            lock.lockInterruptibly();
+            try {
+                while (queue.isEmpty()) {
+                    notEmpty.await();
+                }
+
+                Entry entry = queue.removeFirst();
+                notFull.signal();
+                return entry;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    deliver(take());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright 2016 Jethro Carr. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jethrocarr.howalarming.gcmserver;
+
+import com.google.gson.Gson;
+
+/**
+ * A PushMessage encoded once into the XMPP stanza sent to GCM, leaving only the recipient and message ID to be
+ * spliced in for each device. This lets a broadcast to many devices share a single JSON serialisation.
+ */
+public class PushMessageTemplate {
+
+    private static final String PREFIX = "<message><" + GcmServer.GCM_ELEMENT_NAME + " xmlns=\""
+            + GcmServer.GCM_NAMESPACE + "\">{\"to\":";
+    private static final String MESSAGE_ID = ",\"message_id\":\"";
+    private static final String SUFFIX = "</" + GcmServer.GCM_ELEMENT_NAME + "></message>";
+
+    private final Gson gson;
+
+    // Everything after the message_id, ie the remaining fields of the PushMessage and the closing of the stanza.
+    private final String body;
+
+    public PushMessageTemplate(Gson gson, PushMessage message) {
+        this.gson = gson;
+
+        // Gson escapes <, > and & by default, so the JSON can be embedded in the XML as-is.
+        String json = gson.toJson(message);
+
+        if (json.length() > 2) {
+            body = "\"," + json.substring(1) + SUFFIX;
+        } else {
+            body = "\"}" + SUFFIX;
+        }
+    }
+
+    /**
+     * Render the stanza for a single recipient.
+     *
+     * @param to Registration token of the recipient.
+     * @param messageId Unique ID for this message.
+     */
+    public String render(String to, String messageId) {
+        StringBuilder stanza = new StringBuilder(PREFIX.length() + to.length() + MESSAGE_ID.length()
+                + messageId.length() + body.length() + 2);
+
+        stanza.append(PREFIX);
+        appendString(stanza, to);
+        stanza.append(MESSAGE_ID);
+        stanza.append(messageId);
+        stanza.append(body);
+
+        return stanza.toString();
+    }
+
+    /**
+     * Append a quoted JSON string. Registration tokens are plain URL-safe strings, so we only fall back to Gson
+     * for anything that would need escaping.
+     */
+    private void appendString(StringBuilder stanza, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            if (!(Character.isLetterOrDigit(c) && c < 128) && c != '-' && c != '_' && c != ':' && c != '.') {
+                stanza.append(gson.toJson(value));
+                return;
+            }
+        }
+
+        stanza.append('"').append(value).append('"');
+    }
+}
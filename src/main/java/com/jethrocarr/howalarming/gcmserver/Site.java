@@ -0,0 +1,255 @@
+/**
+ * Copyright 2016 Jethro Carr. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jethrocarr.howalarming.gcmserver;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * A single alarm panel and the devices that follow it. Each site has its own events and commands tubes, alarm
+ * state, registered devices and dispatch queue, so sites are processed and broadcast in parallel with nothing
+ * shared between them but the CCS connections.
+ *
+ * Events and upstream messages are routed to a site by the "site" field they carry, or if they carry none, by the
+ * tube they were read from or to the default site.
+ */
+public class Site {
+
+    private static final Logger logger = Logger.getLogger("Site");
+
+    private static final Gson gson = new GsonBuilder().create();
+
+    // ID of the site when SITES isn't configured and the server serves a single panel, as it always used to.
+    public static final String DEFAULT_ID = "default";
+
+    // Site IDs end up in tube names, topic names and paths, so are kept to characters that are safe in all three.
+    private static final Pattern VALID_ID = Pattern.compile("[A-Za-z0-9_-]+");
+
+    private final String id;
+    private final boolean tagged;
+    private final List<String> eventTubes;
+    private final String commandsTube;
+
+    private final ClientRegistry registeredClients;
+    private final PushMessageDispatch dispatch;
+    private final TopicSubscriptionManager topicSubscriptions;
+    private final OutboundSpool spool;
+
+    private final AtomicReference<AlarmState> alarmState;
+
+    /**
+     * @param id ID of the site, as carried in events and upstream messages.
+     * @param tagged Whether messages sent to devices are tagged with the site ID, needed once there is more than one.
+     * @param eventTubes Tubes to read the site's alarm events from.
+     * @param commandsTube Tube to post commands from the site's devices to.
+     * @param registeredClients Devices following the site.
+     * @param dispatch Queue the site's broadcasts are dispatched from.
+     * @param topicSubscriptions Subscriptions to the site's broadcast topic, or null if broadcasting to each device.
+     * @param spool Spool recording the site's pushes until they're delivered, or null if they're only held in memory.
+     */
+    public Site(String id, boolean tagged, List<String> eventTubes, String commandsTube,
+                ClientRegistry registeredClients, PushMessageDispatch dispatch,
+                TopicSubscriptionManager topicSubscriptions, OutboundSpool spool) {
+        if (!isValidId(id)) {
+            throw new IllegalArgumentException("Invalid site ID \"" + id + "\", only letters, digits, - and _ are allowed");
+        }
+
+        this.id = id;
+        this.tagged = tagged;
+        this.eventTubes = Collections.unmodifiableList(new ArrayList<String>(eventTubes));
+        this.commandsTube = commandsTube;
+        this.registeredClients = registeredClients;
+        this.dispatch = dispatch;
+        this.topicSubscriptions = topicSubscriptions;
+        this.spool = spool;
+
+        alarmState = new AtomicReference<AlarmState>(AlarmState.initial(tagged ? id : null));
+    }
+
+    public static boolean isValidId(String id) {
+        return id != null && VALID_ID.matcher(id).matches();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public List<String> getEventTubes() {
+        return eventTubes;
+    }
+
+    public String getCommandsTube() {
+        return commandsTube;
+    }
+
+    public ClientRegistry getRegisteredClients() {
+        return registeredClients;
+    }
+
+    public PushMessageDispatch getDispatch() {
+        return dispatch;
+    }
+
+    /**
+     * @return Subscriptions to the site's broadcast topic, or null if broadcasting to each device directly.
+     */
+    public TopicSubscriptionManager getTopicSubscriptions() {
+        return topicSubscriptions;
+    }
+
+    /**
+     * @return The latest alarm state.
+     */
+    public AlarmState getAlarmState() {
+        return alarmState.get();
+    }
+
+    /**
+     * Tag a message being sent to the site's devices with the site ID, if there is more than one site.
+     */
+    public void tag(PushMessage message) {
+        if (tagged) {
+            message.site(id);
+        }
+    }
+
+    /**
+     * Queue a push to be broadcast to the site's devices, having first recorded it in the spool if there is one. Once
+     * this returns the push survives a restart, so whatever it came from can be let go.
+     */
+    public void dispatch(PushMessage message) throws InterruptedException {
+        if (spool != null) {
+            try {
+                message.spooled = spool.append(message.outboundPriority(),
+                        DownstreamMessage.deadline(message.createdAt, message.time_to_live),
+                        gson.toJson(new SpooledPush(id, message)).getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Unable to spool push for site " + id + ", sending it without", e);
+            }
+        }
+
+        dispatch.send(message);
+    }
+
+    /**
+     * Queue a push recovered from the spool to be broadcast again.
+     *
+     * @param cluster Membership of the cluster, to take the same slice of a push forwarded by a peer, or null.
+     */
+    public void replay(OutboundSpool.Entry entry, SpooledPush push, ClusterNode cluster) throws InterruptedException {
+        PushMessage message = push.message;
+        message.createdAt = push.created_at;
+        message.spooled = entry;
+
+        if (push.members != null && cluster != null) {
+            message.slice = cluster.slice(push.members);
+        }
+
+        dispatch.send(message);
+    }
+
+    /**
+     * Record an event, publishing a new alarm state.
+     *
+     * @param type Type of the event.
+     * @param typeName Type exactly as given in the event.
+     * @param timestamp The event's timestamp.
+     * @return The state published.
+     */
+    public AlarmState record(BeanstalkEvent.Type type, String typeName, String timestamp) {
+        while (true) {
+            AlarmState previous = alarmState.get();
+            AlarmState next = previous.next(type, typeName, timestamp);
+
+            if (alarmState.compareAndSet(previous, next)) {
+                return next;
+            }
+        }
+    }
+
+    /**
+     * Register a device to receive the site's broadcasts.
+     *
+     * @return true if the device was not previously registered.
+     */
+    public boolean register(String registrationToken) {
+        boolean registered = registeredClients.register(registrationToken);
+
+        if (topicSubscriptions != null) {
+            topicSubscriptions.subscribe(registrationToken);
+        }
+
+        return registered;
+    }
+
+    /**
+     * Stop broadcasting to a device, eg once GCM reports its registration as no longer valid.
+     *
+     * @return true if the device was registered.
+     */
+    public boolean unregister(String registrationToken) {
+        boolean unregistered = registeredClients.unregister(registrationToken);
+
+        if (topicSubscriptions != null) {
+            topicSubscriptions.unsubscribe(registrationToken);
+        }
+
+        return unregistered;
+    }
+
+    @Override
+    public String toString() {
+        return id;
+    }
+
+
+    /**
+     * A push as recorded in the spool, with what's needed to send it again after a restart.
+     */
+    public static class SpooledPush {
+        public String site;
+        public long created_at;
+        // Members of the ring a peer sliced the push with, or null if we read it from beanstalk ourselves.
+        public List<String> members;
+        public PushMessage message;
+
+        SpooledPush() {
+        }
+
+        SpooledPush(String site, PushMessage message) {
+            this.site = site;
+            this.created_at = message.createdAt;
+            this.members = message.slice != null && !message.slice.isOrigin() ? message.slice.getMembers() : null;
+            this.message = message;
+        }
+
+        public static SpooledPush decode(OutboundSpool.Entry entry) {
+            return gson.fromJson(new String(entry.getPayload(), StandardCharsets.UTF_8), SpooledPush.class);
+        }
+    }
+}
@@ -18,6 +18,7 @@
 package com.jethrocarr.howalarming.gcmserver;
 
 import org.jivesoftware.smack.AbstractXMPPConnection;
+import org.jivesoftware.smack.ConnectionConfiguration;
 import org.jivesoftware.smack.ConnectionListener;
 import org.jivesoftware.smack.SmackException;
 import org.jivesoftware.smack.StanzaListener;
@@ -31,27 +32,87 @@ import org.jivesoftware.smack.tcp.XMPPTCPConnectionConfiguration;
 
 import javax.net.ssl.SSLSocketFactory;
 import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * SmackCcsClient provides communication with GCM Cloud Connection Server (XMPP Server).
  * This sample uses Smack version 4.1.0.
+ *
+ * Outgoing stanzas are placed on a bounded queue and written by a dedicated writer thread, which
+ * also takes care of retries and reconnecting, so callers are never blocked by a slow or broken
+ * connection.
  */
 public class SmackCcsClient {
 
   private static final Logger logger = Logger.getLogger("SmackCssClient");
 
+  // Maximum stanzas waiting to be written. Downstream messages are already bounded by the flow
+  // control window, so this mostly absorbs acks for upstream messages.
+  private static final int OUTBOUND_QUEUE_SIZE = 1024;
+
+  // Attempts made to write a stanza before giving up, backing off between each.
+  private static final int MAX_SEND_ATTEMPTS = 5;
+  private static final long INITIAL_BACKOFF_MILLIS = 1000;
+  private static final long MAX_BACKOFF_MILLIS = 30000;
+
+  private static final Metrics.Histogram sendTime = Metrics.histogram("gcm_stanza_send_seconds",
+      "Time from a stanza being queued for a CCS connection to it being written.");
+  private static final Metrics.Counter reconnects = Metrics.counter("gcm_reconnects_total",
+      "Reconnections made to CCS after a connection was lost.");
+
   private AbstractXMPPConnection connection;
+  private final String apiKey;
+  private final String username;
+
+  private final ArrayBlockingQueue<OutboundStanza> outbound =
+      new ArrayBlockingQueue<OutboundStanza>(OUTBOUND_QUEUE_SIZE);
+  private final Thread writerThread;
+
+  // Set when the connection has been lost, the writer thread will reconnect.
+  private volatile boolean reconnectRequired;
+  private volatile boolean closed;
+
+  // Downstream messages sent on this connection that are yet to be acked/nacked by CCS.
+  private final FlowControlWindow flowControl = new FlowControlWindow();
+
+  // Set once CCS has told us this connection is about to be closed, after which no new messages
+  // should be sent on it.
+  private volatile boolean draining;
+  // Told once the connection is closed whilst draining.
+  private volatile Runnable drainedListener;
 
   public SmackCcsClient(String apiKey, String username, String serviceName, String host, int port) {
-    XMPPTCPConnectionConfiguration config = XMPPTCPConnectionConfiguration.builder()
+    this(apiKey, username, serviceName, host, port, true);
+  }
+
+  /**
+   * @param tls Whether to connect over TLS, as CCS requires. Only a local stand-in for CCS should
+   *            ever be connected to without it.
+   */
+  public SmackCcsClient(String apiKey, String username, String serviceName, String host, int port,
+      boolean tls) {
+    this.apiKey = apiKey;
+    this.username = username;
+
+    XMPPTCPConnectionConfiguration.Builder builder = XMPPTCPConnectionConfiguration.builder()
         .setServiceName(serviceName)
         .setHost(host)
-        .setSocketFactory(SSLSocketFactory.getDefault())
         .setSendPresence(false)
-        .setPort(port)
-        .build();
+        .setPort(port);
+
+    if (tls) {
+      builder.setSocketFactory(SSLSocketFactory.getDefault());
+    } else {
+      builder.setSecurityMode(ConnectionConfiguration.SecurityMode.disabled);
+    }
+
+    XMPPTCPConnectionConfiguration config = builder.build();
 
     connection = new XMPPTCPConnection(config);
     Roster.getInstanceFor(connection).setRosterLoadedAtLogin(false);
@@ -70,25 +131,27 @@ public class SmackCcsClient {
       @Override
       public void connectionClosed() {
         logger.info("Connection to CCS closed");
+
+        if (draining) {
+          closedWhilstDraining();
+        }
       }
 
       @Override
       public void connectionClosedOnError(Exception e) {
         logger.log(Level.WARNING, "Connection closed because of an error.", e);
 
+        // A draining connection is expected to be closed by CCS, it has already been replaced.
+        if (draining) {
+          closedWhilstDraining();
+          return;
+        }
+
         /*
          * Not sure why this doesn't automatically reconnect, but it seems to be a real issue
-         * on occasions. This should do the trick to force a reconnection.
+         * on occasions. Hand off to the writer thread to force a reconnection.
          */
-        try {
-          logger.log(Level.WARNING, "Reconnecting to GCM...");
-
-          connection.disconnect();
-          connection.connect();
-
-        } catch (SmackException | IOException | XMPPException e2) {
-          logger.log(Level.SEVERE, "Error occurred whilst attempting to reconnect to GCM");
-        }
+        reconnectRequired = true;
       }
 
       @Override
@@ -113,35 +176,170 @@ public class SmackCcsClient {
       connection.login(username, apiKey);
     } catch (SmackException | IOException | XMPPException e) {
       logger.log(Level.SEVERE, "Unable to connect or login to GCM CCS.", e);
+      reconnectRequired = true;
     }
+
+    // Always a platform thread as reconnecting holds Smack's connection monitor, see CcsConnectionPool.drain.
+    writerThread = Threads.newPlatformThread("CCS Writer", new Runnable() {
+      @Override
+      public void run() {
+        writeLoop();
+      }
+    });
+    writerThread.setDaemon(true);
+    writerThread.start();
   }
 
   /**
    * Begin listening for incoming messages.
    *
    * @param stanzaListener Listener that handles accepted messages. This is defined in
-   *                       FriendlyPingServer.
+   *                       FriendlyPingServer. It is called in order on one of Smack's threads,
+   *                       so should hand off anything that blocks.
    * @param stanzaFilter Filter that determines what messages are handled by the listener.
    */
   public void listen(StanzaListener stanzaListener, StanzaFilter stanzaFilter) {
-    connection.addAsyncStanzaListener(stanzaListener, stanzaFilter);
+    connection.addSyncStanzaListener(stanzaListener, stanzaFilter);
     logger.info("Listening for incoming XMPP Stanzas...");
   }
 
+  public FlowControlWindow getFlowControl() {
+    return flowControl;
+  }
+
+  public boolean isDraining() {
+    return draining;
+  }
+
   /**
-   * Send an XMPP message. If the connection fails, attempt to reconnect and resend up to 5 times.
+   * Mark the connection as draining, it will continue to receive messages but should no longer be
+   * used to send new ones.
+   *
+   * @param drainedListener Told if the connection is closed before it is retired, eg by CCS with
+   *                        acks still outstanding.
+   */
+  public void drain(Runnable drainedListener) {
+    this.drainedListener = drainedListener;
+    draining = true;
+  }
+
+  private void closedWhilstDraining() {
+    Runnable listener = drainedListener;
+    if (listener != null) {
+      listener.run();
+    }
+  }
+
+  public boolean isConnected() {
+    return connection.isConnected() && connection.isAuthenticated();
+  }
+
+  /**
+   * Close the connection to CCS.
+   */
+  public void close() {
+    draining = true;
+    closed = true;
+    writerThread.interrupt();
+    connection.disconnect();
+
+    OutboundStanza pending;
+    while ((pending = outbound.poll()) != null) {
+      pending.future.completeExceptionally(new IllegalStateException("CCS connection closed"));
+    }
+  }
+
+  /**
+   * Queue an XMPP message to be sent by the writer thread. If the connection fails, the writer
+   * reconnects and resends up to MAX_SEND_ATTEMPTS times.
    *
    * @param stanza
+   * @return Future completed once the stanza has been written, or exceptionally if it could not be
+   *         queued or all attempts to send it failed.
    */
-  public void sendStanza(Stanza stanza) {
+  public CompletableFuture<Void> sendStanza(Stanza stanza) {
+    return sendStanza(stanza, Long.MAX_VALUE);
+  }
 
-    Integer retries = 0;
+  /**
+   * Queue an XMPP message to be sent by the writer thread, unless it is still waiting to be written
+   * when the deadline passes.
+   *
+   * @param stanza
+   * @param deadline Wall clock time after which the stanza is no longer worth sending.
+   * @return Future completed once the stanza has been written, or exceptionally with a
+   *         TimeoutException if the deadline passed first.
+   */
+  public CompletableFuture<Void> sendStanza(Stanza stanza, long deadline) {
+    OutboundStanza pending = new OutboundStanza(stanza, deadline);
+
+    if (closed) {
+      pending.future.completeExceptionally(new IllegalStateException("CCS connection closed"));
+    } else if (!outbound.offer(pending)) {
+      pending.future.completeExceptionally(
+          new RejectedExecutionException("Outbound queue to CCS is full"));
+    }
 
-    while (retries < 5) {
+    return pending.future;
+  }
+
+  /**
+   * @return Number of stanzas waiting to be written to CCS.
+   */
+  public int queued() {
+    return outbound.size();
+  }
+
+  private void writeLoop() {
+    long reconnectBackoff = INITIAL_BACKOFF_MILLIS;
+
+    while (!closed) {
       try {
-        connection.sendStanza(stanza);
+        if (reconnectRequired) {
+          if (reconnect()) {
+            reconnectBackoff = INITIAL_BACKOFF_MILLIS;
+          } else {
+            Thread.sleep(reconnectBackoff);
+            reconnectBackoff = Math.min(reconnectBackoff * 2, MAX_BACKOFF_MILLIS);
+          }
+        }
+
+        OutboundStanza pending = outbound.poll(1, TimeUnit.SECONDS);
+        if (pending != null) {
+          write(pending);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (RuntimeException e) {
+        logger.log(Level.SEVERE, "Unexpected error in CCS writer.", e);
+      }
+    }
+  }
+
+  private void write(OutboundStanza pending) throws InterruptedException {
+    long backoff = INITIAL_BACKOFF_MILLIS;
+
+    for (int attempt = 1; attempt <= MAX_SEND_ATTEMPTS; attempt++) {
+      if (System.currentTimeMillis() >= pending.deadline) {
+        pending.future.completeExceptionally(
+            new TimeoutException("Deadline passed before the stanza could be written"));
+        return;
+      }
+
+      try {
+        connection.sendStanza(pending.stanza);
+        sendTime.recordSince(pending.queuedAt);
+        pending.future.complete(null);
+        return;
       } catch (SmackException.NotConnectedException e) {
-        logger.log(Level.SEVERE, "Error occurred while sending stanza.", e);
+        logger.log(Level.SEVERE, "Error occurred while sending stanza, attempt " + attempt + " of "
+            + MAX_SEND_ATTEMPTS, e);
+
+        if (attempt == MAX_SEND_ATTEMPTS || closed) {
+          pending.future.completeExceptionally(e);
+          return;
+        }
 
         /* This bit is a bit weird. In theory, ConnectionListener should have a handler for catching send failures,
          * but this doesn't appear to be the case. In theory, the ConnectionListener *should* already have recreated
@@ -150,31 +348,57 @@ public class SmackCcsClient {
          * devices.
          */
         try {
-          logger.log(Level.WARNING, "Reconnecting to GCM...");
+          Thread.sleep(backoff);
+        } catch (InterruptedException ex) {
+          pending.future.completeExceptionally(ex);
+          throw ex;
+        }
+        backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+        reconnect();
+      }
+    }
+  }
 
-          // There does not appear to be an intelligent reconnect routine, so we just disconnect
-          // and reconnect.
-          connection.disconnect();
-          connection.connect();
+  /**
+   * There does not appear to be an intelligent reconnect routine, so we just disconnect and
+   * reconnect.
+   *
+   * @return true if the connection is usable afterwards.
+   */
+  private boolean reconnect() {
+    reconnectRequired = false;
 
-        } catch (SmackException | IOException | XMPPException e2) {
-          logger.log(Level.SEVERE, "Error occurred whilst attempting to reconnect to GCM");
-        }
+    if (draining || (connection.isConnected() && connection.isAuthenticated())) {
+      return true;
+    }
 
-        // Increment retries attempt
-        retries++;
+    try {
+      logger.log(Level.WARNING, "Reconnecting to GCM...");
+      reconnects.increment();
 
-        // 30 second sleep between retries
-        try {
-          Thread.sleep(30000);
-        } catch (InterruptedException ex) {
-          Thread.currentThread().interrupt();
-        }
+      connection.disconnect();
+      connection.connect();
+      connection.login(username, apiKey);
+      return true;
+    } catch (SmackException | IOException | XMPPException e) {
+      logger.log(Level.SEVERE, "Error occurred whilst attempting to reconnect to GCM", e);
+      reconnectRequired = true;
+      return false;
+    }
+  }
 
-      } finally {
-        // Our work here is done
-        return;
-      }
+
+  private static class OutboundStanza {
+    final Stanza stanza;
+    final long deadline;
+    final long queuedAt;
+    final CompletableFuture<Void> future;
+
+    OutboundStanza(Stanza stanza, long deadline) {
+      this.stanza = stanza;
+      this.deadline = deadline;
+      this.queuedAt = System.nanoTime();
+      this.future = new CompletableFuture<Void>();
     }
   }
 }
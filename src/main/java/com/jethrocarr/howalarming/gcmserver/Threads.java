@@ -0,0 +1,213 @@
+/**
+ * Copyright 2016 Jethro Carr. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jethrocarr.howalarming.gcmserver;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates the threads the server's blocking work runs on: event workers, dispatch workers, outbound senders,
+ * connection supervision and handling of incoming messages.
+ *
+ * By default these are platform threads. With THREAD_MODE=virtual they are virtual threads instead, so that work
+ * blocked on the dispatch queues, CCS flow control or a retry doesn't hold an OS thread. Work that blocks inside a
+ * library whilst holding a monitor, which would pin the virtual thread's carrier, stays on platform threads.
+ *
+ * Virtual threads need Java 21 or later, on older runtimes we fall back to platform threads. The code is built for
+ * Java 8, so the virtual thread API is looked up at runtime rather than linked against.
+ */
+public class Threads {
+
+    private static final Logger logger = Logger.getLogger("Threads");
+
+    public static final String MODE_PLATFORM = "platform";
+    public static final String MODE_VIRTUAL = "virtual";
+
+    // Thread.ofVirtual(), Thread.Builder.name(String), .unstarted(Runnable) and .factory(), if available.
+    private static final Method ofVirtual;
+    private static final Method builderName;
+    private static final Method builderUnstarted;
+    private static final Method builderFactory;
+
+    private static final boolean virtual;
+
+    static {
+        Method[] methods = lookupVirtual();
+        ofVirtual = methods[0];
+        builderName = methods[1];
+        builderUnstarted = methods[2];
+        builderFactory = methods[3];
+
+        virtual = selectVirtual(HowAlarmingConfig.THREAD_MODE);
+    }
+
+    private static Method[] lookupVirtual() {
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+
+            return new Method[]{
+                    Thread.class.getMethod("ofVirtual"),
+                    builder.getMethod("name", String.class),
+                    builder.getMethod("unstarted", Runnable.class),
+                    builder.getMethod("factory")
+            };
+        } catch (ClassNotFoundException | NoSuchMethodException e) {
+            return new Method[4];
+        }
+    }
+
+    private static boolean selectVirtual(String mode) {
+        if (mode == null || mode.equalsIgnoreCase(MODE_PLATFORM)) {
+            return false;
+        }
+
+        if (!mode.equalsIgnoreCase(MODE_VIRTUAL)) {
+            logger.warning("Unknown THREAD_MODE " + mode + ", using platform threads");
+            return false;
+        }
+
+        if (ofVirtual == null) {
+            logger.warning("Virtual threads need Java 21 or later, this is Java "
+                    + System.getProperty("java.version") + ", using platform threads");
+            return false;
+        }
+
+        logger.info("Running blocking work on virtual threads");
+        return true;
+    }
+
+    /**
+     * @return Whether work is being run on virtual threads.
+     */
+    public static boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * Create, but don't start, a thread to run the task. Virtual threads are always daemon threads, so in virtual
+     * mode a thread relied on to keep the JVM running mustn't be the only one left.
+     */
+    public static Thread newThread(String name, Runnable task) {
+        if (virtual) {
+            try {
+                Object builder = builderName.invoke(ofVirtual.invoke(null), name);
+                return (Thread) builderUnstarted.invoke(builder, task);
+            } catch (ReflectiveOperationException e) {
+                logger.log(Level.WARNING, "Unable to create virtual thread, using a platform thread", e);
+            }
+        }
+
+        Thread thread = new Thread(task);
+        thread.setName(name);
+        return thread;
+    }
+
+    /**
+     * Create, but don't start, a platform thread whatever the mode. For work that blocks whilst holding a monitor,
+     * eg beanstalkc reading its socket or Smack logging in, which on a virtual thread would pin the carrier it runs
+     * on and, with as few carriers as CPUs, starve every other virtual thread.
+     */
+    public static Thread newPlatformThread(String name, Runnable task) {
+        Thread thread = new Thread(task);
+        thread.setName(name);
+        return thread;
+    }
+
+    /**
+     * Create an executor for short blocking tasks. In virtual mode every task gets its own virtual thread, otherwise
+     * tasks share a pool of platform threads that grows on demand and shrinks again when idle.
+     */
+    public static ExecutorService newTaskExecutor(String name) {
+        ExecutorService executor = newVirtualTaskExecutor(name);
+        return executor != null ? executor : Executors.newCachedThreadPool(platformFactory(name));
+    }
+
+    /**
+     * Create an executor for short blocking tasks arriving from outside, where a burst mustn't start a platform
+     * thread per task. In virtual mode every task gets its own virtual thread, otherwise tasks queue for a fixed
+     * pool of platform threads, which exit again when idle.
+     *
+     * @param threads Most platform threads to run tasks on at once.
+     */
+    public static ExecutorService newTaskExecutor(String name, int threads) {
+        ExecutorService executor = newVirtualTaskExecutor(name);
+        if (executor != null) {
+            return executor;
+        }
+
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), platformFactory(name));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private static ExecutorService newVirtualTaskExecutor(String name) {
+        if (!virtual) {
+            return null;
+        }
+
+        try {
+            Object builder = builderName.invoke(ofVirtual.invoke(null), name);
+            ThreadFactory factory = (ThreadFactory) builderFactory.invoke(builder);
+
+            Method perTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) perTask.invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            logger.log(Level.WARNING, "Unable to create virtual thread executor, using platform threads", e);
+            return null;
+        }
+    }
+
+    /**
+     * Create an executor running tasks one at a time in the order they were submitted, on a daemon thread.
+     */
+    public static ExecutorService newSerialExecutor(String name) {
+        if (virtual) {
+            try {
+                Object builder = builderName.invoke(ofVirtual.invoke(null), name);
+                return Executors.newSingleThreadExecutor((ThreadFactory) builderFactory.invoke(builder));
+            } catch (ReflectiveOperationException e) {
+                logger.log(Level.WARNING, "Unable to create virtual thread executor, using a platform thread", e);
+            }
+        }
+
+        return Executors.newSingleThreadExecutor(platformFactory(name));
+    }
+
+    private static ThreadFactory platformFactory(final String name) {
+        final AtomicInteger count = new AtomicInteger();
+
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task);
+                thread.setName(name + " " + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
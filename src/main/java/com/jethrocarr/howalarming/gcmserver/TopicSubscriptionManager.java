@@ -0,0 +1,330 @@
+/**
+ * Copyright 2016 Jethro Carr. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jethrocarr.howalarming.gcmserver;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps registered devices subscribed to the FCM topic that broadcasts are published to, so that an alarm can be
+ * sent as a single stanza to the topic rather than one per device.
+ *
+ * Subscribing and unsubscribing goes through the instance ID service's batchAdd and batchRemove calls, which take
+ * up to 1000 tokens at a time. Changes are queued and made in batches by a background thread, so registering a
+ * device never waits on the HTTP call. Until the service has confirmed a device is subscribed it isn't counted as
+ * such, and broadcasts continue to be sent to it directly.
+ */
+public class TopicSubscriptionManager {
+
+    private static final Logger logger = Logger.getLogger("TopicSubscriptionManager");
+
+    public static final String IID_URL = "https://iid.googleapis.com";
+
+    // Most tokens the instance ID service takes in one call.
+    private static final int MAX_BATCH = 1000;
+
+    // How long to wait for a batch to fill once there is something to send.
+    private static final long BATCH_DELAY_MILLIS = 500;
+
+    private static final long INITIAL_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 60000;
+
+    private static final int TIMEOUT_MILLIS = 30000;
+
+    private static final Metrics.LabeledCounter errors = Metrics.counter("gcm_topic_subscription_errors_total",
+            "Tokens the instance ID service failed to subscribe or unsubscribe, by error.", "error");
+
+    private final String topic;
+    private final String apiKey;
+    private final URL batchAdd;
+    private final URL batchRemove;
+    private final Gson gson;
+
+    private final Set<String> subscribed;
+    // Devices queued to be subscribed, so that every message from a device doesn't queue it again.
+    private final Set<String> subscribing;
+    private final LinkedBlockingQueue<Change> changes;
+
+    /**
+     * @param topic Name of the topic, without the /topics/ prefix.
+     * @param apiKey Server key to authorise calls with.
+     * @param iidUrl Base URL of the instance ID service, eg a local stand-in when testing.
+     */
+    public TopicSubscriptionManager(String topic, String apiKey, String iidUrl) throws IOException {
+        this.topic = topic;
+        this.apiKey = apiKey;
+        this.batchAdd = new URL(iidUrl + "/iid/v1:batchAdd");
+        this.batchRemove = new URL(iidUrl + "/iid/v1:batchRemove");
+        this.gson = new GsonBuilder().create();
+
+        subscribed = ConcurrentHashMap.newKeySet();
+        subscribing = ConcurrentHashMap.newKeySet();
+        changes = new LinkedBlockingQueue<Change>();
+
+        Thread worker = Threads.newThread("Topic Subscription Manager " + topic, new Runnable() {
+            @Override
+            public void run() {
+                runLoop();
+            }
+        });
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * @return The topic in the form used to address messages to it.
+     */
+    public String getTopicAddress() {
+        return "/topics/" + topic;
+    }
+
+    /**
+     * Queue a device to be subscribed to the topic, unless it already is.
+     */
+    public void subscribe(String registrationToken) {
+        if (!subscribed.contains(registrationToken) && subscribing.add(registrationToken)) {
+            changes.add(new Change(registrationToken, true));
+        }
+    }
+
+    /**
+     * Stop counting a device as subscribed and queue it to be unsubscribed from the topic, including when it is
+     * still waiting to be subscribed and the subscription may already be on its way to the service.
+     */
+    public void unsubscribe(String registrationToken) {
+        boolean wasSubscribed = subscribed.remove(registrationToken);
+        boolean wasSubscribing = subscribing.remove(registrationToken);
+
+        if (wasSubscribed || wasSubscribing) {
+            changes.add(new Change(registrationToken, false));
+        }
+    }
+
+    /**
+     * @return Whether the device is known to be subscribed, and so will receive messages sent to the topic.
+     */
+    public boolean isSubscribed(String registrationToken) {
+        return subscribed.contains(registrationToken);
+    }
+
+    /**
+     * @return Number of devices known to be subscribed.
+     */
+    public int subscribed() {
+        return subscribed.size();
+    }
+
+    /**
+     * @return Number of subscription changes waiting to be made.
+     */
+    public int pending() {
+        return changes.size();
+    }
+
+    private void runLoop() {
+        List<Change> batch = new ArrayList<Change>(MAX_BATCH);
+        long backoff = INITIAL_BACKOFF_MILLIS;
+
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                batch.add(changes.take());
+
+                // Give a burst of registrations, eg at startup, the chance to go out together.
+                Thread.sleep(BATCH_DELAY_MILLIS);
+                changes.drainTo(batch, MAX_BATCH - 1);
+
+                List<Change> failed = apply(batch);
+                batch.clear();
+
+                if (!failed.isEmpty()) {
+                    Thread.sleep(backoff);
+                    backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+                    changes.addAll(failed);
+                } else {
+                    backoff = INITIAL_BACKOFF_MILLIS;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Make the changes in the batch, grouping subscribes and unsubscribes into one call each. Only the last change
+     * queued for a device counts, and a subscribe for a device that has since been unsubscribed is dropped.
+     *
+     * @return Changes that failed in a way worth retrying.
+     */
+    private List<Change> apply(List<Change> batch) {
+        Map<String, Boolean> latest = new LinkedHashMap<String, Boolean>();
+        for (Change change : batch) {
+            latest.remove(change.registrationToken);
+            latest.put(change.registrationToken, change.subscribe);
+        }
+
+        List<String> adds = new ArrayList<String>();
+        List<String> removes = new ArrayList<String>();
+
+        for (Map.Entry<String, Boolean> change : latest.entrySet()) {
+            if (!change.getValue()) {
+                removes.add(change.getKey());
+            } else if (subscribing.contains(change.getKey())) {
+                adds.add(change.getKey());
+            }
+        }
+
+        List<Change> failed = new ArrayList<Change>();
+        call(batchAdd, adds, true, failed);
+        call(batchRemove, removes, false, failed);
+
+        return failed;
+    }
+
+    private void call(URL url, List<String> tokens, boolean subscribe, List<Change> failed) {
+        if (tokens.isEmpty()) {
+            return;
+        }
+
+        JsonObject request = new JsonObject();
+        request.addProperty("to", getTopicAddress());
+        JsonArray registrationTokens = new JsonArray();
+        for (String token : tokens) {
+            registrationTokens.add(gson.toJsonTree(token));
+        }
+        request.add("registration_tokens", registrationTokens);
+
+        JsonArray results;
+        try {
+            results = post(url, gson.toJson(request));
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.WARNING, "Unable to " + (subscribe ? "subscribe " : "unsubscribe ") + tokens.size()
+                    + " devices " + (subscribe ? "to " : "from ") + topic + ", will retry", e);
+
+            for (String token : tokens) {
+                failed.add(new Change(token, subscribe));
+            }
+            return;
+        }
+
+        int succeeded = 0;
+        for (int i = 0; i < tokens.size(); i++) {
+            String error = null;
+
+            if (results != null && i < results.size() && results.get(i).isJsonObject()) {
+                JsonElement element = results.get(i).getAsJsonObject().get("error");
+                error = element != null ? element.getAsString() : null;
+            }
+
+            if (error == null) {
+                // Unless it was unsubscribed whilst the call was made, in which case the remove is queued behind.
+                if (subscribe && subscribing.remove(tokens.get(i))) {
+                    subscribed.add(tokens.get(i));
+                }
+                succeeded++;
+                continue;
+            }
+
+            errors.labels(error).increment();
+
+            if ("INTERNAL".equals(error)) {
+                failed.add(new Change(tokens.get(i), subscribe));
+            } else {
+                subscribing.remove(tokens.get(i));
+
+                // NOT_FOUND, INVALID_ARGUMENT or TOO_MANY_TOPICS won't come right by retrying, the device
+                // carries on being sent broadcasts directly.
+                logger.fine("Unable to change subscription of " + tokens.get(i) + " to " + topic + ": " + error);
+            }
+        }
+
+        logger.info((subscribe ? "Subscribed " : "Unsubscribed ") + succeeded + " of " + tokens.size()
+                + " devices " + (subscribe ? "to " : "from ") + topic);
+    }
+
+    /**
+     * @return The per token results.
+     */
+    private JsonArray post(URL url, String body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Authorization", "key=" + apiKey);
+        connection.setRequestProperty("Content-Type", "application/json");
+
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        connection.setFixedLengthStreamingMode(bytes.length);
+
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(bytes);
+        }
+
+        int status = connection.getResponseCode();
+        if (status != HttpURLConnection.HTTP_OK) {
+            InputStream error = connection.getErrorStream();
+            if (error != null) {
+                error.close();
+            }
+            throw new IOException("Instance ID service responded with HTTP " + status);
+        }
+
+        try (Reader in = new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8)) {
+            JsonElement response = new JsonParser().parse(in);
+
+            if (!response.isJsonObject() || !response.getAsJsonObject().has("results")) {
+                throw new IOException("Instance ID service response has no results");
+            }
+
+            return response.getAsJsonObject().getAsJsonArray("results");
+        }
+    }
+
+
+    private static class Change {
+        final String registrationToken;
+        final boolean subscribe;
+
+        Change(String registrationToken, boolean subscribe) {
+            this.registrationToken = registrationToken;
+            this.subscribe = subscribe;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright 2016 Jethro Carr. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jethrocarr.howalarming.gcmserver;
+
+import java.io.Reader;
+
+/**
+ * Reader decoding UTF-8 straight out of a byte array, which can be reset onto new data so that one instance (and
+ * no intermediate buffers) serves every message read by a thread. Malformed sequences decode to U+FFFD.
+ */
+class Utf8Reader extends Reader {
+
+    private static final char REPLACEMENT = '\uFFFD';
+
+    private byte[] data;
+    private int position;
+    private int limit;
+
+    // Low surrogate still to be returned when a 4 byte sequence was split across reads.
+    private char pendingLowSurrogate;
+
+    void reset(byte[] data) {
+        reset(data, 0, data.length);
+    }
+
+    void reset(byte[] data, int offset, int length) {
+        this.data = data;
+        this.position = offset;
+        this.limit = offset + length;
+        this.pendingLowSurrogate = 0;
+    }
+
+    @Override
+    public int read(char[] buffer, int offset, int length) {
+        if (length == 0) {
+            return 0;
+        }
+
+        int count = 0;
+
+        if (pendingLowSurrogate != 0) {
+            buffer[offset + count++] = pendingLowSurrogate;
+            pendingLowSurrogate = 0;
+        }
+
+        while (count < length && position < limit) {
+            int b = data[position++];
+
+            if (b >= 0) {
+                buffer[offset + count++] = (char) b;
+            } else if ((b & 0xe0) == 0xc0 && available(1)) {
+                buffer[offset + count++] = (char) (((b & 0x1f) << 6) | (data[position++] & 0x3f));
+            } else if ((b & 0xf0) == 0xe0 && available(2)) {
+                buffer[offset + count++] = (char) (((b & 0x0f) << 12) | ((data[position++] & 0x3f) << 6)
+                        | (data[position++] & 0x3f));
+            } else if ((b & 0xf8) == 0xf0 && available(3)) {
+                int codePoint = ((b & 0x07) << 18) | ((data[position++] & 0x3f) << 12)
+                        | ((data[position++] & 0x3f) << 6) | (data[position++] & 0x3f);
+
+                buffer[offset + count++] = Character.highSurrogate(codePoint);
+                if (count < length) {
+                    buffer[offset + count++] = Character.lowSurrogate(codePoint);
+                } else {
+                    pendingLowSurrogate = Character.lowSurrogate(codePoint);
+                }
+            } else {
+                buffer[offset + count++] = REPLACEMENT;
+            }
+        }
+
+        return count == 0 ? -1 : count;
+    }
+
+    private boolean available(int continuationBytes) {
+        if (limit - position < continuationBytes) {
+            return false;
+        }
+
+        for (int i = 0; i < continuationBytes; i++) {
+            if ((data[position + i] & 0xc0) != 0x80) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public void close() {
+        data = null;
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright 2016 Jethro Carr. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jethrocarr.howalarming.gcmserver;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ConsistentHashRingTest {
+
+    private static final int KEYS = 10000;
+
+    @Test
+    public void agreesWhateverOrderMembersAreGivenIn() {
+        ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList("node-a", "node-b", "node-c"));
+        ConsistentHashRing shuffled = new ConsistentHashRing(Arrays.asList("node-c", "node-a", "node-b"));
+
+        assertEquals(Arrays.asList("node-a", "node-b", "node-c"), shuffled.getMembers());
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals(ring.owner(key(i)), shuffled.owner(key(i)));
+        }
+    }
+
+    @Test
+    public void addingMemberOnlyMovesKeysToIt() {
+        ConsistentHashRing before = new ConsistentHashRing(Arrays.asList("node-a", "node-b", "node-c"));
+        ConsistentHashRing after = new ConsistentHashRing(Arrays.asList("node-a", "node-b", "node-c", "node-d"));
+
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            String owner = after.owner(key(i));
+            if (!owner.equals(before.owner(key(i)))) {
+                assertEquals("node-d", owner);
+                moved++;
+            }
+        }
+
+        // Roughly a quarter of the keys should now belong to the new member.
+        assertTrue("moved " + moved + " of " + KEYS, moved > KEYS / 8 && moved < KEYS * 3 / 8);
+    }
+
+    @Test
+    public void removingMemberOnlyMovesItsKeys() {
+        ConsistentHashRing before = new ConsistentHashRing(Arrays.asList("node-a", "node-b", "node-c"));
+        ConsistentHashRing after = new ConsistentHashRing(Arrays.asList("node-a", "node-c"));
+
+        for (int i = 0; i < KEYS; i++) {
+            String owner = before.owner(key(i));
+            if (!owner.equals("node-b")) {
+                assertEquals(owner, after.owner(key(i)));
+            }
+        }
+    }
+
+    @Test
+    public void spreadsKeysEvenly() {
+        ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList("node-a", "node-b", "node-c", "node-d"));
+
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (int i = 0; i < KEYS; i++) {
+            String owner = ring.owner(key(i));
+            Integer count = counts.get(owner);
+            counts.put(owner, count == null ? 1 : count + 1);
+        }
+
+        assertEquals(4, counts.size());
+        for (Map.Entry<String, Integer> count : counts.entrySet()) {
+            assertTrue(count.getKey() + " owns " + count.getValue() + " of " + KEYS,
+                    count.getValue() > KEYS / 8 && count.getValue() < KEYS * 3 / 8);
+        }
+    }
+
+    @Test
+    public void emptyRingHasNoOwner() {
+        assertNull(new ConsistentHashRing(Collections.<String>emptyList()).owner(key(0)));
+    }
+
+    private static String key(int i) {
+        return "registration-token-" + i;
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright 2016 Jethro Carr. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jethrocarr.howalarming.gcmserver;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DeviceRateLimiterTest {
+
+    @Test
+    public void allowsBurstThenRefuses() {
+        DeviceRateLimiter limiter = new DeviceRateLimiter(1, 5, 0);
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue("message " + i + " of the burst", limiter.tryAcquire("a"));
+        }
+        assertFalse(limiter.tryAcquire("a"));
+
+        // Each device has a bucket of its own.
+        assertTrue(limiter.tryAcquire("b"));
+    }
+
+    @Test
+    public void refillsAtRate() throws InterruptedException {
+        DeviceRateLimiter limiter = new DeviceRateLimiter(20, 1, 0);
+
+        assertTrue(limiter.tryAcquire("a"));
+        assertFalse(limiter.tryAcquire("a"));
+
+        // A token comes back every 50ms.
+        Thread.sleep(60);
+        assertTrue(limiter.tryAcquire("a"));
+        assertFalse(limiter.tryAcquire("a"));
+    }
+
+    @Test
+    public void sweepsDevicesOnceRefilled() {
+        DeviceRateLimiter limiter = new DeviceRateLimiter(1, 2, 0);
+
+        limiter.tryAcquire("a");
+        limiter.tryAcquire("b");
+        limiter.tryAcquire("b");
+
+        // "a" has its token back a second later, "b" a second after that.
+        limiter.sweep(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(1500));
+        assertEquals(1, limiter.size());
+
+        limiter.sweep(System.nanoTime() + TimeUnit.SECONDS.toNanos(3));
+        assertEquals(0, limiter.size());
+    }
+
+    @Test
+    public void coalescesRepliesToRepeatedPings() {
+        DeviceRateLimiter limiter = new DeviceRateLimiter(1, 1, 60);
+        Object armed = new Object();
+        Object disarmed = new Object();
+
+        // Checking alone records nothing.
+        assertTrue(limiter.shouldReplyToPing("home", "a", armed));
+        assertTrue(limiter.shouldReplyToPing("home", "a", armed));
+
+        limiter.recordPingReply("home", "a", armed);
+        assertFalse(limiter.shouldReplyToPing("home", "a", armed));
+
+        // A changed status, another site or another device still gets a reply.
+        assertTrue(limiter.shouldReplyToPing("home", "a", disarmed));
+        assertTrue(limiter.shouldReplyToPing("office", "a", armed));
+        assertTrue(limiter.shouldReplyToPing("home", "b", armed));
+    }
+
+    @Test
+    public void repliesToEveryPingWithoutCoalescing() {
+        DeviceRateLimiter limiter = new DeviceRateLimiter(1, 1, 0);
+        Object armed = new Object();
+
+        limiter.recordPingReply("home", "a", armed);
+        assertTrue(limiter.shouldReplyToPing("home", "a", armed));
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright 2016 Jethro Carr. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jethrocarr.howalarming.gcmserver;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HashedWheelTimerTest {
+
+    // Slack allowed past a task's delay before it counts as late, generous for a loaded build machine.
+    private static final long LATE_MILLIS = 500;
+
+    // A 40ms wheel, so the longer delays take several rounds.
+    private HashedWheelTimer timer;
+
+    @Before
+    public void setUp() {
+        timer = new HashedWheelTimer("Test timer", 10, TimeUnit.MILLISECONDS, 4);
+    }
+
+    @After
+    public void tearDown() {
+        timer.stop();
+    }
+
+    @Test
+    public void firesEachTaskAfterItsDelay() throws InterruptedException {
+        long[] delays = {5, 25, 100, 170};
+        CountDownLatch fired = new CountDownLatch(delays.length);
+        List<AtomicLong> firedAt = new ArrayList<AtomicLong>();
+
+        long start = System.nanoTime();
+        for (long delay : delays) {
+            AtomicLong at = new AtomicLong();
+            firedAt.add(at);
+            timer.schedule(record(at, fired), delay, TimeUnit.MILLISECONDS);
+        }
+
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+
+        for (int i = 0; i < delays.length; i++) {
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(firedAt.get(i).get() - start);
+            assertTrue("task delayed " + delays[i] + "ms fired after " + elapsed + "ms", elapsed >= delays[i]);
+            assertTrue("task delayed " + delays[i] + "ms fired after " + elapsed + "ms",
+                    elapsed < delays[i] + LATE_MILLIS);
+        }
+    }
+
+    @Test
+    public void firesTasksInTheOrderTheyAreDue() throws InterruptedException {
+        final List<Long> order = Collections.synchronizedList(new ArrayList<Long>());
+        final CountDownLatch fired = new CountDownLatch(3);
+
+        // Scheduled longest first, and landing in the same bucket a round apart.
+        for (final long delay : new long[]{130, 90, 50}) {
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    order.add(delay);
+                    fired.countDown();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(50L, 90L, 130L), order);
+    }
+
+    @Test
+    public void keepsRunningAfterTaskFails() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("expected by test");
+            }
+        }, 5, TimeUnit.MILLISECONDS);
+        timer.schedule(record(new AtomicLong(), fired), 30, TimeUnit.MILLISECONDS);
+
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+    }
+
+    private static Runnable record(final AtomicLong at, final CountDownLatch fired) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                at.set(System.nanoTime());
+                fired.countDown();
+            }
+        };
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright 2016 Jethro Carr. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jethrocarr.howalarming.gcmserver;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class MappedClientRegistryStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replaysRegistrationsAfterRestart() throws IOException {
+        File directory = folder.newFolder();
+
+        ClientRegistry registry = new ClientRegistry(new MappedClientRegistryStore(directory));
+        registry.register("a");
+        registry.register("b");
+        registry.register("c");
+        registry.unregister("b");
+        registry.close();
+
+        assertEquals(tokens("a", "c"), reopen(directory));
+    }
+
+    @Test
+    public void ignoresRecordTornBeforeItsOpByte() throws IOException {
+        File directory = folder.newFolder();
+
+        ClientRegistry registry = new ClientRegistry(new MappedClientRegistryStore(directory));
+        registry.register("a");
+        registry.register("b");
+        registry.close();
+
+        // A record whose body made it to disk but whose op byte, written last, didn't. Each record so far is the
+        // op byte, a two byte length and the one byte token.
+        try (RandomAccessFile log = new RandomAccessFile(new File(directory, "registry.log"), "rw")) {
+            log.seek(8);
+            log.writeByte(0);
+            log.writeShort(1);
+            log.write("x".getBytes(StandardCharsets.UTF_8));
+        }
+
+        assertEquals(tokens("a", "b"), reopen(directory));
+
+        // Appends after recovery overwrite the torn record rather than following it.
+        registry = new ClientRegistry(new MappedClientRegistryStore(directory));
+        registry.register("d");
+        registry.close();
+
+        assertEquals(tokens("a", "b", "d"), reopen(directory));
+    }
+
+    @Test
+    public void recoversAfterCompaction() throws IOException {
+        File directory = folder.newFolder();
+
+        MappedClientRegistryStore store = new MappedClientRegistryStore(directory);
+        ClientRegistry registry = new ClientRegistry(store);
+        for (int i = 0; i < 100; i++) {
+            registry.register("token-" + i);
+        }
+        for (int i = 0; i < 50; i++) {
+            registry.unregister("token-" + i);
+        }
+
+        store.compact(registry);
+
+        // Changes made after the compaction land in the new log.
+        registry.register("token-0");
+        registry.unregister("token-99");
+        registry.close();
+
+        Set<String> expected = new HashSet<String>();
+        expected.add("token-0");
+        for (int i = 50; i < 99; i++) {
+            expected.add("token-" + i);
+        }
+
+        assertEquals(expected, reopen(directory));
+        assertFalse(new File(directory, "registry.log.tmp").exists());
+        assertFalse(new File(directory, "registry.snapshot.tmp").exists());
+    }
+
+    @Test
+    public void recoversFromCrashBetweenSnapshotAndLogReplacement() throws IOException {
+        File directory = folder.newFolder();
+        File log = new File(directory, "registry.log");
+        File oldLog = new File(directory, "registry.log.old");
+
+        MappedClientRegistryStore store = new MappedClientRegistryStore(directory);
+        ClientRegistry registry = new ClientRegistry(store);
+        registry.register("a");
+        registry.register("b");
+        registry.unregister("a");
+        registry.register("c");
+
+        Files.copy(log.toPath(), oldLog.toPath());
+        store.compact(registry);
+        registry.close();
+
+        // As if the snapshot had been renamed into place but not the new log, which leaves the whole of the old log
+        // to be replayed over the snapshot.
+        Files.move(oldLog.toPath(), log.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        assertEquals(tokens("b", "c"), reopen(directory));
+    }
+
+    @Test
+    public void ignoresLogLeftOverFromInterruptedCompaction() throws IOException {
+        File directory = folder.newFolder();
+
+        ClientRegistry registry = new ClientRegistry(new MappedClientRegistryStore(directory));
+        registry.register("a");
+        registry.close();
+
+        Files.write(new File(directory, "registry.log.tmp").toPath(), new byte[]{1, 0, 1, 'z'});
+
+        assertEquals(tokens("a"), reopen(directory));
+    }
+
+    private static Set<String> reopen(File directory) throws IOException {
+        ClientRegistry registry = new ClientRegistry(new MappedClientRegistryStore(directory));
+
+        try {
+            return new HashSet<String>(registry.snapshot());
+        } finally {
+            registry.close();
+        }
+    }
+
+    private static Set<String> tokens(String... tokens) {
+        return new HashSet<String>(Arrays.asList(tokens));
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright 2016 Jethro Carr. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jethrocarr.howalarming.gcmserver;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OutboundSpoolTest {
+
+    // Length, crc, type, id, priority and deadline ahead of each record's payload.
+    private static final int HEADER_SIZE = 4 + 4 + 1 + 8 + 1 + 8;
+
+    private static final long FUTURE = Long.MAX_VALUE;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recoversIncompleteEntriesByPriority() throws Exception {
+        File directory = folder.newFolder();
+
+        OutboundSpool spool = new OutboundSpool(directory);
+        spool.append(DownstreamMessage.Priority.LOW, FUTURE, bytes("low"));
+        spool.append(DownstreamMessage.Priority.NORMAL, FUTURE, bytes("normal"));
+        spool.append(DownstreamMessage.Priority.HIGH, FUTURE, bytes("high")).complete();
+        spool.append(DownstreamMessage.Priority.HIGH, FUTURE, bytes("urgent"));
+        spool.close();
+
+        assertEquals(Arrays.asList("urgent", "normal", "low"), recover(directory));
+    }
+
+    @Test
+    public void skipsExpiredEntries() throws Exception {
+        File directory = folder.newFolder();
+
+        OutboundSpool spool = new OutboundSpool(directory);
+        spool.append(DownstreamMessage.Priority.NORMAL, System.currentTimeMillis() - 1, bytes("stale"));
+        spool.append(DownstreamMessage.Priority.NORMAL, FUTURE, bytes("fresh"));
+        spool.close();
+
+        assertEquals(Arrays.asList("fresh"), recover(directory));
+    }
+
+    @Test
+    public void ignoresTornRecordAndWhatFollowsIt() throws Exception {
+        File directory = folder.newFolder();
+
+        OutboundSpool spool = new OutboundSpool(directory);
+        spool.append(DownstreamMessage.Priority.NORMAL, FUTURE, bytes("first"));
+        spool.append(DownstreamMessage.Priority.NORMAL, FUTURE, bytes("second"));
+        spool.append(DownstreamMessage.Priority.NORMAL, FUTURE, bytes("third"));
+        spool.close();
+
+        // Corrupt the payload of the second record, as if it had only partly reached the disk.
+        try (RandomAccessFile segment = new RandomAccessFile(segments(directory).get(0), "rw")) {
+            segment.seek(HEADER_SIZE + "first".length() + HEADER_SIZE);
+            segment.writeByte('X');
+        }
+
+        assertEquals(Arrays.asList("first"), recover(directory));
+
+        // Appends after recovery go to a new segment, so a later restart still finds them past the torn one.
+        spool = new OutboundSpool(directory);
+        spool.append(DownstreamMessage.Priority.NORMAL, FUTURE, bytes("fourth"));
+        spool.close();
+
+        assertEquals(Arrays.asList("first", "fourth"), recover(directory));
+    }
+
+    @Test
+    public void deletesCompletedSegmentsAndRecoversTheRest() throws Exception {
+        File directory = folder.newFolder();
+
+        // Small segments, so that the entries span several of them.
+        OutboundSpool spool = new OutboundSpool(directory, 256, 0);
+        List<OutboundSpool.Entry> entries = new ArrayList<OutboundSpool.Entry>();
+        for (int i = 0; i < 20; i++) {
+            entries.add(spool.append(DownstreamMessage.Priority.NORMAL, FUTURE, bytes("push-" + i)));
+        }
+
+        List<File> written = segments(directory);
+        for (int i = 0; i < 15; i++) {
+            entries.get(i).complete();
+        }
+
+        // Segments are only deleted once a commit has made the completions durable.
+        spool.append(DownstreamMessage.Priority.NORMAL, FUTURE, bytes("push-20"));
+        spool.close();
+
+        // The first two segments only held completed entries, the third still holds pending ones.
+        assertFalse(written.get(0).exists());
+        assertFalse(written.get(1).exists());
+        assertTrue(written.get(2).exists());
+        assertEquals(Arrays.asList("push-15", "push-16", "push-17", "push-18", "push-19", "push-20"),
+                recover(directory, 256));
+    }
+
+    @Test
+    public void completedReplaysAreNotRecoveredAgain() throws Exception {
+        File directory = folder.newFolder();
+
+        OutboundSpool spool = new OutboundSpool(directory);
+        spool.append(DownstreamMessage.Priority.NORMAL, FUTURE, bytes("once"));
+        spool.close();
+
+        spool = new OutboundSpool(directory);
+        assertEquals(1, spool.recovered().size());
+        assertEquals(1, spool.pending());
+        spool.recovered().get(0).complete();
+        spool.close();
+
+        assertEquals(new ArrayList<String>(), recover(directory));
+    }
+
+    private static List<String> recover(File directory) throws IOException {
+        return recover(directory, OutboundSpool.DEFAULT_SEGMENT_SIZE);
+    }
+
+    private static List<String> recover(File directory, int segmentSize) throws IOException {
+        OutboundSpool spool = new OutboundSpool(directory, segmentSize, 0);
+
+        try {
+            List<String> payloads = new ArrayList<String>();
+            for (OutboundSpool.Entry entry : spool.recovered()) {
+                payloads.add(new String(entry.getPayload(), StandardCharsets.UTF_8));
+            }
+            return payloads;
+        } finally {
+            spool.close();
+        }
+    }
+
+    private static List<File> segments(File directory) {
+        File[] files = directory.listFiles();
+        List<File> segments = new ArrayList<File>();
+
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                if (file.getName().startsWith("spool-")) {
+                    segments.add(file);
+                }
+            }
+        }
+
+        return segments;
+    }
+
+    private static byte[] bytes(String payload) {
+        return payload.getBytes(StandardCharsets.UTF_8);
+    }
+}